@@ -0,0 +1,391 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import ch.systemsx.cisd.base.mdarray.MDByteArray;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import de.embl.cba.bigdataprocessor.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Writes synthetic Tiff and Hdf5 data sets for the benchmarks.
+ *
+ * The Tiff files are written by a minimal writer, such that the compression and the
+ * number of rows per strip can be chosen freely. The pixel values are a smooth gradient
+ * with some noise, which compresses similar to microscopy data.
+ */
+class BenchmarkData
+{
+    static final String NONE = "none";
+    static final String LZW = "lzw";
+    static final String ZIP = "zip";
+
+    static final String H5_DATA_SET = "Data";
+
+    private static final int TIFF_LZW = 5;
+    private static final int TIFF_ZIP = 8;
+
+    static File createTempDirectory( String name ) throws IOException
+    {
+        final File directory = Files.createTempDirectory( "bdp-benchmark-" + name ).toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    static void deleteDirectory( File directory )
+    {
+        final File[] files = directory.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                if ( file.isDirectory() ) deleteDirectory( file );
+                else file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Writes nT Tiff stacks into the directory and opens them as a virtual stack.
+     */
+    static VirtualStack2 createTiffStacks( File directory, int nX, int nY, int nZ, int nT,
+                                           int bitDepth, String compression, int rowsPerStrip ) throws IOException
+    {
+        final String[][][] fileList = new String[ 1 ][ nT ][ nZ ];
+
+        for ( int t = 0; t < nT; t++ )
+        {
+            final String fileName = String.format( "T%04d.tif", t );
+            writeTiff( new File( directory, fileName ), nX, nY, nZ, bitDepth, compression, rowsPerStrip, t );
+            for ( int z = 0; z < nZ; z++ ) fileList[ 0 ][ t ][ z ] = fileName;
+        }
+
+        return openVirtualStack( directory, fileList, nX, nY, nZ, nT, bitDepth, Utils.FileType.TIFF_STACKS, null );
+    }
+
+    /**
+     * Writes one Tiff file per plane into the directory and opens them as a virtual stack.
+     */
+    static VirtualStack2 createTiffPlanes( File directory, int nX, int nY, int nZ, int nT,
+                                           int bitDepth, String compression, int rowsPerStrip ) throws IOException
+    {
+        final String[][][] fileList = new String[ 1 ][ nT ][ nZ ];
+
+        for ( int t = 0; t < nT; t++ )
+        {
+            for ( int z = 0; z < nZ; z++ )
+            {
+                final String fileName = String.format( "T%04d--Z%04d.tif", t, z );
+                writeTiff( new File( directory, fileName ), nX, nY, 1, bitDepth, compression, rowsPerStrip, t * nZ + z );
+                fileList[ 0 ][ t ][ z ] = fileName;
+            }
+        }
+
+        return openVirtualStack( directory, fileList, nX, nY, nZ, nT, bitDepth, Utils.FileType.TIFF_PLANES, null );
+    }
+
+    /**
+     * Writes nT Hdf5 files into the directory and opens them as a virtual stack.
+     */
+    static VirtualStack2 createHdf5( File directory, int nX, int nY, int nZ, int nT, int bitDepth )
+    {
+        final String[][][] fileList = new String[ 1 ][ nT ][ nZ ];
+
+        for ( int t = 0; t < nT; t++ )
+        {
+            final String fileName = String.format( "T%04d.h5", t );
+            final IHDF5Writer writer = HDF5Factory.open( new File( directory, fileName ) );
+
+            final int[] dimensions = new int[]{ nZ, nY, nX };
+            final byte[] bytes = createPixels( nX * bitDepth / 8, nY * nZ, 1, t );
+
+            if ( bitDepth == 8 )
+            {
+                writer.uint8().writeMDArray( H5_DATA_SET, new MDByteArray( bytes, dimensions ) );
+            }
+            else
+            {
+                final short[] shorts = new short[ nX * nY * nZ ];
+                for ( int i = 0; i < shorts.length; i++ )
+                {
+                    shorts[ i ] = ( short ) ( ( bytes[ 2 * i ] & 0xff ) << 8 | ( bytes[ 2 * i + 1 ] & 0xff ) );
+                }
+                writer.uint16().writeMDArray( H5_DATA_SET, new MDShortArray( shorts, dimensions ) );
+            }
+
+            writer.close();
+
+            for ( int z = 0; z < nZ; z++ ) fileList[ 0 ][ t ][ z ] = fileName;
+        }
+
+        return openVirtualStack( directory, fileList, nX, nY, nZ, nT, bitDepth, Utils.FileType.HDF5, H5_DATA_SET );
+    }
+
+    private static VirtualStack2 openVirtualStack( File directory, String[][][] fileList,
+                                                   int nX, int nY, int nZ, int nT, int bitDepth,
+                                                   Utils.FileType fileType, String h5DataSet )
+    {
+        final VirtualStack2 vs2 = new VirtualStack2( directory.getAbsolutePath() + "/", new String[]{ "" }, fileList,
+                1, nT, nX, nY, nZ, bitDepth, fileType.toString(), h5DataSet );
+
+        for ( int t = 0; t < nT; t++ )
+        {
+            if ( fileType == Utils.FileType.TIFF_PLANES )
+            {
+                for ( int z = 0; z < nZ; z++ ) vs2.setInfoFromFile( 0, t, z );
+            }
+            else
+            {
+                vs2.setInfoFromFile( 0, t, 0 );
+            }
+        }
+
+        return vs2;
+    }
+
+    /**
+     * Big-endian pixel data of nPlanes planes with the given number of bytes per row.
+     */
+    static byte[] createPixels( int rowByteLength, int nRows, int nPlanes, long seed )
+    {
+        final Random random = new Random( seed );
+        final byte[] pixels = new byte[ rowByteLength * nRows * nPlanes ];
+
+        for ( int i = 0, y = 0; i < pixels.length; i += rowByteLength, y++ )
+        {
+            for ( int x = 0; x < rowByteLength; x++ )
+            {
+                pixels[ i + x ] = ( byte ) ( ( x + y ) / 8 + random.nextInt( 4 ) );
+            }
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Writes a big-endian, single sample Tiff file with one IFD per plane.
+     */
+    static void writeTiff( File file, int nX, int nY, int nZ, int bitDepth,
+                           String compression, int rowsPerStrip, long seed ) throws IOException
+    {
+        final int bytesPerPixel = bitDepth / 8;
+        final int rowByteLength = nX * bytesPerPixel;
+        final int numStrips = ( nY + rowsPerStrip - 1 ) / rowsPerStrip;
+
+        final int compressionTag = compression.equals( LZW ) ? TIFF_LZW : compression.equals( ZIP ) ? TIFF_ZIP : 1;
+
+        try ( RandomAccessFile out = new RandomAccessFile( file, "rw" ) )
+        {
+            out.setLength( 0 );
+            out.writeBytes( "MM" );
+            out.writeShort( 42 );
+            long previousNextIfdPointer = out.getFilePointer();
+            out.writeInt( 0 );
+
+            for ( int z = 0; z < nZ; z++ )
+            {
+                final byte[] plane = createPixels( rowByteLength, nY, 1, seed * nZ + z );
+
+                final long[] stripOffsets = new long[ numStrips ];
+                final long[] stripLengths = new long[ numStrips ];
+
+                for ( int s = 0; s < numStrips; s++ )
+                {
+                    final int start = s * rowsPerStrip * rowByteLength;
+                    final int length = Math.min( rowsPerStrip, nY - s * rowsPerStrip ) * rowByteLength;
+
+                    byte[] strip = new byte[ length ];
+                    System.arraycopy( plane, start, strip, 0, length );
+
+                    if ( compression.equals( LZW ) ) strip = lzwCompress( strip );
+                    else if ( compression.equals( ZIP ) ) strip = deflate( strip );
+
+                    stripOffsets[ s ] = out.getFilePointer();
+                    stripLengths[ s ] = strip.length;
+                    out.write( strip );
+                }
+
+                final long stripOffsetsPosition = out.getFilePointer();
+                for ( long offset : stripOffsets ) out.writeInt( ( int ) offset );
+                final long stripLengthsPosition = out.getFilePointer();
+                for ( long length : stripLengths ) out.writeInt( ( int ) length );
+
+                // word alignment of the IFD
+                if ( out.getFilePointer() % 2 == 1 ) out.write( 0 );
+
+                final long ifdPosition = out.getFilePointer();
+                out.seek( previousNextIfdPointer );
+                out.writeInt( ( int ) ifdPosition );
+                out.seek( ifdPosition );
+
+                out.writeShort( 9 );
+                writeTag( out, 256, 4, 1, nX ); // image width
+                writeTag( out, 257, 4, 1, nY ); // image length
+                writeTag( out, 258, 3, 1, bitDepth );
+                writeTag( out, 259, 3, 1, compressionTag );
+                writeTag( out, 262, 3, 1, 1 ); // black is zero
+                writeTag( out, 273, 4, numStrips, numStrips == 1 ? stripOffsets[ 0 ] : stripOffsetsPosition );
+                writeTag( out, 277, 3, 1, 1 ); // samples per pixel
+                writeTag( out, 278, 4, 1, rowsPerStrip );
+                writeTag( out, 279, 4, numStrips, numStrips == 1 ? stripLengths[ 0 ] : stripLengthsPosition );
+
+                previousNextIfdPointer = out.getFilePointer();
+                out.writeInt( 0 );
+            }
+        }
+    }
+
+    private static void writeTag( RandomAccessFile out, int tag, int type, int count, long value ) throws IOException
+    {
+        out.writeShort( tag );
+        out.writeShort( type );
+        out.writeInt( count );
+        if ( type == 3 && count == 1 )
+        {
+            // short values are left aligned in the value field
+            out.writeShort( ( int ) value );
+            out.writeShort( 0 );
+        }
+        else
+        {
+            out.writeInt( ( int ) value );
+        }
+    }
+
+    static byte[] deflate( byte[] data )
+    {
+        final Deflater deflater = new Deflater( 6 );
+        deflater.setInput( data );
+        deflater.finish();
+
+        byte[] buffer = new byte[ data.length + 1024 ];
+        int length = 0;
+        while ( ! deflater.finished() )
+        {
+            if ( length == buffer.length )
+            {
+                final byte[] larger = new byte[ buffer.length * 2 ];
+                System.arraycopy( buffer, 0, larger, 0, length );
+                buffer = larger;
+            }
+            length += deflater.deflate( buffer, length, buffer.length - length );
+        }
+        deflater.end();
+
+        final byte[] compressed = new byte[ length ];
+        System.arraycopy( buffer, 0, compressed, 0, length );
+        return compressed;
+    }
+
+    /**
+     * Tiff LZW ("early change") with a clear code whenever the table is full.
+     */
+    static byte[] lzwCompress( byte[] data )
+    {
+        final BitWriter out = new BitWriter( data.length / 2 + 16 );
+        final Map< Integer, Integer > table = new HashMap<>();
+
+        out.write( 256, 9 );
+        int nextCode = 258;
+        int numCodes = 0; // since the last clear code
+        int current = -1;
+
+        for ( byte b : data )
+        {
+            final int value = b & 0xff;
+
+            if ( current == -1 )
+            {
+                current = value;
+                continue;
+            }
+
+            final Integer extended = table.get( ( current << 8 ) | value );
+            if ( extended != null )
+            {
+                current = extended;
+                continue;
+            }
+
+            out.write( current, codeLength( numCodes++ ) );
+            table.put( ( current << 8 ) | value, nextCode++ );
+            current = value;
+
+            if ( nextCode >= 4094 )
+            {
+                out.write( current, codeLength( numCodes++ ) );
+                out.write( 256, codeLength( numCodes ) );
+                table.clear();
+                nextCode = 258;
+                numCodes = 0;
+                current = -1;
+            }
+        }
+
+        if ( current != -1 ) out.write( current, codeLength( numCodes++ ) );
+        out.write( 257, codeLength( numCodes ) );
+
+        return out.toByteArray();
+    }
+
+    /**
+     * The code length that a decoder uses for reading the n-th code after a clear code.
+     */
+    private static int codeLength( int n )
+    {
+        final int tableSize = 258 + Math.max( 0, n - 1 );
+        return Math.max( 9, 32 - Integer.numberOfLeadingZeros( tableSize + 1 ) );
+    }
+
+    private static class BitWriter
+    {
+        private byte[] bytes;
+        private int length = 0;
+        private long bits = 0;
+        private int numBits = 0;
+
+        BitWriter( int capacity )
+        {
+            bytes = new byte[ capacity ];
+        }
+
+        void write( int code, int codeLength )
+        {
+            bits = ( bits << codeLength ) | code;
+            numBits += codeLength;
+            while ( numBits >= 8 )
+            {
+                numBits -= 8;
+                add( ( byte ) ( bits >>> numBits ) );
+            }
+        }
+
+        byte[] toByteArray()
+        {
+            if ( numBits > 0 ) add( ( byte ) ( bits << ( 8 - numBits ) ) );
+            final byte[] result = new byte[ length ];
+            System.arraycopy( bytes, 0, result, 0, length );
+            return result;
+        }
+
+        private void add( byte b )
+        {
+            if ( length == bytes.length )
+            {
+                final byte[] larger = new byte[ bytes.length * 2 ];
+                System.arraycopy( bytes, 0, larger, 0, length );
+                bytes = larger;
+            }
+            bytes[ length++ ] = b;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import ij.ImageStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decompression of single strips and copying of decoded planes into the image stack, without file access.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class DecodingBenchmark
+{
+    private static final int N_X = 2048;
+
+    @Param( { "1", "16", "256" } )
+    public int rowsPerStrip;
+
+    @Param( { "64", "2048" } )
+    public int cropSize;
+
+    private byte[] uncompressed;
+    private byte[] lzwCompressed;
+    private byte[] zipCompressed;
+    private byte[] decoded;
+
+    private byte[] plane;
+    private short[] croppedPixels;
+    private OpenerExtension.readCroppedPlaneFromTiffIntoImageStack planeReader;
+
+    @Setup( Level.Trial )
+    public void createData()
+    {
+        final int rowByteLength = N_X * 2;
+
+        uncompressed = BenchmarkData.createPixels( rowByteLength, rowsPerStrip, 1, 0 );
+        lzwCompressed = BenchmarkData.lzwCompress( uncompressed );
+
+        zipCompressed = BenchmarkData.deflate( uncompressed );
+
+        decoded = new byte[ uncompressed.length ];
+
+        // a full 16-bit plane of which the central crop is copied
+        plane = BenchmarkData.createPixels( rowByteLength, N_X, 1, 0 );
+        croppedPixels = new short[ cropSize * cropSize ];
+
+        final FileInfoSer fi = new FileInfoSer();
+        fi.width = N_X;
+        fi.height = N_X;
+        fi.bytesPerPixel = 2;
+        fi.intelByteOrder = false;
+
+        planeReader = new OpenerExtension().new readCroppedPlaneFromTiffIntoImageStack(
+                "", new FileInfoSer[]{ fi }, new ImageStack( cropSize, cropSize ), new byte[ 1 ][],
+                0, 0, 0, 1,
+                0, N_X - 1, N_X,
+                0, N_X - 1, N_X,
+                rowByteLength );
+        planeReader.fi = fi;
+    }
+
+    @Benchmark
+    public byte[] lzwUncompress()
+    {
+        TiffDecompressor.lzwUncompress( lzwCompressed, 0, lzwCompressed.length, decoded, 0, decoded.length );
+        return decoded;
+    }
+
+    @Benchmark
+    public byte[] inflate()
+    {
+        TiffDecompressor.inflate( zipCompressed, 0, zipCompressed.length, decoded, 0, decoded.length );
+        return decoded;
+    }
+
+    @Benchmark
+    public short[] setShortPixelsCropXY()
+    {
+        final int start = ( N_X - cropSize ) / 2;
+        planeReader.setShortPixelsCropXY( croppedPixels, start, cropSize, start, cropSize, N_X * 2, plane );
+        return croppedPixels;
+    }
+}
@@ -0,0 +1,82 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import de.embl.cba.util.Point3D;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static de.embl.cba.bigdataprocessor.virtualstack2.TiffReadingBenchmark.N_T;
+import static de.embl.cba.bigdataprocessor.virtualstack2.TiffReadingBenchmark.N_X;
+import static de.embl.cba.bigdataprocessor.virtualstack2.TiffReadingBenchmark.N_Y;
+import static de.embl.cba.bigdataprocessor.virtualstack2.TiffReadingBenchmark.N_Z;
+
+/**
+ * Reading of cropped data cubes from Hdf5 files.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class Hdf5ReadingBenchmark
+{
+    @Param( { "8", "16" } )
+    public int bitDepth;
+
+    @Param( { "64", "512", "1024" } )
+    public int cropSize;
+
+    @Param( { "1", "4" } )
+    public int numThreads;
+
+    private File directory;
+    private VirtualStack2 vs2;
+    private OpenerExtension opener;
+    private FileInfoSer[] infos;
+
+    @Setup( Level.Trial )
+    public void createData() throws IOException
+    {
+        directory = BenchmarkData.createTempDirectory( "hdf5" );
+        vs2 = BenchmarkData.createHdf5( directory, N_X, N_Y, N_Z, N_T, bitDepth );
+        opener = new OpenerExtension();
+        infos = vs2.getFileInfosSer()[ 0 ][ 0 ];
+    }
+
+    @TearDown( Level.Trial )
+    public void deleteData()
+    {
+        BenchmarkData.deleteDirectory( directory );
+    }
+
+    @Benchmark
+    public ImagePlus readDataCube()
+    {
+        final Point3D offset = new Point3D( ( N_X - cropSize ) / 2, ( N_Y - cropSize ) / 2, 0 );
+        final Point3D size = new Point3D( cropSize, cropSize, N_Z );
+
+        return opener.readDataCube( vs2.getDirectory(), infos, 1, offset, size, numThreads );
+    }
+
+    @Benchmark
+    public ImagePlus getDataCube()
+    {
+        return vs2.getDataCube( TiffReadingBenchmark.centralRegion( cropSize, N_Z ), numThreads );
+    }
+}
@@ -0,0 +1,59 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the IFDs of Tiff stacks, which is done for every file when opening a data set.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class TiffParsingBenchmark
+{
+    @Param( { "100", "1000" } )
+    public int nZ;
+
+    @Param( { "1", "16" } )
+    public int rowsPerStrip;
+
+    private File directory;
+
+    @Setup( Level.Trial )
+    public void createData() throws IOException
+    {
+        directory = BenchmarkData.createTempDirectory( "parsing" );
+        BenchmarkData.writeTiff( new File( directory, "stack.tif" ), 256, 256, nZ, 16,
+                BenchmarkData.NONE, rowsPerStrip, 0 );
+    }
+
+    @TearDown( Level.Trial )
+    public void deleteData()
+    {
+        BenchmarkData.deleteDirectory( directory );
+    }
+
+    @Benchmark
+    public FileInfoSer[] getTiffInfo() throws IOException
+    {
+        return new FastTiffDecoder( directory.getAbsolutePath(), "stack.tif" ).getTiffInfo();
+    }
+}
@@ -0,0 +1,115 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import de.embl.cba.util.Point3D;
+import de.embl.cba.util.Region5D;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading of cropped data cubes from Tiff stacks and Tiff planes.
+ *
+ * Note that the files are small enough to stay in the file system cache,
+ * thus the benchmark measures parsing, decoding and copying rather than disk speed.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class TiffReadingBenchmark
+{
+    static final int N_X = 1024;
+    static final int N_Y = 1024;
+    static final int N_Z = 32;
+    static final int N_T = 2;
+
+    @Param( { "stacks", "planes" } )
+    public String layout;
+
+    @Param( { "8", "16" } )
+    public int bitDepth;
+
+    @Param( { BenchmarkData.NONE, BenchmarkData.LZW, BenchmarkData.ZIP } )
+    public String compression;
+
+    @Param( { "1", "16", "1024" } )
+    public int rowsPerStrip;
+
+    @Param( { "64", "512", "1024" } )
+    public int cropSize;
+
+    @Param( { "1", "4" } )
+    public int numThreads;
+
+    private File directory;
+    private VirtualStack2 vs2;
+    private OpenerExtension opener;
+    private FileInfoSer[] infos;
+
+    @Setup( Level.Trial )
+    public void createData() throws IOException
+    {
+        directory = BenchmarkData.createTempDirectory( "tiff" );
+
+        if ( layout.equals( "stacks" ) )
+        {
+            vs2 = BenchmarkData.createTiffStacks( directory, N_X, N_Y, N_Z, N_T, bitDepth, compression, rowsPerStrip );
+        }
+        else
+        {
+            vs2 = BenchmarkData.createTiffPlanes( directory, N_X, N_Y, N_Z, N_T, bitDepth, compression, rowsPerStrip );
+        }
+
+        opener = new OpenerExtension();
+        infos = vs2.getFileInfosSer()[ 0 ][ 0 ];
+    }
+
+    @TearDown( Level.Trial )
+    public void deleteData()
+    {
+        BenchmarkData.deleteDirectory( directory );
+    }
+
+    @Benchmark
+    public ImagePlus readDataCube()
+    {
+        final Point3D offset = new Point3D( ( N_X - cropSize ) / 2, ( N_Y - cropSize ) / 2, 0 );
+        final Point3D size = new Point3D( cropSize, cropSize, N_Z );
+
+        return opener.readDataCube( vs2.getDirectory(), infos, 1, offset, size, numThreads );
+    }
+
+    @Benchmark
+    public ImagePlus getDataCube()
+    {
+        return vs2.getDataCube( centralRegion( cropSize, N_Z ), numThreads );
+    }
+
+    static Region5D centralRegion( int cropSize, int nZ )
+    {
+        final Region5D region5D = new Region5D();
+        region5D.c = 0;
+        region5D.t = 0;
+        region5D.offset = new Point3D( ( N_X - cropSize ) / 2, ( N_Y - cropSize ) / 2, 0 );
+        region5D.size = new Point3D( cropSize, cropSize, nZ );
+        region5D.subSampling = new Point3D( 1, 1, 1 );
+        return region5D;
+    }
+}
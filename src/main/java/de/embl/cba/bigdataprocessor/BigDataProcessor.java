@@ -21,17 +21,20 @@ import de.embl.cba.bigdataprocessor.ui.BigDataProcessorUI;
 import de.embl.cba.imaris.ImarisDataSet;
 import de.embl.cba.imaris.ImarisUtils;
 import de.embl.cba.imaris.ImarisWriter;
-import de.embl.cba.bigdataprocessor.save.SaveVS2TiffPlane;
 import de.embl.cba.bigdataprocessor.virtualstack2.*;
 import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
 import de.embl.cba.bigdataprocessor.log.Logger;
-import de.embl.cba.bigdataprocessor.save.SaveVS2Frame;
+import de.embl.cba.bigdataprocessor.save.Hdf5MasterFile;
+import de.embl.cba.bigdataprocessor.save.PlaneSavingPipeline;
+import de.embl.cba.bigdataprocessor.save.SavingPipeline;
 import de.embl.cba.bigdataprocessor.save.SavingSettings;
+import de.embl.cba.bigdataprocessor.utils.IOScheduler;
 import de.embl.cba.bigdataprocessor.utils.ImageDataInfo;
 import de.embl.cba.bigdataprocessor.utils.MonitorThreadPoolStatus;
 import de.embl.cba.bigdataprocessor.utils.Utils;
 import ch.systemsx.cisd.hdf5.*;
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.Roi;
@@ -40,10 +43,7 @@ import de.embl.cba.util.Point3D;
 import java.io.*;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -68,6 +68,36 @@ public class BigDataProcessor
             boolean showImage,
             boolean partialDataSet)
     {
+        return openFromDirectory(
+                directory,
+                namingScheme,
+                filterPattern,
+                h5DataSetName,
+                imageDataInfo,
+                numIOThreads,
+                showImage,
+                partialDataSet,
+                false );
+    }
+
+    /**
+     * @param numIOThreads the number of threads of the shared I/O pools, see {@link #setNumIOThreads}
+     * @param parseLazily if true, only the first file is parsed before the image is shown;
+     *                    the headers of all other files are parsed when their data is first accessed
+     *                    and by a low priority background thread.
+     */
+    public ImagePlus openFromDirectory(
+            String directory,
+            String namingScheme,
+            String filterPattern,
+            String h5DataSetName,
+            ImageDataInfo imageDataInfo,
+            int numIOThreads,
+            boolean showImage,
+            boolean partialDataSet,
+            boolean parseLazily)
+    {
+        setNumIOThreads( numIOThreads );
 
         if ( imageDataInfo == null )
         {
@@ -129,6 +159,12 @@ public class BigDataProcessor
 
         ImagePlus imp = createImagePlusFromVS2( stack );
 
+        if ( parseLazily )
+        {
+            openLazily( imp, showImage, ! partialDataSet );
+            return( imp );
+        }
+
         // obtain file header informations for all c, t, z
         //
         try
@@ -137,7 +173,6 @@ public class BigDataProcessor
 
             // Spawn the threads
             //
-            ExecutorService es = Executors.newFixedThreadPool(numIOThreads);
             List<Future> futures = new ArrayList<>();
             for (int t = 0; t < imageDataInfo.nT; t++)
             {
@@ -146,7 +181,7 @@ public class BigDataProcessor
                     for (int z = 0; z < imageDataInfo.nZ; z++)
                     {
                         futures.add(
-                                es.submit(
+                                IOScheduler.getInstance().submit( IOScheduler.Pool.PARSING,
                                         new ParseFilesIntoVirtualStack(imp, t, z, showImage, throwFileNotExistsError)
                                 )
                         );
@@ -156,7 +191,7 @@ public class BigDataProcessor
                 {
                     // z = 0 will parse the whole stack file
                     futures.add(
-                            es.submit(
+                            IOScheduler.getInstance().submit( IOScheduler.Pool.PARSING,
                                     new ParseFilesIntoVirtualStack(imp, t, 0, showImage, throwFileNotExistsError)
                             )
                     );
@@ -172,6 +207,8 @@ public class BigDataProcessor
                             futures,
                             "Parsing files...",
                             2000);
+
+                    stack.saveHeaderIndex();
                 }
             });
             thread.start();
@@ -186,6 +223,40 @@ public class BigDataProcessor
 
     }
 
+    private void openLazily( ImagePlus imp, boolean showImage, boolean throwFileNotExistsError )
+    {
+        final VirtualStack2 stack = ( VirtualStack2 ) imp.getStack();
+
+        // the first file is needed to show the image
+        new ParseFilesIntoVirtualStack( imp, 0, 0, showImage, throwFileNotExistsError ).run();
+
+        // all other files are parsed on first access, or by this sweep, which only uses idle resources
+        Thread thread = new Thread( () -> stack.ensureAllFileInfos( throwFileNotExistsError ),
+                "BigDataProcessor header parsing" );
+        thread.setPriority( Thread.MIN_PRIORITY );
+        thread.setDaemon( true );
+
+        // the remaining headers are not needed anymore once the image is closed
+        ImagePlus.addImageListener( new ImageListener()
+        {
+            @Override
+            public void imageOpened( ImagePlus image ) { }
+
+            @Override
+            public void imageUpdated( ImagePlus image ) { }
+
+            @Override
+            public void imageClosed( ImagePlus image )
+            {
+                if ( image != imp ) return;
+                stack.stopHeaderSweep();
+                ImagePlus.removeImageListener( this );
+            }
+        } );
+
+        thread.start();
+    }
+
     public boolean setMissingInfos(
             ImageDataInfo imageDataInfo,
             String directory,
@@ -1280,6 +1351,8 @@ public class BigDataProcessor
 
         ImagePlus imp = new ImagePlus( new File( stack.getDirectory() ).getName() , stack);
 
+        stack.adaptResolutionToMagnification( imp );
+
         // todo: what does this do?
         //if (imp.getType() == ImagePlus.GRAY16 || imp.getType() == ImagePlus.GRAY32)
         //    imp.getProcessor().setMinAndMax(min, max);
@@ -1302,11 +1375,12 @@ public class BigDataProcessor
 
     /**
      * @param imp
-     * @param nIOthreads
+     * @param nIOthreads the number of threads of the shared I/O pools, see {@link #setNumIOThreads}
      * @return
      */
     public static ImagePlus loadVS2FullyIntoRAM(ImagePlus imp, int nIOthreads)
     {
+        setNumIOThreads( nIOthreads );
 
         // Initialize RAM image
         //
@@ -1318,12 +1392,13 @@ public class BigDataProcessor
         impRAM.setDimensions(dim[2], dim[3], dim[4]);
 
         // Multi-threaded loading into RAM (increases speed if SSDs are available)
+        // - the planes of each frame are read within the thread of the frame
         //
-        ExecutorService es = Executors.newFixedThreadPool(nIOthreads);
         List<Future> futures = new ArrayList<>();
         for (int t = 0; t < imp.getNFrames(); t++)
         {
-            futures.add(es.submit(new LoadFrameFromVS2IntoRAM(imp, t, impRAM, nIOthreads)));
+            futures.add( IOScheduler.getInstance().submit( IOScheduler.Pool.READING,
+                    new LoadFrameFromVS2IntoRAM(imp, t, impRAM, nIOthreads) ) );
         }
 
 
@@ -1351,23 +1426,13 @@ public class BigDataProcessor
 
     public void saveAsTiffPlanes( SavingSettings savingSettings )
     {
+        setNumIOThreads( savingSettings.nThreads );
 
         interruptSavingThreads = false;
 
-        // Do the jobs
+        // Read each channel and time point in slabs and write the planes in parallel
         //
-        ExecutorService es = Executors.newFixedThreadPool( savingSettings.nThreads );
-        List<Future> futures = new ArrayList<>();
-        for ( int c = 0; c < savingSettings.imp.getNChannels(); c++)
-        {
-            for (int t = 0; t < savingSettings.imp.getNFrames(); t++)
-            {
-                for (int z = 0; z < savingSettings.imp.getNSlices(); z++)
-                {
-                    futures.add( es.submit( new SaveVS2TiffPlane(this, c, t, z, savingSettings) ) );
-                }
-            }
-        }
+        List<Future> futures = new PlaneSavingPipeline( this, savingSettings ).start();
 
         // Monitor the progress
         //
@@ -1387,6 +1452,7 @@ public class BigDataProcessor
 
     public void saveAsStacks( SavingSettings savingSettings )
     {
+        setNumIOThreads( savingSettings.nThreads );
         Utils.createFilePathParentDirectories( savingSettings.filePath );
 
         interruptSavingThreads = false;
@@ -1399,10 +1465,15 @@ public class BigDataProcessor
                     numSavingThreads,
                     getImarisDataSet( savingSettings ) );
         else
+        {
+            if ( savingSettings.fileType.equals( Utils.FileType.HDF5 ) && savingSettings.saveVolumes )
+                Hdf5MasterFile.write( savingSettings );
+
             saveFilesForEachChannelAndTimePoint(
                     savingSettings,
                     numSavingThreads,
                     null );
+        }
 
     }
 
@@ -1411,25 +1482,16 @@ public class BigDataProcessor
             int numSavingThreads,
             ImarisDataSet imarisDataSet )
     {
-        // Save individual files for each channel and time-point
+        // Save individual files for each channel and time-point;
+        // reading, processing and writing run concurrently
         //
-        ExecutorService es = Executors.newFixedThreadPool( numSavingThreads );
-        List<Future> futures = new ArrayList<>();
 
-        AtomicInteger counter = new AtomicInteger(0);
-        final long startTime = System.currentTimeMillis();
+        SavingPipeline pipeline = new SavingPipeline( this,
+                savingSettings,
+                imarisDataSet,
+                numSavingThreads );
 
-        for (int t = 0; t < savingSettings.imp.getNFrames(); t++)
-        {
-            futures.add(
-                    es.submit(
-                        new SaveVS2Frame( this,
-                            t,
-                            savingSettings,
-                            imarisDataSet,
-                            counter,
-                            startTime) ) );
-        }
+        pipeline.start();
     }
 
     private ImarisDataSet getImarisDataSet( SavingSettings savingSettings )
@@ -1466,13 +1528,19 @@ public class BigDataProcessor
 
     private int getNumSavingThreads( SavingSettings savingSettings )
     {
-        int nSavingThreads = savingSettings.nThreads;
+        // Hdf5 and Imaris files are saved by several threads, because each channel and time point has its own file.
+        // Only the loading and processing runs in parallel though: the writes into the files are serialized,
+        // because it is not known whether the Hdf5 library is built thread-safe, see Hdf5Storage.WRITE_LOCK.
+        return savingSettings.nThreads;
+    }
 
-        if ( savingSettings.fileType.equals( Utils.FileType.HDF5 ) || savingSettings.fileType.equals( Utils.FileType.IMARIS ) )
-        {
-            nSavingThreads = 1; // H5 is not multi-threaded anyway.
-        }
-        return nSavingThreads;
+    /**
+     * All file I/O runs in the shared pools of the {@link IOScheduler}, thus the thread counts given
+     * to the public methods resize these pools; 0 or less keeps their current size.
+     */
+    public static void setNumIOThreads( int numIOThreads )
+    {
+        if ( numIOThreads > 0 ) IOScheduler.getInstance().setNumIOThreads( numIOThreads );
     }
 
     public void cancelSaving()
@@ -1511,7 +1579,10 @@ public class BigDataProcessor
 
             for ( int c = 0; c < nC; c++ )
             {
-                vs2.setInfoFromFile( c, t, z, logFileNotExistsError );
+                try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( vs2.getDirectory() ) )
+                {
+                    vs2.setInfoFromFile( c, t, z, logFileNotExistsError );
+                }
             }
 
             if ( t == 0 && z == 0 && showImage)
@@ -1540,10 +1611,9 @@ public class BigDataProcessor
 
             // show compression info
             //
-            FileInfoSer[][][] infos = vs2.getFileInfosSer();
-            if ( infos != null && infos[0][0][0] != null )
+            FileInfoSer fi0 = vs2.getFileInfoSer( 0, 0, 0 );
+            if ( fi0 != null )
             {
-                FileInfoSer fi0 = infos[0][0][0];
                 if (fi0.compression == 0)
                     logger.info("Compression = Unknown");
                 else if (fi0.compression == 1)
@@ -0,0 +1,158 @@
+package de.embl.cba.bigdataprocessor.save;
+
+import ij.ImagePlus;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The slabs of one channel and time point of a {@link SaveVS2Frame} for all binnings, which are read by the {@link SlabStack}s.
+ *
+ * Each slab is loaded once and binned for all binnings as a cascade, see {@link SaveVS2Frame#binCascaded}.
+ * The binned slabs are buffered per binning until the stack of that binning takes them; the binnings are meant
+ * to be written together, see {@link SaveVS2Frame#saveStreamed}, and a stack that is ahead of the others
+ * by more than {@link #MAX_SLABS_AHEAD} slabs waits for them, such that only a few slabs per binning are in memory.
+ * A stack that reads a slab again, or whose slab has been dropped, loads it again for itself.
+ */
+class CascadedSlabs
+{
+    static final int MAX_SLABS_AHEAD = 1;
+    private static final long POLL_INTERVAL_MILLIS = 200;
+
+    private final SaveVS2Frame frame;
+    private final int c;
+    private final int slabSize;
+    private final int nZ;
+
+    private final Map< Integer, ImagePlus >[] buffers; // per binning: slab index, binned slab
+    private final int[] nextSlabs; // per binning: the next slab its stack takes
+    private final boolean[] isFinished;
+    private int numLoadedSlabs = 0;
+
+    /**
+     * @param slabSize number of planes of the data cube per slab, a multiple of all binnings in z
+     */
+    @SuppressWarnings( "unchecked" )
+    CascadedSlabs( SaveVS2Frame frame, int c, int slabSize )
+    {
+        this.frame = frame;
+        this.c = c;
+        this.slabSize = slabSize;
+        this.nZ = frame.savingSettings.imp.getNSlices();
+
+        final int numBinnings = frame.getBinnings().size();
+        this.buffers = new Map[ numBinnings ];
+        for ( int i = 0; i < numBinnings; i++ ) buffers[ i ] = new HashMap<>();
+        this.nextSlabs = new int[ numBinnings ];
+        this.isFinished = new boolean[ numBinnings ];
+    }
+
+    ImagePlus getImagePlus()
+    {
+        return frame.savingSettings.imp;
+    }
+
+    int getSlabSize()
+    {
+        return slabSize;
+    }
+
+    /**
+     * Hands the binned slab over to the caller, such that it is not kept here any longer.
+     *
+     * @return null if saving has been stopped or the slab could not be loaded
+     */
+    synchronized ImagePlus take( int binningIndex, int slabIndex )
+    {
+        // wait for the other binnings rather than buffering more of their slabs
+        while ( slabIndex >= numLoadedSlabs && slabIndex - getSlowestNextSlab() > MAX_SLABS_AHEAD )
+        {
+            if ( frame.bigDataProcessor.interruptSavingThreads ) return null;
+
+            try
+            {
+                wait( POLL_INTERVAL_MILLIS );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        if ( frame.bigDataProcessor.interruptSavingThreads ) return null;
+
+        ImagePlus slab = buffers[ binningIndex ].remove( slabIndex );
+
+        if ( slab == null )
+        {
+            if ( slabIndex == numLoadedSlabs ) loadNext();
+            else reload( binningIndex, slabIndex );
+
+            slab = buffers[ binningIndex ].remove( slabIndex );
+        }
+
+        nextSlabs[ binningIndex ] = slabIndex + 1;
+        notifyAll();
+
+        return slab;
+    }
+
+    /**
+     * Called when the stack of the binning has been written or writing it failed,
+     * such that no more slabs are buffered for it and the other binnings do not wait for it.
+     */
+    synchronized void finish( int binningIndex )
+    {
+        isFinished[ binningIndex ] = true;
+        buffers[ binningIndex ].clear();
+        notifyAll();
+    }
+
+    private int getSlowestNextSlab()
+    {
+        int slowest = Integer.MAX_VALUE;
+        for ( int i = 0; i < nextSlabs.length; i++ )
+        {
+            if ( ! isFinished[ i ] ) slowest = Math.min( slowest, nextSlabs[ i ] );
+        }
+        return slowest;
+    }
+
+    /**
+     * Loads the next slab for all binnings that have not passed it yet.
+     */
+    private void loadNext()
+    {
+        final int slabIndex = numLoadedSlabs;
+
+        bin( slabIndex, ( i, binned ) ->
+        {
+            if ( ! isFinished[ i ] && nextSlabs[ i ] <= slabIndex ) buffers[ i ].put( slabIndex, binned );
+            return true;
+        } );
+
+        numLoadedSlabs++;
+    }
+
+    /**
+     * Loads a slab again for one binning only.
+     */
+    private void reload( int binningIndex, int slabIndex )
+    {
+        bin( slabIndex, ( i, binned ) ->
+        {
+            if ( i == binningIndex ) buffers[ i ].put( slabIndex, binned );
+            return true;
+        } );
+    }
+
+    private void bin( int slabIndex, SaveVS2Frame.BinnedConsumer consumer )
+    {
+        final int zStart = slabIndex * slabSize;
+        final ImagePlus imp = frame.loadSlab( c, zStart, Math.min( slabSize, nZ - zStart ) );
+        if ( imp == null ) return;
+
+        frame.binCascaded( imp, consumer );
+    }
+}
@@ -0,0 +1,204 @@
+package de.embl.cba.bigdataprocessor.save;
+
+import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
+import de.embl.cba.bigdataprocessor.log.Logger;
+import de.embl.cba.bigdataprocessor.utils.IOScheduler;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.plugin.Binner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Gates, converts and bins 8-bit and 16-bit data cubes in one pass over the pixels,
+ * rather than in one pass per operation, each creating a new stack.
+ *
+ * Gating and the intensity mapping of the conversion are combined into one lookup table;
+ * they give the same values as {@link SaveVS2Frame#gate} and ImageJ's 8-bit and 16-bit conversion.
+ * The output planes are computed in parallel in the compression pool of the {@link IOScheduler}.
+ * Averages are rounded to the nearest integer in one step, whereas ImageJ's {@link Binner} bins in x and y and then in z.
+ */
+class CubeProcessor
+{
+    private static Logger logger = new IJLazySwingLogger();
+
+    private final int inputBitDepth;
+    private final int outputBitDepth;
+    private final int[] lut;
+    private final boolean isIdentity;
+
+    CubeProcessor( SavingSettings savingSettings, int inputBitDepth )
+    {
+        this.inputBitDepth = inputBitDepth;
+
+        int outputBitDepth = inputBitDepth;
+        if ( savingSettings.convertTo8Bit ) outputBitDepth = 8;
+        if ( savingSettings.convertTo16Bit ) outputBitDepth = 16;
+        this.outputBitDepth = outputBitDepth;
+
+        lut = new int[ 1 << inputBitDepth ];
+        boolean isIdentity = outputBitDepth == inputBitDepth;
+
+        for ( int v = 0; v < lut.length; v++ )
+        {
+            int value = v;
+
+            if ( savingSettings.gate && ( value < savingSettings.gateMin || value > savingSettings.gateMax ) )
+            {
+                value = 0;
+            }
+
+            // 8-bit data are not changed by the 8-bit conversion
+            if ( savingSettings.convertTo8Bit && inputBitDepth == 16 )
+            {
+                value = mapTo8Bit( value, savingSettings.mapTo0, savingSettings.mapTo255 );
+            }
+
+            lut[ v ] = value;
+            isIdentity &= value == v;
+        }
+
+        this.isIdentity = isIdentity;
+    }
+
+    /**
+     * Only bins, for data cubes that are already gated and converted.
+     */
+    CubeProcessor( int bitDepth )
+    {
+        this( new SavingSettings(), bitDepth );
+    }
+
+    /**
+     * As ImageJ's conversion of 16-bit to 8-bit data with scaling.
+     */
+    private static int mapTo8Bit( int value, int min, int max )
+    {
+        final double scale = 256.0 / ( max - min + 1 );
+        value = Math.max( 0, value - min );
+        return Math.min( 255, ( int ) ( value * scale + 0.5 ) );
+    }
+
+    static boolean isSupported( ImagePlus imp, int method )
+    {
+        return ( imp.getBitDepth() == 8 || imp.getBitDepth() == 16 )
+                && ( method == Binner.AVERAGE || method == Binner.MIN || method == Binner.MAX );
+    }
+
+    /**
+     * @return the given image if there is nothing to do
+     */
+    ImagePlus process( ImagePlus imp, int[] binning, int method )
+    {
+        final int bx = Math.max( 1, binning[ 0 ] );
+        final int by = Math.max( 1, binning[ 1 ] );
+        final int bz = Math.max( 1, binning[ 2 ] );
+
+        if ( isIdentity && bx == 1 && by == 1 && bz == 1 ) return imp;
+
+        final ImageStack input = imp.getStack();
+        final int w = input.getWidth() / bx;
+        final int h = input.getHeight() / by;
+        final int d = Math.max( 1, input.getSize() / bz );
+
+        final Object[] inputPlanes = new Object[ input.getSize() ];
+        for ( int z = 0; z < inputPlanes.length; z++ ) inputPlanes[ z ] = input.getPixels( z + 1 );
+
+        final Object[] outputPlanes = new Object[ d ];
+        final int numTasks = Math.min( d, IOScheduler.getInstance().getNumThreads( IOScheduler.Pool.COMPRESSION ) );
+
+        final List< Future< ? > > futures = new ArrayList<>();
+        for ( int task = 0; task < numTasks; task++ )
+        {
+            final int first = ( int ) ( ( long ) d * task / numTasks );
+            final int last = ( int ) ( ( long ) d * ( task + 1 ) / numTasks );
+            futures.add( IOScheduler.getInstance().submit( IOScheduler.Pool.COMPRESSION, () ->
+            {
+                for ( int z = first; z < last; z++ )
+                {
+                    outputPlanes[ z ] = processPlane( inputPlanes, input.getWidth(), z, w, h, bx, by, bz, method );
+                }
+            } ) );
+        }
+
+        for ( Future< ? > future : futures )
+        {
+            try
+            {
+                future.get();
+            }
+            catch ( InterruptedException | ExecutionException e )
+            {
+                logger.error( "Processing failed: " + e.toString() );
+                return null;
+            }
+        }
+
+        final ImageStack output = new ImageStack( w, h );
+        for ( Object plane : outputPlanes ) output.addSlice( "", plane );
+
+        final ImagePlus impOutput = new ImagePlus( imp.getTitle(), output );
+        final Calibration calibration = imp.getCalibration().copy();
+        calibration.pixelWidth *= bx;
+        calibration.pixelHeight *= by;
+        calibration.pixelDepth *= bz;
+        impOutput.setCalibration( calibration );
+
+        return impOutput;
+    }
+
+    /**
+     * Computes the output plane z from the input planes z * bz, ..., z * bz + bz - 1.
+     */
+    private Object processPlane( Object[] inputPlanes, int inputWidth, int z, int w, int h,
+                                 int bx, int by, int bz, int method )
+    {
+        final byte[] output8 = outputBitDepth == 8 ? new byte[ w * h ] : null;
+        final short[] output16 = outputBitDepth == 16 ? new short[ w * h ] : null;
+
+        final int zStart = z * bz;
+        final int zEnd = Math.min( zStart + bz, inputPlanes.length );
+        final int n = bx * by * ( zEnd - zStart );
+
+        for ( int y = 0; y < h; y++ )
+        {
+            for ( int x = 0; x < w; x++ )
+            {
+                long sum = 0;
+                int min = Integer.MAX_VALUE;
+                int max = Integer.MIN_VALUE;
+
+                for ( int zz = zStart; zz < zEnd; zz++ )
+                {
+                    final Object plane = inputPlanes[ zz ];
+                    for ( int yy = y * by; yy < y * by + by; yy++ )
+                    {
+                        int i = yy * inputWidth + x * bx;
+                        for ( int xx = 0; xx < bx; xx++, i++ )
+                        {
+                            final int value = inputBitDepth == 8 ?
+                                    lut[ ( ( byte[] ) plane )[ i ] & 0xff ] : lut[ ( ( short[] ) plane )[ i ] & 0xffff ];
+                            sum += value;
+                            if ( value < min ) min = value;
+                            if ( value > max ) max = value;
+                        }
+                    }
+                }
+
+                final int value;
+                if ( method == Binner.MIN ) value = min;
+                else if ( method == Binner.MAX ) value = max;
+                else value = ( int ) ( ( sum + n / 2 ) / n );
+
+                if ( output8 != null ) output8[ y * w + x ] = ( byte ) value;
+                else output16[ y * w + x ] = ( short ) value;
+            }
+        }
+
+        return output8 != null ? output8 : output16;
+    }
+}
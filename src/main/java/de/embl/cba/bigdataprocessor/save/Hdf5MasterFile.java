@@ -0,0 +1,75 @@
+package de.embl.cba.bigdataprocessor.save;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
+import de.embl.cba.bigdataprocessor.log.Logger;
+import de.embl.cba.bigdataprocessor.utils.Utils;
+
+import java.io.File;
+
+/**
+ * Each channel and time point is saved as Hdf5 into its own file, such that several threads can save at once;
+ * the Hdf5 writes themselves are serialized, see {@link Hdf5Storage#WRITE_LOCK}.
+ * The master file links to the data sets in these files, such that the whole data set can be opened from one file,
+ * similar to the meta.ims file that combines Imaris files.
+ *
+ * The links point to the file names without directory, which Hdf5 resolves relative to the master file.
+ */
+public class Hdf5MasterFile
+{
+    public static final String MASTER_FILE_SUFFIX = "--master.h5";
+
+    private static Logger logger = new IJLazySwingLogger();
+
+    /**
+     * Writes one master file per binning, with the links /Cxx/Txxxxx to the data sets of the channels and time points.
+     */
+    public static void write( SavingSettings savingSettings )
+    {
+        for ( String binning : savingSettings.bin.split(";") )
+        {
+            int[] binningA = Utils.delimitedStringToIntegerArray( binning, "," );
+
+            synchronized ( Hdf5Storage.WRITE_LOCK )
+            {
+                write( SaveVS2Frame.getOutputPath( savingSettings, binningA ),
+                        savingSettings.imp.getNChannels(),
+                        savingSettings.imp.getNFrames() );
+            }
+        }
+    }
+
+    private static void write( String path, int nC, int nT )
+    {
+        final String fileName = new File( path ).getName();
+
+        IHDF5Writer writer = null;
+        try
+        {
+            writer = HDF5Factory.configure( path + MASTER_FILE_SUFFIX ).overwrite().writer();
+
+            for ( int c = 0; c < nC; c++ )
+            {
+                final String group = String.format( "C%1$02d", c );
+                writer.object().createGroup( group );
+
+                for ( int t = 0; t < nT; t++ )
+                {
+                    final String target = SaveVS2Frame.getHdf5FilePath( fileName, c, t );
+                    writer.object().createExternalLink( target,
+                            SaveVS2Frame.HDF5_DATA_SET,
+                            group + "/" + String.format( "T%1$05d", t ) );
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            logger.error( "Could not write the Hdf5 master file " + path + MASTER_FILE_SUFFIX + ": " + e.toString() );
+        }
+        finally
+        {
+            if ( writer != null ) writer.close();
+        }
+    }
+}
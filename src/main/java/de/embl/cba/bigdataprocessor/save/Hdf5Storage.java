@@ -0,0 +1,81 @@
+package de.embl.cba.bigdataprocessor.save;
+
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+
+/**
+ * The chunk shape and compression of the Hdf5 data sets, see the hdf5 fields of {@link SavingSettings}.
+ *
+ * Reading any part of a chunk reads and decompresses the whole chunk, thus the chunks should match
+ * how the files are read later: planes for browsing them plane by plane, as done by VirtualStack2,
+ * or cubic blocks for reading 3D regions, as done by BigDataViewer.
+ */
+public class Hdf5Storage
+{
+    public enum AccessPattern
+    {
+        PLANES,
+        BLOCKS
+    }
+
+    public static final int DEFAULT_DEFLATE_LEVEL = 4;
+
+    /**
+     * Saving does not rely on the Hdf5 library being built thread-safe: all Hdf5 and Imaris files are written
+     * while holding this lock, such that only the loading and processing of the data runs in parallel.
+     * Acquire it after the device access of the file, never the other way round.
+     */
+    static final Object WRITE_LOCK = new Object();
+
+    // chunks fit into the default chunk cache of Hdf5 of 1 MB per data set
+    private static final long TARGET_CHUNK_BYTES = 1024 * 1024;
+
+    static HDF5IntStorageFeatures getFeatures( SavingSettings savingSettings )
+    {
+        if ( savingSettings.hdf5DeflateLevel <= 0 )
+        {
+            return HDF5IntStorageFeatures.createDeflationDelete( 0 );
+        }
+
+        return HDF5IntStorageFeatures.build()
+                .deflateLevel( ( byte ) Math.min( 9, savingSettings.hdf5DeflateLevel ) )
+                .shuffleBeforeDeflate( savingSettings.hdf5Shuffle )
+                .features();
+    }
+
+    /**
+     * @return the chunk dimensions in the order z, y, x of the data sets;
+     * the ones given in {@link SavingSettings#hdf5ChunkDimensions} or else chosen for the access pattern
+     */
+    static int[] getChunkDimensions( SavingSettings savingSettings, int nX, int nY, int nZ, int bytesPerPixel )
+    {
+        final int[] chunk;
+
+        if ( savingSettings.hdf5ChunkDimensions != null )
+        {
+            // given as x, y, z, as the binning
+            chunk = new int[]{
+                    savingSettings.hdf5ChunkDimensions[ 2 ],
+                    savingSettings.hdf5ChunkDimensions[ 1 ],
+                    savingSettings.hdf5ChunkDimensions[ 0 ] };
+        }
+        else if ( savingSettings.hdf5AccessPattern == AccessPattern.BLOCKS )
+        {
+            // the largest cube with a power of two edge length that fits the target size
+            int edge = 1;
+            while ( 8L * edge * edge * edge * bytesPerPixel <= TARGET_CHUNK_BYTES ) edge *= 2;
+            chunk = new int[]{ edge, edge, edge };
+        }
+        else
+        {
+            // full rows of one plane
+            final long bytesPerRow = ( long ) nX * bytesPerPixel;
+            chunk = new int[]{ 1, ( int ) Math.max( 1, TARGET_CHUNK_BYTES / bytesPerRow ), nX };
+        }
+
+        chunk[ 0 ] = Math.max( 1, Math.min( nZ, chunk[ 0 ] ) );
+        chunk[ 1 ] = Math.max( 1, Math.min( nY, chunk[ 1 ] ) );
+        chunk[ 2 ] = Math.max( 1, Math.min( nX, chunk[ 2 ] ) );
+
+        return chunk;
+    }
+}
@@ -0,0 +1,431 @@
+package de.embl.cba.bigdataprocessor.save;
+
+import ch.systemsx.cisd.base.mdarray.MDByteArray;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
+import de.embl.cba.bigdataprocessor.log.Logger;
+import de.embl.cba.bigdataprocessor.utils.IOScheduler;
+import de.embl.cba.imaris.ImarisDataSet;
+import de.embl.cba.imaris.ImarisUtils;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the resolution pyramid of one channel and time point of an {@link ImarisDataSet} into the file
+ * that its header file links to, with the same layout as the H5DataCubeWriter of imaris-writer:
+ * the groups "ResolutionLevel r" with the attributes ImageSizeX, ImageSizeY, ImageSizeZ, HistogramMin and HistogramMax,
+ * each containing the data set "Data" and the data set "Histogram" with 256 bins.
+ *
+ * Each level is computed from the previous one in windows of planes. The planes of a window are split into
+ * z-slabs, which are binned in parallel in the compression pool of the {@link IOScheduler}; the histogram of the
+ * planes is computed in the same pass. The planes are written by the single Hdf5 writing thread of the
+ * {@link IOScheduler} while the next window is computed, such that saving is limited by writing rather than by computing.
+ */
+class ImarisPyramidWriter
+{
+    private static final String HISTOGRAM = "Histogram";
+    private static final int NUM_HISTOGRAM_BINS = 256;
+
+    // windows of planes of a level are binned in at least this many slabs, such that all threads are busy
+    private static final int SLABS_PER_THREAD = 2;
+
+    private static Logger logger = new IJLazySwingLogger();
+
+    private final ArrayList< long[] > dimensions; // per level: x, y, z
+    private final ArrayList< long[] > chunks; // per level: x, y, z
+    private final String path;
+
+    // only used by the Hdf5 writing thread
+    private IHDF5Writer writer;
+
+    private Future< Void > pendingWrite;
+
+    /**
+     * @param path the file of the channel and time point, as linked by the header file of the data set
+     */
+    ImarisPyramidWriter( ImarisDataSet dataSet, String path )
+    {
+        this.dimensions = dataSet.getDimensions();
+        this.chunks = dataSet.getChunks();
+        this.path = path;
+    }
+
+    static boolean isSupported( ImagePlus imp )
+    {
+        return imp.getBitDepth() == 8 || imp.getBitDepth() == 16;
+    }
+
+    /**
+     * Writes all levels, the first one being the given data cube.
+     */
+    void write( ImagePlus imp ) throws Exception
+    {
+        final int bitDepth = imp.getBitDepth();
+        final Calibration calibration = imp.getCalibration();
+        final double[] voxelSize = new double[]{ calibration.pixelWidth, calibration.pixelHeight, calibration.pixelDepth };
+
+        final ImageStack stack = imp.getStack();
+        int w = stack.getWidth();
+        int h = stack.getHeight();
+        int d = stack.getSize();
+        Object[] planes = null; // the levels after the first, which is read from the stack
+
+        try
+        {
+            submitWrite( () ->
+            {
+                writer = HDF5Factory.configure( path ).useSimpleDataSpaceForAttributes().overwrite().writer();
+                return null;
+            } );
+
+            for ( int level = 0; level < dimensions.size(); level++ )
+            {
+                final int[] factors = new int[]{ 1, 1, 1 };
+                final int[] nextSize = new int[ 3 ];
+                final boolean hasNext = level + 1 < dimensions.size();
+                if ( hasNext )
+                {
+                    final long[] next = dimensions.get( level + 1 );
+                    final int[] size = new int[]{ w, h, d };
+                    for ( int i = 0; i < 3; i++ )
+                    {
+                        nextSize[ i ] = ( int ) next[ i ];
+                        factors[ i ] = ( int ) Math.max( 1, Math.round( ( double ) size[ i ] / Math.max( 1, next[ i ] ) ) );
+                    }
+                }
+
+                final int fLevel = level;
+                final int fw = w, fh = h, fd = d;
+                final double[] fVoxelSize = voxelSize.clone();
+                submitWrite( () -> createDataSet( fLevel, bitDepth, fw, fh, fd, fVoxelSize ) );
+
+                final Object[] nextPlanes = hasNext ? new Object[ nextSize[ 2 ] ] : null;
+                final long[] histogram = new long[ 1 << bitDepth ];
+
+                final int windowSize = getWindowSize( level, factors[ 2 ], d );
+                for ( int zStart = 0; zStart < d; zStart += windowSize )
+                {
+                    final Object[] window = new Object[ Math.min( windowSize, d - zStart ) ];
+                    for ( int i = 0; i < window.length; i++ )
+                    {
+                        // in z order, as the planes of the stack may be loaded on demand
+                        window[ i ] = planes == null ? stack.getPixels( zStart + i + 1 ) : planes[ zStart + i ];
+                    }
+
+                    binAndCountWindow( window, zStart, w, h, bitDepth, factors, nextSize, nextPlanes, histogram );
+
+                    final int fzStart = zStart;
+                    submitWrite( () -> writePlanes( fLevel, window, fzStart, fw, fh ) );
+                }
+
+                submitWrite( () -> writeHistogram( fLevel, histogram ) );
+
+                planes = nextPlanes;
+                w = nextSize[ 0 ];
+                h = nextSize[ 1 ];
+                d = nextSize[ 2 ];
+                for ( int i = 0; i < 3; i++ ) voxelSize[ i ] *= factors[ i ];
+            }
+
+            awaitPendingWrite();
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+    /**
+     * A multiple of the binning in z and of the chunks in z, such that the windows are binned independently
+     * and write whole chunks.
+     */
+    private int getWindowSize( int level, int zFactor, int d )
+    {
+        final int chunkZ = ( int ) Math.max( 1, chunks.get( level )[ 2 ] );
+        final int unit = SaveVS2Frame.leastCommonMultiple( zFactor, chunkZ );
+        final int numThreads = IOScheduler.getInstance().getNumThreads( IOScheduler.Pool.COMPRESSION );
+        final int minSize = SLABS_PER_THREAD * numThreads * zFactor;
+        return Math.max( unit, Math.min( ( d + unit - 1 ) / unit, ( minSize + unit - 1 ) / unit ) * unit );
+    }
+
+    /**
+     * Bins the planes of the window into the planes of the next level and adds them to the histogram,
+     * in slabs of whole binnings in z that are processed in parallel.
+     */
+    private void binAndCountWindow( Object[] window, int zStart, int w, int h, int bitDepth,
+                                    int[] factors, int[] nextSize, Object[] nextPlanes, long[] histogram )
+            throws InterruptedException, ExecutionException
+    {
+        final int fz = factors[ 2 ];
+        final int numUnits = ( window.length + fz - 1 ) / fz;
+        final int numTasks = Math.min( numUnits, IOScheduler.getInstance().getNumThreads( IOScheduler.Pool.COMPRESSION ) );
+
+        final List< Future< long[] > > futures = new ArrayList<>();
+        for ( int task = 0; task < numTasks; task++ )
+        {
+            final int firstUnit = ( int ) ( ( long ) numUnits * task / numTasks );
+            final int lastUnit = ( int ) ( ( long ) numUnits * ( task + 1 ) / numTasks );
+
+            futures.add( IOScheduler.getInstance().submit( IOScheduler.Pool.COMPRESSION, () ->
+            {
+                final long[] slabHistogram = new long[ histogram.length ];
+
+                for ( int i = firstUnit * fz; i < Math.min( window.length, lastUnit * fz ); i++ )
+                {
+                    count( window[ i ], bitDepth, slabHistogram );
+                }
+
+                if ( nextPlanes != null )
+                {
+                    for ( int unit = firstUnit; unit < lastUnit; unit++ )
+                    {
+                        final int z = zStart / fz + unit;
+                        if ( z >= nextPlanes.length ) break;
+                        nextPlanes[ z ] = binPlane( window, unit * fz, w, h, bitDepth, factors, nextSize );
+                    }
+                }
+
+                return slabHistogram;
+            } ) );
+        }
+
+        for ( Future< long[] > future : futures )
+        {
+            final long[] slabHistogram = future.get();
+            for ( int v = 0; v < histogram.length; v++ ) histogram[ v ] += slabHistogram[ v ];
+        }
+    }
+
+    private static void count( Object plane, int bitDepth, long[] histogram )
+    {
+        if ( bitDepth == 8 )
+        {
+            for ( byte value : ( byte[] ) plane ) histogram[ value & 0xff ]++;
+        }
+        else
+        {
+            for ( short value : ( short[] ) plane ) histogram[ value & 0xffff ]++;
+        }
+    }
+
+    /**
+     * Averages the voxels of the window from plane zStart on; binnings at the border of the level may be incomplete.
+     */
+    private static Object binPlane( Object[] window, int zStart, int w, int h, int bitDepth,
+                                    int[] factors, int[] nextSize )
+    {
+        final int nw = nextSize[ 0 ];
+        final int nh = nextSize[ 1 ];
+        final byte[] output8 = bitDepth == 8 ? new byte[ nw * nh ] : null;
+        final short[] output16 = bitDepth == 16 ? new short[ nw * nh ] : null;
+
+        final int zEnd = Math.min( zStart + factors[ 2 ], window.length );
+
+        for ( int y = 0; y < nh; y++ )
+        {
+            final int yStart = y * factors[ 1 ];
+            final int yEnd = Math.min( yStart + factors[ 1 ], h );
+
+            for ( int x = 0; x < nw; x++ )
+            {
+                final int xStart = x * factors[ 0 ];
+                final int xEnd = Math.min( xStart + factors[ 0 ], w );
+
+                long sum = 0;
+                int n = 0;
+                for ( int z = zStart; z < zEnd; z++ )
+                {
+                    for ( int yy = yStart; yy < yEnd; yy++ )
+                    {
+                        int i = yy * w + xStart;
+                        if ( output8 != null )
+                        {
+                            final byte[] plane = ( byte[] ) window[ z ];
+                            for ( int xx = xStart; xx < xEnd; xx++, i++ ) sum += plane[ i ] & 0xff;
+                        }
+                        else
+                        {
+                            final short[] plane = ( short[] ) window[ z ];
+                            for ( int xx = xStart; xx < xEnd; xx++, i++ ) sum += plane[ i ] & 0xffff;
+                        }
+                        n += Math.max( 0, xEnd - xStart );
+                    }
+                }
+
+                final int value = n == 0 ? 0 : ( int ) ( ( sum + n / 2 ) / n );
+                if ( output8 != null ) output8[ y * nw + x ] = ( byte ) value;
+                else output16[ y * nw + x ] = ( short ) value;
+            }
+        }
+
+        return output8 != null ? output8 : output16;
+    }
+
+    /**
+     * Waits for the previous write before handing over the next one, such that at most one window
+     * per data cube is waiting to be written.
+     */
+    private void submitWrite( Callable< Void > write ) throws InterruptedException, ExecutionException
+    {
+        awaitPendingWrite();
+
+        pendingWrite = IOScheduler.getInstance().submit( IOScheduler.Pool.HDF5_WRITING, () ->
+        {
+            try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( path ) )
+            {
+                synchronized ( Hdf5Storage.WRITE_LOCK )
+                {
+                    return write.call();
+                }
+            }
+        } );
+    }
+
+    private void awaitPendingWrite() throws InterruptedException, ExecutionException
+    {
+        if ( pendingWrite == null ) return;
+
+        try
+        {
+            pendingWrite.get();
+        }
+        finally
+        {
+            pendingWrite = null;
+        }
+    }
+
+    private void close()
+    {
+        try
+        {
+            // after a failure, the pending write may still be running
+            awaitPendingWrite();
+        }
+        catch ( Exception e )
+        {
+            // the first failure is reported by write
+        }
+
+        try
+        {
+            submitWrite( () ->
+            {
+                if ( writer != null ) writer.close();
+                writer = null;
+                return null;
+            } );
+            awaitPendingWrite();
+        }
+        catch ( Exception e )
+        {
+            logger.warning( "Could not close " + path + ": " + e.toString() );
+        }
+    }
+
+    private static String getGroup( int level )
+    {
+        return ImarisUtils.RESOLUTION_LEVEL + level;
+    }
+
+    private Void createDataSet( int level, int bitDepth, int w, int h, int d, double[] voxelSize )
+    {
+        final String group = getGroup( level );
+        final String dataSet = group + "/" + SaveVS2Frame.HDF5_DATA_SET;
+
+        final long[] chunk = chunks.get( level );
+        final long[] dimensions = new long[]{ d, h, w };
+        final int[] blockDimensions = new int[]{
+                ( int ) Math.max( 1, Math.min( chunk[ 2 ], d ) ),
+                ( int ) Math.max( 1, Math.min( chunk[ 1 ], h ) ),
+                ( int ) Math.max( 1, Math.min( chunk[ 0 ], w ) ) };
+
+        if ( bitDepth == 8 )
+        {
+            writer.uint8().createMDArray( dataSet, dimensions, blockDimensions, HDF5IntStorageFeatures.INT_NO_COMPRESSION );
+        }
+        else
+        {
+            writer.uint16().createMDArray( dataSet, dimensions, blockDimensions, HDF5IntStorageFeatures.INT_NO_COMPRESSION );
+        }
+
+        writer.float64().setArrayAttr( dataSet, "element_size_um", new double[]{ voxelSize[ 2 ], voxelSize[ 1 ], voxelSize[ 0 ] } );
+
+        setImarisAttribute( group, "ImageSizeX", "" + w );
+        setImarisAttribute( group, "ImageSizeY", "" + h );
+        setImarisAttribute( group, "ImageSizeZ", "" + d );
+
+        return null;
+    }
+
+    private Void writePlanes( int level, Object[] window, int zStart, int w, int h )
+    {
+        final String dataSet = getGroup( level ) + "/" + SaveVS2Frame.HDF5_DATA_SET;
+        final int[] blockDimensions = new int[]{ window.length, h, w };
+        final long[] offset = new long[]{ zStart, 0, 0 };
+        final int planeSize = w * h;
+
+        if ( window[ 0 ] instanceof byte[] )
+        {
+            final MDByteArray block = new MDByteArray( blockDimensions );
+            final byte[] flat = block.getAsFlatArray();
+            for ( int i = 0; i < window.length; i++ ) System.arraycopy( window[ i ], 0, flat, i * planeSize, planeSize );
+            writer.uint8().writeMDArrayBlockWithOffset( dataSet, block, offset );
+        }
+        else
+        {
+            final MDShortArray block = new MDShortArray( blockDimensions );
+            final short[] flat = block.getAsFlatArray();
+            for ( int i = 0; i < window.length; i++ ) System.arraycopy( window[ i ], 0, flat, i * planeSize, planeSize );
+            writer.uint16().writeMDArrayBlockWithOffset( dataSet, block, offset );
+        }
+
+        return null;
+    }
+
+    /**
+     * Writes the histogram with 256 bins between the smallest and the largest value of the level.
+     *
+     * @param counts the number of voxels for each value
+     */
+    private Void writeHistogram( int level, long[] counts )
+    {
+        int min = 0;
+        while ( min < counts.length - 1 && counts[ min ] == 0 ) min++;
+        int max = counts.length - 1;
+        while ( max > min && counts[ max ] == 0 ) max--;
+
+        final long[] bins = new long[ NUM_HISTOGRAM_BINS ];
+        for ( int v = min; v <= max; v++ )
+        {
+            bins[ ( int ) ( ( long ) ( v - min ) * NUM_HISTOGRAM_BINS / ( max - min + 1 ) ) ] += counts[ v ];
+        }
+
+        final String group = getGroup( level );
+        writer.uint64().writeArray( group + "/" + HISTOGRAM, bins );
+        setImarisAttribute( group, "HistogramMin", "" + ( double ) min );
+        setImarisAttribute( group, "HistogramMax", "" + ( double ) max );
+
+        return null;
+    }
+
+    /**
+     * Imaris attributes are arrays of single characters, as written by the header file.
+     */
+    private void setImarisAttribute( String objectPath, String name, String value )
+    {
+        final String[] characters = new String[ value.length() ];
+        for ( int i = 0; i < characters.length; i++ ) characters[ i ] = value.substring( i, i + 1 );
+        writer.string().setArrayAttr( objectPath, name, characters );
+    }
+}
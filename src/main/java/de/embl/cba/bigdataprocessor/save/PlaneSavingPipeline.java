@@ -0,0 +1,148 @@
+package de.embl.cba.bigdataprocessor.save;
+
+import de.embl.cba.bigdataprocessor.BigDataProcessor;
+import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
+import de.embl.cba.bigdataprocessor.log.Logger;
+import de.embl.cba.bigdataprocessor.utils.IOScheduler;
+import de.embl.cba.bigdataprocessor.utils.MemoryBudget;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves all planes as individual Tiff files.
+ *
+ * Rather than reading every plane on its own, the planes of each channel and time point are read in slabs,
+ * with one multi-threaded data cube read, which for stack files turns many random reads into one sequential read.
+ * The planes of a slab are then written in parallel in the writing pool of the {@link IOScheduler},
+ * while the next slab is read. The slabs are only read once their memory fits into the {@link MemoryBudget}.
+ *
+ * The reading runs in its own thread, because reading a data cube itself submits tasks to the reading pool.
+ */
+public class PlaneSavingPipeline
+{
+    // slabs are small compared to the memory budget, such that several can be written at once
+    private static final int SLABS_PER_MEMORY_BUDGET = 8;
+
+    private static Logger logger = new IJLazySwingLogger();
+
+    private final BigDataProcessor bigDataProcessor;
+    private final SavingSettings savingSettings;
+
+    private final List< CompletableFuture< Void > > futures = new ArrayList<>();
+
+    public PlaneSavingPipeline( BigDataProcessor bigDataProcessor, SavingSettings savingSettings )
+    {
+        this.bigDataProcessor = bigDataProcessor;
+        this.savingSettings = savingSettings;
+    }
+
+    /**
+     * Starts saving and returns immediately.
+     *
+     * @return one future per channel and time point, which is done once all its planes are saved
+     */
+    public List< Future > start()
+    {
+        final ImagePlus imp = savingSettings.imp;
+
+        for ( int i = 0; i < imp.getNFrames() * imp.getNChannels(); i++ )
+        {
+            futures.add( new CompletableFuture<>() );
+        }
+
+        final Thread thread = new Thread( this::read, "BigDataProcessor saving read" );
+        thread.setDaemon( true );
+        thread.start();
+
+        return new ArrayList<>( futures );
+    }
+
+    private void read()
+    {
+        final ImagePlus imp = savingSettings.imp;
+        final int nZ = imp.getNSlices();
+
+        final long bytesPerPlane = ( long ) imp.getWidth() * imp.getHeight() * imp.getBytesPerPixel();
+        final long slabBytes = MemoryBudget.getInstance().getMaxBytes() / SLABS_PER_MEMORY_BUDGET;
+        final int slabSize = ( int ) Math.max( 1, Math.min( nZ, slabBytes / Math.max( 1, bytesPerPlane ) ) );
+
+        boolean isReadingComplete = false;
+
+        try
+        {
+            for ( int t = 0; t < imp.getNFrames(); t++ )
+            {
+                for ( int c = 0; c < imp.getNChannels(); c++ )
+                {
+                    final CompletableFuture< Void > future = futures.get( t * imp.getNChannels() + c );
+                    final AtomicInteger remainingPlanes = new AtomicInteger( nZ );
+
+                    for ( int zStart = 0; zStart < nZ; zStart += slabSize )
+                    {
+                        if ( bigDataProcessor.interruptSavingThreads ) return;
+
+                        final int nz = Math.min( slabSize, nZ - zStart );
+
+                        final MemoryBudget.Reservation reservation =
+                                MemoryBudget.getInstance().reserve( nz * bytesPerPlane );
+
+                        final ImageStack slab;
+                        try
+                        {
+                            slab = SaveVS2Frame.loadDataCube( savingSettings, c, t, zStart, nz ).getStack();
+                        }
+                        catch ( Exception e )
+                        {
+                            reservation.close();
+                            throw e;
+                        }
+
+                        final AtomicInteger remainingSlabPlanes = new AtomicInteger( nz );
+                        for ( int z = zStart; z < zStart + nz; z++ )
+                        {
+                            final SaveVS2TiffPlane savePlane = new SaveVS2TiffPlane( bigDataProcessor,
+                                    c, t, z, savingSettings, slab.getProcessor( z - zStart + 1 ) );
+
+                            IOScheduler.getInstance().submit( IOScheduler.Pool.WRITING, () ->
+                            {
+                                try
+                                {
+                                    savePlane.run();
+                                }
+                                catch ( Exception e )
+                                {
+                                    logger.error( "Saving plane failed: " + e.toString() );
+                                }
+                                finally
+                                {
+                                    if ( remainingSlabPlanes.decrementAndGet() == 0 ) reservation.close();
+                                    if ( remainingPlanes.decrementAndGet() == 0 ) future.complete( null );
+                                }
+                            } );
+                        }
+                    }
+                }
+            }
+
+            isReadingComplete = true;
+        }
+        catch ( Throwable e )
+        {
+            logger.error( "Saving planes failed while reading: " + e.toString() );
+        }
+        finally
+        {
+            // such that the progress monitor stops if not all planes are saved
+            if ( ! isReadingComplete )
+            {
+                for ( CompletableFuture< Void > future : futures ) future.cancel( false );
+            }
+        }
+    }
+}
@@ -40,6 +40,9 @@ public class ProjectionXYZ {
     private double yscale;
     private double zscale;
     private double zf = 1;			//zfactor
+    private ImageProcessor outxy;
+    private ImageProcessor outxz;
+    private ImageProcessor outyz;
 
     private Logger logger = new IJLazySwingLogger();
 
@@ -71,32 +74,58 @@ public class ProjectionXYZ {
         }
         ImageStack stk = imp.getStack();
 
-        int x = stk.getWidth();
-        int y = stk.getHeight();
-        int z = stk.getSize();
-        logger.debug("Z-size:" + Integer.toString(z));
+        for (int iz = 1; iz <= stk.getSize(); iz++){
+            addPlane(iz, stk.getProcessor(iz));
+        }
+        return getProjection();
+    }
+
+    /**
+     * Adds one plane to the projections, such that the projections can be computed
+     * while the planes are read for another purpose, e.g. slab by slab while saving.
+     *
+     * @param iz the index of the plane, starting at 1
+     */
+    public void addPlane(int iz, ImageProcessor currentPlane){
+
+        int x = currentPlane.getWidth();
+        int y = currentPlane.getHeight();
+
         // Create xy Processor with room for xz and yz
-        ImageProcessor outxz = stk.getProcessor(1).createProcessor(x,z);
-        ImageProcessor outyz = stk.getProcessor(1).createProcessor(z,y);
-        ImageProcessor outxy = stk.getProcessor(1).createProcessor(x,y);
-
-        for (int iz = 1; iz <= z; iz++){
-            ImageProcessor currentPlane = stk.getProcessor(iz);
-            for (int ix = 0; ix < x; ix++){
-                for (int iy = 0; iy < y; iy++){
-                    float pixel = currentPlane.getPixelValue(ix,iy);
-                    if ((pixel > outxy.getPixelValue(ix,iy)) || (iz ==1)){
-                        outxy.putPixel(ix,iy,currentPlane.getPixel(ix,iy));
-                    }
-                    if ((pixel > outxz.getPixelValue(ix,iz)) || (iy ==0)){
-                        outxz.putPixel(ix, iz,currentPlane.getPixel(ix,iy));
-                    }
-                    if ((pixel > outyz.getPixelValue(iz,iy)) || (ix ==0)) {
-                        outyz.putPixel(iz, iy,currentPlane.getPixel(ix,iy));
-                    }
+        if (outxy == null){
+            int z = imp.getImageStackSize();
+            logger.debug("Z-size:" + Integer.toString(z));
+            outxz = currentPlane.createProcessor(x,z);
+            outyz = currentPlane.createProcessor(z,y);
+            outxy = currentPlane.createProcessor(x,y);
+        }
+
+        for (int ix = 0; ix < x; ix++){
+            for (int iy = 0; iy < y; iy++){
+                float pixel = currentPlane.getPixelValue(ix,iy);
+                if ((pixel > outxy.getPixelValue(ix,iy)) || (iz ==1)){
+                    outxy.putPixel(ix,iy,currentPlane.getPixel(ix,iy));
+                }
+                if ((pixel > outxz.getPixelValue(ix,iz)) || (iy ==0)){
+                    outxz.putPixel(ix, iz,currentPlane.getPixel(ix,iy));
+                }
+                if ((pixel > outyz.getPixelValue(iz,iy)) || (ix ==0)) {
+                    outyz.putPixel(iz, iy,currentPlane.getPixel(ix,iy));
                 }
             }
         }
+    }
+
+    /**
+     * @return the projections of the planes added so far
+     */
+    public ImagePlus getProjection(){
+
+        int x = outxy.getWidth();
+        int y = outxy.getHeight();
+        ImageProcessor outxz = this.outxz;
+        ImageProcessor outyz = this.outyz;
+
         if (doscale){
             logger.debug("Z factor used:" + Double.toString(this.zf));
             double newzsize = ((double) outxz.getHeight()) * this.zf;
@@ -111,7 +140,7 @@ public class ProjectionXYZ {
             logger.debug("scaled XZ and YZ");
             logger.debug("YZ width After Scaling: " + Integer.toString(outyz.getWidth()));
         }
-        ImageProcessor output = stk.getProcessor(1).
+        ImageProcessor output = outxy.
                 createProcessor(x + outyz.getWidth() + FRAME_WIDTH, y + outxz.getHeight() +FRAME_WIDTH);
         output.copyBits(outxy, 0, 0, Blitter.COPY);
         output.copyBits(outxz, 0, y + FRAME_WIDTH, Blitter.COPY);
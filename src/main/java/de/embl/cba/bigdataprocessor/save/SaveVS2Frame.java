@@ -6,6 +6,8 @@ import de.embl.cba.imaris.ImarisDataSet;
 import de.embl.cba.bigdataprocessor.BigDataProcessor;
 import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
 import de.embl.cba.bigdataprocessor.log.Logger;
+import de.embl.cba.bigdataprocessor.utils.IOScheduler;
+import de.embl.cba.bigdataprocessor.utils.MemoryBudget;
 import de.embl.cba.bigdataprocessor.utils.Utils;
 import ch.systemsx.cisd.base.mdarray.MDByteArray;
 import ch.systemsx.cisd.base.mdarray.MDShortArray;
@@ -17,23 +19,27 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.io.FileSaver;
 import ij.plugin.Duplicator;
-import loci.common.services.ServiceFactory;
-import loci.formats.ImageWriter;
-import loci.formats.meta.IMetadata;
-import loci.formats.out.TiffWriter;
-import loci.formats.services.OMEXMLService;
-import loci.formats.tiff.IFD;
 import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
-import ome.xml.model.enums.DimensionOrder;
-import ome.xml.model.enums.PixelType;
-import ome.xml.model.primitives.PositiveInteger;
 
 import ij.plugin.Binner;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class SaveVS2Frame implements Runnable {
 
+    static final String HDF5_DATA_SET = "Data";
+
+    // slabs are small compared to the memory budget, such that several can be processed at once
+    private static final int SLABS_PER_MEMORY_BUDGET = 8;
+
+    private static final AtomicBoolean isTiffExtensionNoted = new AtomicBoolean( false );
+
     final int t;
     AtomicInteger counter;
     BigDataProcessor bigDataProcessor;
@@ -60,122 +66,566 @@ public class SaveVS2Frame implements Runnable {
 
     public void run()
     {
+        ImagePlus imp = savingSettings.imp;
+
+        for (int c = 0; c < savingSettings.imp.getNChannels(); c++)
+        {
+
+            if ( bigDataProcessor.interruptSavingThreads )
+            {
+                logger.progress("Stopped saving thread: ", "" + t);
+                return;
+            }
+
+            // wait until there is enough memory rather than running out of it
+            try ( MemoryBudget.Reservation reservation = MemoryBudget.getInstance().reserve( estimateReservedBytesPerChannel() ) )
+            {
+                if ( isStreamed() )
+                {
+                    // Load, gate, convert and bin slab by slab while saving
+                    //
+                    saveStreamed( c );
 
-        // TODO:
-        // - check whether enough RAM is available to execute current thread
-        // - if not, run GC and wait until there is enough
-        // - estimate 3x more RAM then actually necessary
-        // - if waiting takes to long somehoe terminate in a nice way
+                    if ( bigDataProcessor.interruptSavingThreads )
+                    {
+                        logger.progress("Stopped saving thread: ", "" + t);
+                        return;
+                    }
+                }
+                else
+                {
+                    // Load
+                    //
+                    ImagePlus impChannelTime = load( c );
 
-        long freeMemoryInBytes = IJ.maxMemory() - IJ.currentMemory();
+                    // Gate, convert and bin, and save each binning once it is computed
+                    //
+                    final int channel = c;
+                    if ( ! process( impChannelTime, output ->
+                    {
+                        save( output, channel );
+                        return ! bigDataProcessor.interruptSavingThreads;
+                    } ) )
+                    {
+                        logger.progress("Stopped saving thread: ", "" + t);
+                        return;
+                    }
+                }
+            }
+
+            documentProgress( imp.getNFrames() * imp.getNChannels() );
+
+        }
+
+    }
+
+    /**
+     * Estimates the memory needed for saving one channel of this time point:
+     * the loaded data cube, its converted and binned versions and the buffers of the file writer.
+     */
+    long estimatePeakBytesPerChannel()
+    {
         ImagePlus imp = savingSettings.imp;
-        long numBytesOfImage = (long) imp.getWidth() *
-                imp.getHeight() *
-                imp.getNSlices() *
-                imp.getNChannels() *
-                imp.getBitDepth() / 8;
+        long numVoxels = (long) imp.getWidth() * imp.getHeight() * imp.getNSlices();
+        int bytesPerPixel = imp.getBytesPerPixel();
+
+        int outputBytesPerPixel = bytesPerPixel;
+        if ( savingSettings.convertTo8Bit ) outputBytesPerPixel = 1;
+        if ( savingSettings.convertTo16Bit ) outputBytesPerPixel = 2;
+
+        long bytes = numVoxels * bytesPerPixel;
+        long outputBytes = numVoxels * outputBytesPerPixel;
 
-        if ( numBytesOfImage > 1.5 * freeMemoryInBytes )
+        if ( outputBytesPerPixel != bytesPerPixel )
         {
-            // TODO: do something...
+            bytes += outputBytes;
         }
 
-        for (int c = 0; c < savingSettings.imp.getNChannels(); c++)
+        long largestOutputBytes = 0;
+        for ( int[] binningA : getBinnings() )
         {
+            long binnedBytes = outputBytes / Math.max( 1L, (long) binningA[0] * binningA[1] * binningA[2] );
+            if ( binningA[0] > 1 || binningA[1] > 1 || binningA[2] > 1 ) bytes += binnedBytes;
+            largestOutputBytes = Math.max( largestOutputBytes, binnedBytes );
+        }
 
+        if ( savingSettings.fileType.equals( Utils.FileType.HDF5 ) )
+        {
+            // the data are copied into one array
+            bytes += largestOutputBytes;
+        }
+        else if ( savingSettings.fileType.equals( Utils.FileType.IMARIS ) )
+        {
+            // resolution pyramid and copies of the chunks
+            bytes += largestOutputBytes / 2;
+        }
+        else
+        {
+            // plane-wise compression
+            bytes += 2 * largestOutputBytes / Math.max( 1, imp.getNSlices() );
+        }
+
+        return bytes;
+    }
+
+    /**
+     * The memory that is reserved for saving one channel of this time point, see {@link #isStreamed()}.
+     */
+    long estimateReservedBytesPerChannel()
+    {
+        if ( ! isStreamed() ) return estimatePeakBytesPerChannel();
+
+        // the slabs the binnings are writing, the ones buffered for the binnings that are behind and the one being loaded
+        return ( CascadedSlabs.MAX_SLABS_AHEAD + 2 ) * getSlabSize() * estimatePeakBytesPerPlane();
+    }
+
+    /**
+     * Whether the data cubes are loaded, processed and saved in slabs of planes rather than as a whole,
+     * because a whole data cube would take more than half of the memory budget.
+     * Imaris files are written from whole data cubes.
+     */
+    boolean isStreamed()
+    {
+        if ( savingSettings.saveVolumes && savingSettings.fileType.equals( Utils.FileType.IMARIS ) ) return false;
+
+        return estimatePeakBytesPerChannel() > MemoryBudget.getInstance().getMaxBytes() / 2;
+    }
+
+    private long estimatePeakBytesPerPlane()
+    {
+        return estimatePeakBytesPerChannel() / Math.max( 1, savingSettings.imp.getNSlices() );
+    }
+
+    /**
+     * The number of planes of the data cube that are loaded at once when streaming;
+     * a multiple of the binnings in z, such that the slabs can be binned independently.
+     */
+    int getSlabSize()
+    {
+        int zBinning = 1;
+        for ( int[] binning : getBinnings() )
+        {
+            zBinning = leastCommonMultiple( zBinning, Math.max( 1, binning[2] ) );
+        }
+
+        long slabBytes = MemoryBudget.getInstance().getMaxBytes() / SLABS_PER_MEMORY_BUDGET;
+        long slabSize = Math.min( savingSettings.imp.getNSlices(), slabBytes / Math.max( 1, estimatePeakBytesPerPlane() ) );
+
+        return (int) Math.max( zBinning, slabSize / zBinning * zBinning );
+    }
+
+    static int leastCommonMultiple( int a, int b )
+    {
+        int gcd = a, r = b;
+        while ( r != 0 )
+        {
+            int tmp = gcd % r;
+            gcd = r;
+            r = tmp;
+        }
+        return a / gcd * b;
+    }
+
+    List< int[] > getBinnings()
+    {
+        List< int[] > binnings = new ArrayList<>();
+        for ( String binning : savingSettings.bin.split(";") )
+        {
+            binnings.add( Utils.delimitedStringToIntegerArray(binning, ",") );
+        }
+        return binnings;
+    }
+
+    static String getOutputPath( SavingSettings savingSettings, int[] binning )
+    {
+        if ( binning[0] > 1 || binning[1] > 1 || binning[2] > 1 )
+        {
+            return savingSettings.filePath
+                    + "--bin-"
+                    + binning[0]
+                    + "-"
+                    + binning[1]
+                    + "-"
+                    + binning[2];
+        }
+
+        return savingSettings.filePath;
+    }
+
+    /**
+     * A processed data cube and the path it is saved to.
+     */
+    static class Output
+    {
+        final ImagePlus imp;
+        final String path;
+
+        Output( ImagePlus imp, String path )
+        {
+            this.imp = imp;
+            this.path = path;
+        }
+    }
+
+    ImagePlus load( int c )
+    {
+        return getDataCube( c, 0, savingSettings.imp.getNSlices() );
+    }
+
+    ImagePlus loadSlab( int c, int zStart, int nz )
+    {
+        return getDataCube( c, zStart, nz );
+    }
+
+    /**
+     * Receives the outputs as soon as they are computed, such that they can be saved
+     * while the next binnings are computed.
+     */
+    interface OutputConsumer
+    {
+        /**
+         * @return false to stop processing
+         */
+        boolean accept( Output output );
+    }
+
+    /**
+     * Receives the binned data cubes as soon as they are computed.
+     */
+    interface BinnedConsumer
+    {
+        /**
+         * @param binningIndex the index of the binning in {@link SavingSettings#bin}
+         * @return false to stop processing
+         */
+        boolean accept( int binningIndex, ImagePlus binned );
+    }
+
+    /**
+     * Gates and converts the data cube and creates one output per binning.
+     *
+     * @return false if saving has been stopped
+     */
+    boolean process( ImagePlus impChannelTime, OutputConsumer consumer )
+    {
+        final List< int[] > binnings = getBinnings();
+
+        return binCascaded( impChannelTime, ( i, binned ) ->
+                consumer.accept( new Output( binned, getOutputPath( savingSettings, binnings.get( i ) ) ) ) );
+    }
+
+    /**
+     * Gates and converts the data cube and bins it for all binnings.
+     *
+     * The binnings are computed as a cascade from fine to coarse: each binning is computed from
+     * the coarsest binning computed before that it is a multiple of, e.g. 4,4,1 from 2,2,1 and 2,2,1 from 1,1,1,
+     * such that a resolution pyramid costs little more than its finest level.
+     * Averages of averages are rounded twice and may differ by one from averages of the full-resolution data.
+     *
+     * @return false if saving has been stopped
+     */
+    boolean binCascaded( ImagePlus imp, BinnedConsumer consumer )
+    {
+        final List< int[] > binnings = getBinnings();
+
+        final boolean isFused = CubeProcessor.isSupported( imp, savingSettings.binningMethod );
+        if ( ! isFused ) gateAndConvert( imp );
+
+        final ImagePlus[] binned = new ImagePlus[ binnings.size() ];
+
+        for ( int i : getCascadeOrder( binnings ) )
+        {
             if ( bigDataProcessor.interruptSavingThreads )
             {
                 logger.progress("Stopped saving thread: ", "" + t);
-                return;
+                return false;
             }
 
-            // Load
-            //
-
-            ImagePlus impChannelTime = getDataCube( c );
+            final int source = getCascadeSource( binnings, binned, i );
 
-            // Gate
-            //
-            if ( savingSettings.gate )
+            if ( source < 0 )
             {
-                gate( impChannelTime, savingSettings.gateMin, savingSettings.gateMax );
+                binned[ i ] = isFused ?
+                        new CubeProcessor( savingSettings, imp.getBitDepth() )
+                                .process( imp, binnings.get( i ), savingSettings.binningMethod )
+                        : bin( imp, binnings.get( i ), savingSettings.binningMethod );
             }
-
-            // Convert
-            //
-            if ( savingSettings.convertTo8Bit )
+            else
             {
-                IJ.setMinAndMax(impChannelTime, savingSettings.mapTo0, savingSettings.mapTo255);
-                IJ.run( impChannelTime, "8-bit", "" );
+                // the source is already gated and converted
+                final int[] factor = new int[ 3 ];
+                for ( int d = 0; d < 3; d++ )
+                {
+                    factor[ d ] = Math.max( 1, binnings.get( i )[ d ] ) / Math.max( 1, binnings.get( source )[ d ] );
+                }
+
+                binned[ i ] = isFused ?
+                        new CubeProcessor( binned[ source ].getBitDepth() )
+                                .process( binned[ source ], factor, savingSettings.binningMethod )
+                        : bin( binned[ source ], factor, savingSettings.binningMethod );
             }
 
-            if ( savingSettings.convertTo16Bit )
+            if ( binned[ i ] == null ) return false;
+
+            if ( ! consumer.accept( i, binned[ i ] ) ) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * The indices of the binnings, ordered by the number of binned voxels, such that the sources come first.
+     */
+    private static List< Integer > getCascadeOrder( List< int[] > binnings )
+    {
+        final List< Integer > order = new ArrayList<>();
+        for ( int i = 0; i < binnings.size(); i++ ) order.add( i );
+        order.sort( Comparator.comparingLong( i -> getBinnedVoxels( binnings.get( i ) ) ) );
+        return order;
+    }
+
+    /**
+     * @return the index of the coarsest computed binning that binning i is a multiple of, or -1 if there is none
+     */
+    private static int getCascadeSource( List< int[] > binnings, ImagePlus[] binned, int i )
+    {
+        int source = -1;
+
+        for ( int j = 0; j < binnings.size(); j++ )
+        {
+            if ( binned[ j ] == null || ! isMultipleOf( binnings.get( i ), binnings.get( j ) ) ) continue;
+
+            if ( source < 0 || getBinnedVoxels( binnings.get( j ) ) > getBinnedVoxels( binnings.get( source ) ) )
             {
-                IJ.run( impChannelTime, "16-bit", "" );
+                source = j;
             }
+        }
 
-            // Bin, project and save
-            //
-            String[] binnings = savingSettings.bin.split(";");
+        return source;
+    }
 
-            for ( String binning : binnings )
-            {
+    private static boolean isMultipleOf( int[] binning, int[] other )
+    {
+        for ( int d = 0; d < 3; d++ )
+        {
+            if ( Math.max( 1, binning[ d ] ) % Math.max( 1, other[ d ] ) != 0 ) return false;
+        }
+        return true;
+    }
+
+    private static long getBinnedVoxels( int[] binning )
+    {
+        return ( long ) Math.max( 1, binning[ 0 ] ) * Math.max( 1, binning[ 1 ] ) * Math.max( 1, binning[ 2 ] );
+    }
+
+    /**
+     * Saves the binnings of a data cube that is too large to be loaded as a whole, see {@link #isStreamed()}.
+     * The binnings are saved together, each in its own thread, such that each slab is loaded once for all of them.
+     */
+    void saveStreamed( int c )
+    {
+        final List< Output > outputs = createStreamedOutputs( c );
+        final AtomicReference< Throwable > failure = new AtomicReference<>();
+        final List< Thread > threads = new ArrayList<>();
 
-                if ( bigDataProcessor.interruptSavingThreads )
+        for ( int i = 0; i < outputs.size(); i++ )
+        {
+            final Output output = outputs.get( i );
+            final Thread thread = new Thread( () ->
+            {
+                try
                 {
-                    logger.progress("Stopped saving thread: ", "" + t);
-                    return;
+                    save( output, c );
                 }
+                catch ( Throwable e )
+                {
+                    failure.compareAndSet( null, e );
+                }
+                finally
+                {
+                    // the other binnings do not wait for this one anymore
+                    ( ( SlabStack ) output.imp.getStack() ).finish();
+                }
+            }, "BigDataProcessor saving binning " + i );
+            thread.setDaemon( true );
+            thread.start();
+            threads.add( thread );
+        }
 
-                String newPath = savingSettings.filePath;
+        for ( Thread thread : threads )
+        {
+            try
+            {
+                thread.join();
+            }
+            catch ( InterruptedException e )
+            {
+                // the threads stop once saving is stopped
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
 
-                // Binning
-                // - not for imarisH5 saving format as there will be a resolution pyramid anyway
-                //
-                ImagePlus impBinned = impChannelTime;
+        final Throwable e = failure.get();
+        if ( e instanceof RuntimeException ) throw ( RuntimeException ) e;
+        if ( e instanceof Error ) throw ( Error ) e;
+        if ( e != null ) throw new RuntimeException( e );
+    }
 
-                int[] binningA = Utils.delimitedStringToIntegerArray(binning, ",");
+    /**
+     * Creates one output per binning, whose planes are loaded, gated, converted and binned slab by slab
+     * while they are saved, such that the whole data cube is never in memory.
+     * Each slab is loaded once for all binnings, see {@link CascadedSlabs}.
+     */
+    List< Output > createStreamedOutputs( int c )
+    {
+        List< Output > outputs = new ArrayList<>();
 
-                if ( binningA[0] > 1 || binningA[1] > 1 || binningA[2] > 1 )
-                {
-                    Binner binner = new Binner();
-                    impBinned = binner.shrink(
-                            impChannelTime,
-                            binningA[0],
-                            binningA[1],
-                            binningA[2],
-                            binner.AVERAGE );
-                    newPath = savingSettings.filePath
-                            + "--bin-"
-                            + binningA[0]
-                            + "-"
-                            + binningA[1]
-                            + "-"
-                            + binningA[2];
-                }
+        List< int[] > binnings = getBinnings();
+        CascadedSlabs slabs = new CascadedSlabs( this, c, getSlabSize() );
 
+        for ( int i = 0; i < binnings.size(); i++ )
+        {
+            SlabStack stack = new SlabStack( slabs, i, binnings.get( i ) );
+            ImagePlus imp = new ImagePlus( savingSettings.imp.getTitle(), stack );
+            imp.setCalibration( stack.getCalibration() );
 
-                // Save volume
-                //
-                if ( savingSettings.saveVolumes )
+            outputs.add( new Output( imp, getOutputPath( savingSettings, binnings.get( i ) ) ) );
+        }
+
+        return outputs;
+    }
+
+    void gateAndConvert( ImagePlus imp )
+    {
+        // Gate
+        //
+        if ( savingSettings.gate )
+        {
+            gate( imp, savingSettings.gateMin, savingSettings.gateMax );
+        }
+
+        // Convert
+        //
+        if ( savingSettings.convertTo8Bit )
+        {
+            IJ.setMinAndMax(imp, savingSettings.mapTo0, savingSettings.mapTo255);
+            IJ.run( imp, "8-bit", "" );
+        }
+
+        if ( savingSettings.convertTo16Bit )
+        {
+            IJ.run( imp, "16-bit", "" );
+        }
+    }
+
+    // - not for imarisH5 saving format as there will be a resolution pyramid anyway
+    static ImagePlus bin( ImagePlus imp, int[] binning, int method )
+    {
+        if ( binning[0] > 1 || binning[1] > 1 || binning[2] > 1 )
+        {
+            Binner binner = new Binner();
+            return binner.shrink(
+                    imp,
+                    binning[0],
+                    binning[1],
+                    binning[2],
+                    method );
+        }
+
+        return imp;
+    }
+
+    void save( Output output, int c )
+    {
+        // Project the planes of a streamed data cube while its volume is saved, rather than reading them again
+        //
+        ProjectionXYZ projection = null;
+        if ( savingSettings.saveVolumes && savingSettings.saveProjections
+                && output.imp.getStack() instanceof SlabStack && output.imp.getStackSize() > 1 )
+        {
+            projection = new ProjectionXYZ( output.imp );
+            projection.setDoscale( false );
+            ( ( SlabStack ) output.imp.getStack() ).setProjection( projection );
+        }
+
+        // Save volume
+        //
+        if ( savingSettings.saveVolumes )
+        {
+            saveVolume( output.imp, c, output.path );
+        }
+
+        // Save projections
+        // TODO: save into one single file
+        if ( savingSettings.saveProjections )
+        {
+            if ( projection != null && ( ( SlabStack ) output.imp.getStack() ).isProjected() )
+            {
+                saveProjection( projection.getProjection(), c, t, output.path );
+            }
+            else
+            {
+                saveAsTiffXYZMaxProjection( output.imp, c, t, output.path );
+            }
+        }
+    }
+
+    /**
+     * The device access is only held while writing, not while the planes of a {@link SlabStack} are read,
+     * because reading needs device access itself.
+     */
+    private void saveVolume( ImagePlus impBinned, int c, String newPath )
+    {
+        final boolean isStreamed = impBinned.getStack() instanceof SlabStack;
+
+        if ( savingSettings.fileType.equals( Utils.FileType.TIFF_STACKS ) )
+        {
+            saveAsTiff( impBinned, c, t,
+                    savingSettings.compression,
+                    savingSettings.rowsPerStrip,
+                    newPath);
+        }
+        else if ( savingSettings.fileType.equals( Utils.FileType.HDF5 ) )
+        {
+            if ( isStreamed )
+            {
+                saveAsHDF5InSlabs( impBinned, c, t, newPath );
+            }
+            else
+            {
+                try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( newPath ) )
                 {
-                    // Save
-                    //
-                    if ( savingSettings.fileType.equals( Utils.FileType.TIFF_STACKS ) )
-                    {
-                        saveAsTiff( impBinned, c, t,
-                                savingSettings.compression,
-                                savingSettings.rowsPerStrip,
-                                newPath);
-                    }
-                    else if ( savingSettings.fileType.equals( Utils.FileType.HDF5 ) )
+                    synchronized ( Hdf5Storage.WRITE_LOCK )
                     {
-                        int compressionLevel = 0;
-                        saveAsHDF5( impBinned, c, t, compressionLevel, newPath );
+                        saveAsHDF5( impBinned, c, t, newPath );
                     }
-                    else if ( savingSettings.fileType.equals( Utils.FileType.IMARIS ) )
-                    {
+                }
+            }
+        }
+        else if ( savingSettings.fileType.equals( Utils.FileType.IMARIS ) )
+        {
+            if ( ImarisPyramidWriter.isSupported( impBinned ) )
+            {
+                // the file that the Imaris header file links to
+                final String path = getHdf5FilePath(
+                        new File( savingSettings.directory, savingSettings.fileBaseName ).getPath(), c, t );
 
+                try
+                {
+                    new ImarisPyramidWriter( imarisDataSetProperties, path ).write( impBinned );
+                }
+                catch ( Exception e )
+                {
+                    IJ.error( "Error while saving '" + path + "':\n" + e );
+                }
+            }
+            else
+            {
+                try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( newPath ) )
+                {
+                    synchronized ( Hdf5Storage.WRITE_LOCK )
+                    {
                         H5DataCubeWriter writer = new H5DataCubeWriter();
 
                         writer.writeImarisCompatibleResolutionPyramid(
@@ -183,27 +633,21 @@ public class SaveVS2Frame implements Runnable {
                                 imarisDataSetProperties,
                                 c,
                                 t );
-
                     }
-
                 }
-
-                // Save projections
-                // TODO: save into one single file
-                if ( savingSettings.saveProjections )
-                {
-                    saveAsTiffXYZMaxProjection( impBinned, c, t, newPath );
-                }
-
             }
-
-            documentProgress( imp.getNFrames() * imp.getNChannels() );
-
         }
+    }
 
+    private ImagePlus getDataCube( int c, int zStart, int nz )
+    {
+        return loadDataCube( savingSettings, c, t, zStart, nz );
     }
 
-    private ImagePlus getDataCube( int c )
+    /**
+     * Loads the planes zStart, ..., zStart + nz - 1 of one channel and time point.
+     */
+    static ImagePlus loadDataCube( SavingSettings savingSettings, int c, int t, int zStart, int nz )
     {
         ImagePlus impChannelTime = null;
 
@@ -217,25 +661,29 @@ public class SaveVS2Frame implements Runnable {
                 // load all frames individually, the Duplicator
                 // will also handle missing frames by returning black images
                 Duplicator duplicator = new Duplicator();
-                impChannelTime = duplicator.run( savingSettings.imp, c + 1, c + 1, 1, savingSettings.imp.getNSlices(), t + 1, t + 1 );
+                impChannelTime = duplicator.run( savingSettings.imp, c + 1, c + 1, zStart + 1, zStart + nz, t + 1, t + 1 );
             }
-            else
+            else if ( zStart == 0 && nz == savingSettings.imp.getNSlices() )
             {
                 impChannelTime = vs2.getFullFrame( c, t, savingSettings.nThreads );
             }
+            else
+            {
+                impChannelTime = vs2.getFrameSlab( c, t, zStart, nz, savingSettings.nThreads );
+            }
         }
         else
         {
             // TODO: one could make this be just a imglib2 View, but it anyway needs to load it to RAM for saving...
             Duplicator duplicator = new Duplicator();
-            impChannelTime = duplicator.run( savingSettings.imp, c + 1, c + 1, 1, savingSettings.imp.getNSlices(), t + 1, t + 1 );
+            impChannelTime = duplicator.run( savingSettings.imp, c + 1, c + 1, zStart + 1, zStart + nz, t + 1, t + 1 );
         }
 
 
 		return impChannelTime;
     }
 
-    private void documentProgress( int total )
+    void documentProgress( int total )
     {
         counter.incrementAndGet();
 
@@ -272,8 +720,11 @@ public class SaveVS2Frame implements Runnable {
     {
         ProjectionXYZ projectionXYZ = new ProjectionXYZ( imp );
         projectionXYZ.setDoscale( false );
-        ImagePlus projection = projectionXYZ.createProjection();
+        saveProjection( projectionXYZ.createProjection(), c, t, path );
+    }
 
+    private static void saveProjection( ImagePlus projection, int c, int t, String path )
+    {
         FileSaver fileSaver = new FileSaver( projection );
         String sC = String.format("%1$02d", c);
         String sT = String.format("%1$05d", t);
@@ -281,7 +732,14 @@ public class SaveVS2Frame implements Runnable {
         fileSaver.saveAsTiff(pathCT);
     }
 
-    public void saveAsHDF5( ImagePlus imp, int c, int t, int compressionLevel, String path )
+    static String getHdf5FilePath( String path, int c, int t )
+    {
+        String sC = String.format("%1$02d", c);
+        String sT = String.format("%1$05d", t);
+        return path + "--C" + sC + "--T" + sT + ".h5";
+    }
+
+    public void saveAsHDF5( ImagePlus imp, int c, int t, String path )
     {
         int nZ     = imp.getNSlices();
         int nY     = imp.getHeight();
@@ -292,21 +750,14 @@ public class SaveVS2Frame implements Runnable {
         //
         try
         {
-            String sC = String.format("%1$02d", c);
-            String sT = String.format("%1$05d", t);
-            String pathCT = path + "--C" + sC + "--T" + sT + ".h5";
+            String pathCT = getHdf5FilePath( path, c, t );
 
             IHDF5Writer writer;
             writer = HDF5Factory.configure(pathCT).useSimpleDataSpaceForAttributes().overwrite().writer();
 
             //  get element_size_um
             //
-            // todo: this is never used...?
-            ij.measure.Calibration cal = imp.getCalibration();
-            float[] element_size_um = new float[3];
-            element_size_um[0] = (float) cal.pixelDepth;
-            element_size_um[1] = (float) cal.pixelHeight;
-            element_size_um[2] = (float) cal.pixelWidth;
+            float[] element_size_um = getElementSizeUm( imp );
 
             //  create channelDims vector for MDxxxArray
             //
@@ -325,6 +776,10 @@ public class SaveVS2Frame implements Runnable {
                 channelDims[1] = nX;
             }
 
+            // chunked as configured, with the z dimension dropped for single planes
+            //
+            int[] chunkDimensions = Hdf5Storage.getChunkDimensions( savingSettings, nX, nY, nZ, imp.getBytesPerPixel() );
+
             // take care of data sets with more than 2^31 elements
             //
             long   maxSaveBlockSize = (1L<<31) - 1;
@@ -343,8 +798,13 @@ public class SaveVS2Frame implements Runnable {
                 if( nZ == 1) {
                     IJ.error( "maxSaveBlockSize must not be smaller than a single slice!");
                 } else {
-                    long minBlockSize = nY * nX;
+                    long minBlockSize = (long) nY * nX;
                     levelsPerWriteOperation = maxSaveBlockSize / minBlockSize;
+                    // whole chunks in z per write, such that compressed chunks are not read back and rewritten
+                    if ( levelsPerWriteOperation >= chunkDimensions[0] )
+                    {
+                        levelsPerWriteOperation = levelsPerWriteOperation / chunkDimensions[0] * chunkDimensions[0];
+                    }
                     saveBlockDimensions[0] = (int)levelsPerWriteOperation;
                     nSaveBlocks = (int)((nZ - 1) / levelsPerWriteOperation + 1); // integer version for ceil(a/b)
                     IJ.log("Data set has " + channelSize + " elements (more than 2^31). Saving in " + nSaveBlocks + " blocks with maximum of " + levelsPerWriteOperation + " levels");
@@ -352,14 +812,20 @@ public class SaveVS2Frame implements Runnable {
             }
 
 
-            String dsetName = "Data";
+            String dsetName = HDF5_DATA_SET;
+
+            if ( nZ == 1 ) chunkDimensions = new int[]{ chunkDimensions[1], chunkDimensions[2] };
+            long[] dimensions = new long[ channelDims.length ];
+            for ( int d = 0; d < channelDims.length; ++d ) dimensions[d] = channelDims[d];
+            HDF5IntStorageFeatures features = Hdf5Storage.getFeatures( savingSettings );
+            int numLevels = nZ > 1 ? nZ : 1;
 
             for( int block = 0; block < nSaveBlocks; ++block) {
                 // compute offset and size of next block, that is saved
                 //
                 saveBlockOffset[0] = (long)block * levelsPerWriteOperation;
                 int remainingLevels = (int)(nZ - saveBlockOffset[0]);
-                if( remainingLevels < saveBlockDimensions[0] ) {
+                if( nZ > 1 && remainingLevels < saveBlockDimensions[0] ) {
                     // last block is smaller
                     saveBlockDimensions[0] = remainingLevels;
                 }
@@ -374,7 +840,7 @@ public class SaveVS2Frame implements Runnable {
                 {
                     // Save as Short Array
                     //
-                    MDShortArray arr = new MDShortArray( channelDims);
+                    MDShortArray arr = new MDShortArray( saveBlockDimensions );
 
                     // copy data
                     //
@@ -382,10 +848,10 @@ public class SaveVS2Frame implements Runnable {
                     short[] flatArr   = arr.getAsFlatArray();
                     int sliceSize    = nY*nX;
 
-                    for(int lev = 0; lev < nZ; ++lev)
+                    for(int lev = 0; lev < Math.min( numLevels, saveBlockDimensions[0] ); ++lev)
                     {
                         int stackIndex = imp.getStackIndex(c + 1,
-                                lev + 1,
+                                srcLevel + lev + 1,
                                 t + 1);
                         System.arraycopy( stack.getPixels(stackIndex), 0,
                                 flatArr, lev*sliceSize,
@@ -394,7 +860,8 @@ public class SaveVS2Frame implements Runnable {
 
                     // save it
                     //
-                    writer.uint16().writeMDArray( dsetName, arr, HDF5IntStorageFeatures.createDeflationDelete( compressionLevel ) );
+                    if ( block == 0 ) writer.uint16().createMDArray( dsetName, dimensions, chunkDimensions, features );
+                    writer.uint16().writeMDArrayBlockWithOffset( dsetName, arr, saveBlockOffset );
 
                 }
                 else if ( imgColorType == ImagePlus.GRAY8 )
@@ -409,7 +876,7 @@ public class SaveVS2Frame implements Runnable {
                     byte[] flatArr   = arr.getAsFlatArray();
                     int sliceSize    = nY*nX;
 
-                    for(int lev = 0; lev < saveBlockDimensions[0]; ++lev)
+                    for(int lev = 0; lev < Math.min( numLevels, saveBlockDimensions[0] ); ++lev)
                     {
                         int stackIndex = imp.getStackIndex(c + 1,
                                 srcLevel + lev + 1,
@@ -421,7 +888,8 @@ public class SaveVS2Frame implements Runnable {
 
                     // save it
                     //
-                    writer.uint8().writeMDArray( dsetName, arr, HDF5IntStorageFeatures.createDeflationDelete(compressionLevel));
+                    if ( block == 0 ) writer.uint8().createMDArray( dsetName, dimensions, chunkDimensions, features );
+                    writer.uint8().writeMDArrayBlockWithOffset( dsetName, arr, saveBlockOffset );
 
                 }
 
@@ -449,113 +917,203 @@ public class SaveVS2Frame implements Runnable {
 
     }
 
-    public void saveAsTiff(ImagePlus imp, int c, int t, String compression, int rowsPerStrip, String path)
+    private static float[] getElementSizeUm( ImagePlus imp )
     {
+        ij.measure.Calibration cal = imp.getCalibration();
+        float[] element_size_um = new float[3];
+        element_size_um[0] = (float) cal.pixelDepth;
+        element_size_um[1] = (float) cal.pixelHeight;
+        element_size_um[2] = (float) cal.pixelWidth;
+        return element_size_um;
+    }
+
+    /**
+     * Saves the planes of a {@link SlabStack} slab by slab into a chunked data set,
+     * such that the whole data cube is never in memory.
+     * Each slab is read before the device access for writing it is acquired,
+     * and only the Hdf5 calls hold the {@link Hdf5Storage#WRITE_LOCK}, such that other files are loaded meanwhile.
+     */
+    private void saveAsHDF5InSlabs( ImagePlus imp, int c, int t, String path )
+    {
+        SlabStack stack = ( SlabStack ) imp.getStack();
+
+        int nZ = imp.getNSlices();
+        int nY = imp.getHeight();
+        int nX = imp.getWidth();
+        int sliceSize = nY * nX;
+
+        // each slab must fit into one java array
+        int planesPerWrite = (int) Math.max( 1, Math.min( stack.getPlanesPerSlab(), ( (1L<<31) - 1 ) / sliceSize ) );
 
-        if( compression.equals("LZW") ) // Use BioFormats
+        String pathCT = getHdf5FilePath( path, c, t );
+
+        IHDF5Writer writer = null;
+        try
         {
+            synchronized ( Hdf5Storage.WRITE_LOCK )
+            {
+                writer = HDF5Factory.configure(pathCT).useSimpleDataSpaceForAttributes().overwrite().writer();
+            }
 
-            String sC = String.format("%1$02d", c);
-            String sT = String.format("%1$05d", t);
-            String pathCT = path + "--C" + sC + "--T" + sT + ".ome.tif";
+            // a single plane is saved as 2D data set, as done by saveAsHDF5
+            final boolean isPlane = nZ == 1;
 
-            try
+            long[] dimensions = isPlane ? new long[]{ nY, nX } : new long[]{ nZ, nY, nX };
+            int[] blockDimensions = Hdf5Storage.getChunkDimensions( savingSettings, nX, nY, nZ, imp.getBytesPerPixel() );
+            HDF5IntStorageFeatures features = Hdf5Storage.getFeatures( savingSettings );
+
+            // whole chunks in z per write, such that compressed chunks are not read back and rewritten
+            if ( planesPerWrite >= blockDimensions[0] ) planesPerWrite = planesPerWrite / blockDimensions[0] * blockDimensions[0];
+
+            if ( isPlane ) blockDimensions = new int[]{ blockDimensions[1], blockDimensions[2] };
+
+            try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( pathCT ) )
             {
-                ServiceFactory factory = new ServiceFactory();
-                OMEXMLService service = factory.getInstance(OMEXMLService.class);
-                IMetadata omexml = service.createOMEXMLMetadata();
-                omexml.setImageID("Image:0", 0);
-                omexml.setPixelsID("Pixels:0", 0);
-                omexml.setPixelsBinDataBigEndian(Boolean.TRUE, 0, 0);
-                omexml.setPixelsDimensionOrder(DimensionOrder.XYZCT, 0);
-                if ( imp.getBytesPerPixel() == 2)
+                synchronized ( Hdf5Storage.WRITE_LOCK )
                 {
-                    omexml.setPixelsType(PixelType.UINT16, 0);
+                    if ( imp.getType() == ImagePlus.GRAY16 )
+                    {
+                        writer.uint16().createMDArray( HDF5_DATA_SET, dimensions, blockDimensions, features );
+                    }
+                    else
+                    {
+                        writer.uint8().createMDArray( HDF5_DATA_SET, dimensions, blockDimensions, features );
+                    }
                 }
-                else if ( imp.getBytesPerPixel() == 1 )
+            }
+
+            for ( int z = 0; z < nZ; z += planesPerWrite )
+            {
+                int n = Math.min( planesPerWrite, nZ - z );
+                int[] slabDimensions = isPlane ? new int[]{ nY, nX } : new int[]{ n, nY, nX };
+                long[] offset = isPlane ? new long[]{ 0, 0 } : new long[]{ z, 0, 0 };
+
+                if ( imp.getType() == ImagePlus.GRAY16 )
                 {
-                    omexml.setPixelsType(PixelType.UINT8, 0);
+                    MDShortArray arr = new MDShortArray( slabDimensions );
+                    short[] flatArr = arr.getAsFlatArray();
+                    for ( int i = 0; i < n; i++ )
+                    {
+                        System.arraycopy( stack.getPixels( z + i + 1 ), 0, flatArr, i * sliceSize, sliceSize );
+                    }
+                    try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( pathCT ) )
+                    {
+                        synchronized ( Hdf5Storage.WRITE_LOCK )
+                        {
+                            writer.uint16().writeMDArrayBlockWithOffset( HDF5_DATA_SET, arr, offset );
+                        }
+                    }
                 }
-                omexml.setPixelsSizeX(new PositiveInteger(imp.getWidth()), 0);
-                omexml.setPixelsSizeY(new PositiveInteger(imp.getHeight()), 0);
-                omexml.setPixelsSizeZ(new PositiveInteger(imp.getNSlices()), 0);
-                omexml.setPixelsSizeC(new PositiveInteger(1), 0);
-                omexml.setPixelsSizeT(new PositiveInteger(1), 0);
-
-                int channel = 0;
-                omexml.setChannelID("Channel:0:" + channel, 0, channel);
-                omexml.setChannelSamplesPerPixel(new PositiveInteger(1), 0, channel);
-
-                ImageWriter writer = new ImageWriter();
-                writer.setCompression(TiffWriter.COMPRESSION_LZW);
-                writer.setValidBitsPerPixel(imp.getBytesPerPixel()*8);
-                writer.setMetadataRetrieve(omexml);
-                writer.setId(pathCT);
-                writer.setWriteSequentially(true); // ? is this necessary
-                TiffWriter tiffWriter = (TiffWriter) writer.getWriter();
-                long[] rowsPerStripArray = new long[1];
-                rowsPerStripArray[0] = rowsPerStrip;
-
-                for (int z = 0; z < imp.getNSlices(); z++) {
-                    IFD ifd = new IFD();
-                    ifd.put(IFD.ROWS_PER_STRIP, rowsPerStripArray);
-                    //tiffWriter.saveBytes(z, Bytes.fromShorts((short[])imp.getStack().getProcessor(z+1).getPixels(), false), ifd);
-                    if ( imp.getBytesPerPixel() == 2 )
+                else
+                {
+                    MDByteArray arr = new MDByteArray( slabDimensions );
+                    byte[] flatArr = arr.getAsFlatArray();
+                    for ( int i = 0; i < n; i++ )
                     {
-                        tiffWriter.saveBytes(z, ShortToByteBigEndian((short[]) imp.getStack().getProcessor(z + 1).getPixels()), ifd);
+                        System.arraycopy( stack.getPixels( z + i + 1 ), 0, flatArr, i * sliceSize, sliceSize );
                     }
-                    else if ( imp.getBytesPerPixel() == 1 )
+                    try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( pathCT ) )
                     {
-                        tiffWriter.saveBytes(z, (byte[])(imp.getStack().getProcessor(z + 1).getPixels()), ifd);
-
+                        synchronized ( Hdf5Storage.WRITE_LOCK )
+                        {
+                            writer.uint8().writeMDArrayBlockWithOffset( HDF5_DATA_SET, arr, offset );
+                        }
                     }
                 }
+            }
 
-                writer.close();
-
+            try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( pathCT ) )
+            {
+                synchronized ( Hdf5Storage.WRITE_LOCK )
+                {
+                    writer.float32().setArrayAttr( HDF5_DATA_SET, "element_size_um", getElementSizeUm( imp ) );
+                }
             }
-            catch (Exception e)
+        }
+        catch (Exception err)
+        {
+            // a stopped SlabStack throws
+            if ( ! bigDataProcessor.interruptSavingThreads )
             {
-                logger.error(e.toString());
+                IJ.error("Error while saving '" + path + "':\n"
+                        + err);
             }
         }
-        else  // no compression: use ImageJ's FileSaver, as it is faster than BioFormats
+        catch (OutOfMemoryError o)
         {
-            FileSaver fileSaver = new FileSaver(imp);
-            String sC = String.format("%1$02d", c);
-            String sT = String.format("%1$05d", t);
-            String pathCT = path + "--C" + sC + "--T" + sT + ".tif";
-            //logger.info("Saving " + pathCT);
-            fileSaver.saveAsTiffStack(pathCT);
+            IJ.outOfMemory("Error while saving '" + path + "'");
+        }
+        finally
+        {
+            if ( writer != null )
+            {
+                synchronized ( Hdf5Storage.WRITE_LOCK )
+                {
+                    writer.close();
+                }
+            }
         }
     }
 
-    byte [] ShortToByteBigEndian(short [] input)
+    public void saveAsTiff(ImagePlus imp, int c, int t, String compression, int rowsPerStrip, String path)
     {
-        int short_index, byte_index;
-        int iterations = input.length;
+        String sC = String.format("%1$02d", c);
+        String sT = String.format("%1$05d", t);
+        String pathCT = path + "--C" + sC + "--T" + sT + ".tif";
 
-        byte [] buffer = new byte[input.length * 2];
+        boolean isCompressed = compression.equals( TiffStackWriter.LZW ) || compression.equals( TiffStackWriter.ZIP );
 
-        short_index = byte_index = 0;
+        if ( isCompressed && ! TiffStackWriter.isSupported( imp ) )
+        {
+            logger.warning( "RGB images can not be saved compressed, saving '" + pathCT + "' without compression." );
+            isCompressed = false;
+        }
 
-        for(/*NOP*/; short_index != iterations; /*NOP*/)
+        if( isCompressed )
         {
-            // Big Endian: store higher byte first
-            buffer[byte_index] = (byte) ((input[short_index] & 0xFF00) >> 8);
-            buffer[byte_index + 1]     = (byte) (input[short_index] & 0x00FF);
+            if ( ! isTiffExtensionNoted.getAndSet( true ) )
+            {
+                logger.info( "Note: compressed Tiff files are ImageJ Tiff files, thus they are named *.tif;"
+                        + " they were named *.ome.tif in earlier versions." );
+            }
 
-            ++short_index; byte_index += 2;
+            try
+            {
+                new TiffStackWriter( pathCT, compression, rowsPerStrip ).write( imp );
+            }
+            catch ( Exception e )
+            {
+                // a stopped SlabStack throws
+                if ( ! bigDataProcessor.interruptSavingThreads )
+                {
+                    logger.error( "Error while saving '" + pathCT + "': " + e.toString() );
+                }
+            }
+        }
+        else  // no compression: use ImageJ's FileSaver, as it is faster than BioFormats
+        {
+            FileSaver fileSaver = new FileSaver(imp);
+            //logger.info("Saving " + pathCT);
+            if ( imp.getStack() instanceof SlabStack )
+            {
+                // the FileSaver reads the planes while writing, thus it can not hold the device access
+                fileSaver.saveAsTiffStack(pathCT);
+            }
+            else
+            {
+                try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( pathCT ) )
+                {
+                    fileSaver.saveAsTiffStack(pathCT);
+                }
+            }
         }
-
-        return buffer;
     }
 
     public void gate( ImagePlus imp, int min, int max )
     {
         ImageStack stack = imp.getStack();
 
-        for ( int i = 1; i < stack.size(); ++i )
+        for ( int i = 1; i <= stack.size(); ++i )
         {
             if ( imp.getBitDepth() == 8 )
             {
@@ -3,6 +3,7 @@ package de.embl.cba.bigdataprocessor.save;
 import de.embl.cba.bigdataprocessor.BigDataProcessor;
 import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
 import de.embl.cba.bigdataprocessor.log.Logger;
+import de.embl.cba.bigdataprocessor.utils.IOScheduler;
 import de.embl.cba.bigdataprocessor.utils.Utils;
 import de.embl.cba.bigdataprocessor.virtualstack2.VirtualStack2;
 import ij.IJ;
@@ -18,6 +19,7 @@ public class SaveVS2TiffPlane implements Runnable {
     int c,t,z;
     BigDataProcessor bigDataProcessor;
     SavingSettings savingSettings;
+    ImageProcessor ip;
 
     Logger logger = new IJLazySwingLogger();
 
@@ -34,6 +36,20 @@ public class SaveVS2TiffPlane implements Runnable {
         this.savingSettings = savingSettings;
     }
 
+    /**
+     * @param ip the plane, if it has already been read
+     */
+    public SaveVS2TiffPlane( BigDataProcessor bigDataProcessor,
+                             int c,
+                             int t,
+                             int z,
+                             SavingSettings savingSettings,
+                             ImageProcessor ip )
+    {
+        this( bigDataProcessor, c, t, z, savingSettings );
+        this.ip = ip;
+    }
+
     public void run()
     {
 
@@ -43,13 +59,13 @@ public class SaveVS2TiffPlane implements Runnable {
         }
 
         ImagePlus imp = savingSettings.imp;
-        VirtualStack2 vs2 = ( VirtualStack2 ) imp.getStack();
 
-        int n = z + 1;
-        n += t * ( imp.getNSlices() * imp.getNChannels() );
-        n += c * imp.getNSlices();
+        if ( ip == null )
+        {
+            VirtualStack2 vs2 = ( VirtualStack2 ) imp.getStack();
+            ip = vs2.getProcessor( imp.getStackIndex( c + 1, z + 1, t + 1 ) );
+        }
 
-        ImageProcessor ip = vs2.getProcessor( n );
         ImagePlus impCTZ = new ImagePlus( "", ip );
 
         // Convert
@@ -108,7 +124,10 @@ public class SaveVS2TiffPlane implements Runnable {
                 pathCTZ = newPath + "--Z" + sZ + ".tif";
             }
 
-            fileSaver.saveAsTiff( pathCTZ );
+            try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( pathCTZ ) )
+            {
+                fileSaver.saveAsTiff( pathCTZ );
+            }
         }
     }
 }
@@ -0,0 +1,320 @@
+package de.embl.cba.bigdataprocessor.save;
+
+import de.embl.cba.bigdataprocessor.BigDataProcessor;
+import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
+import de.embl.cba.bigdataprocessor.log.Logger;
+import de.embl.cba.bigdataprocessor.utils.MemoryBudget;
+import de.embl.cba.imaris.ImarisDataSet;
+import ij.ImagePlus;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Saves all channels and time points in three stages that run concurrently:
+ * reading the data cubes, processing them (gating, conversion and binning) and writing them.
+ * The binnings of a data cube are written as soon as they are computed.
+ *
+ * The stages are connected by bounded queues, such that reading and processing the next data cubes
+ * overlaps with writing the current one, also when writing is single-threaded as for Hdf5,
+ * while only a few data cubes are in memory at any time.
+ * In addition, a data cube is only read once its estimated memory fits into the {@link MemoryBudget};
+ * the memory is reserved until all its outputs are written.
+ * Data cubes that are too large are not read as a whole, but in slabs while writing, see {@link SaveVS2Frame#isStreamed()}.
+ *
+ * The stages run in their own threads rather than in the pools of the IOScheduler,
+ * because reading a data cube itself submits tasks to these pools.
+ */
+public class SavingPipeline
+{
+    private static final int QUEUE_CAPACITY = 1;
+    private static final long POLL_INTERVAL_MILLIS = 200;
+
+    private static Logger logger = new IJLazySwingLogger();
+
+    private final BigDataProcessor bigDataProcessor;
+    private final SavingSettings savingSettings;
+    private final ImarisDataSet imarisDataSet;
+    private final int numWritingThreads;
+
+    private final BlockingQueue< Item > loaded = new ArrayBlockingQueue<>( QUEUE_CAPACITY );
+    private final BlockingQueue< Item > processed = new ArrayBlockingQueue<>( QUEUE_CAPACITY );
+
+    private final AtomicInteger counter = new AtomicInteger( 0 );
+    private final Set< MemoryBudget.Reservation > reservations = ConcurrentHashMap.newKeySet();
+    private long startTime;
+
+    private volatile boolean failed = false;
+    private final AtomicReference< String > firstFailure = new AtomicReference<>();
+
+    private static final Item END = new Item( null, 0, null, null, null );
+
+    private static class Item
+    {
+        final SaveVS2Frame frame;
+        final int c;
+        final SaveVS2Frame.Output output;
+        final AtomicInteger remainingOutputs;
+        final MemoryBudget.Reservation reservation;
+
+        Item( SaveVS2Frame frame, int c, SaveVS2Frame.Output output, AtomicInteger remainingOutputs,
+              MemoryBudget.Reservation reservation )
+        {
+            this.frame = frame;
+            this.c = c;
+            this.output = output;
+            this.remainingOutputs = remainingOutputs;
+            this.reservation = reservation;
+        }
+    }
+
+    public SavingPipeline( BigDataProcessor bigDataProcessor,
+                           SavingSettings savingSettings,
+                           ImarisDataSet imarisDataSet,
+                           int numWritingThreads )
+    {
+        this.bigDataProcessor = bigDataProcessor;
+        this.savingSettings = savingSettings;
+        this.imarisDataSet = imarisDataSet;
+        this.numWritingThreads = Math.max( 1, numWritingThreads );
+    }
+
+    /**
+     * Starts saving and returns immediately.
+     */
+    public void start()
+    {
+        startTime = System.currentTimeMillis();
+
+        // as many processing as writing threads, such that processing does not limit writing
+        final int numProcessingThreads = numWritingThreads;
+        final AtomicInteger runningProcessors = new AtomicInteger( numProcessingThreads );
+        final AtomicInteger runningWriters = new AtomicInteger( numWritingThreads );
+
+        startThread( "read", () -> read( numProcessingThreads ) );
+
+        for ( int i = 0; i < numProcessingThreads; i++ )
+        {
+            startThread( "process", () -> process( runningProcessors ) );
+        }
+
+        for ( int i = 0; i < numWritingThreads; i++ )
+        {
+            startThread( "write", () -> write( runningWriters ) );
+        }
+    }
+
+    private void read( int numProcessingThreads )
+    {
+        final ImagePlus imp = savingSettings.imp;
+
+        try
+        {
+            for ( int t = 0; t < imp.getNFrames(); t++ )
+            {
+                final SaveVS2Frame frame = new SaveVS2Frame( bigDataProcessor, t, savingSettings,
+                        imarisDataSet, counter, startTime );
+
+                for ( int c = 0; c < imp.getNChannels(); c++ )
+                {
+                    final MemoryBudget.Reservation reservation =
+                            MemoryBudget.getInstance().reserve( frame.estimateReservedBytesPerChannel() );
+                    reservations.add( reservation );
+
+                    if ( isStopped() ) return;
+
+                    // streamed data cubes are loaded slab by slab while they are written
+                    final SaveVS2Frame.Output output = frame.isStreamed() ?
+                            null : new SaveVS2Frame.Output( frame.load( c ), null );
+
+                    if ( ! put( loaded, new Item( frame, c, output, null, reservation ) ) ) return;
+                }
+            }
+        }
+        catch ( Throwable e )
+        {
+            fail( "reading", e );
+        }
+        finally
+        {
+            for ( int i = 0; i < numProcessingThreads; i++ ) put( loaded, END );
+            if ( isStopped() ) releaseAllReservations();
+        }
+    }
+
+    private void process( AtomicInteger runningProcessors )
+    {
+        try
+        {
+            Item item;
+            while ( ( item = take( loaded ) ) != END && item != null )
+            {
+                final Item loadedItem = item;
+
+                if ( item.output == null )
+                {
+                    // the binnings of a streamed data cube are written together by one writer, see SaveVS2Frame#saveStreamed
+                    if ( ! put( processed, new Item( item.frame, item.c, null, new AtomicInteger( 1 ), item.reservation ) ) ) return;
+                }
+                else
+                {
+                    final AtomicInteger remainingOutputs = new AtomicInteger( item.frame.getBinnings().size() );
+
+                    // each binning is written while the next, coarser ones are computed from it
+                    final boolean isProcessed = item.frame.process( item.output.imp, output ->
+                            put( processed, new Item( loadedItem.frame, loadedItem.c, output, remainingOutputs, loadedItem.reservation ) ) );
+                    if ( ! isProcessed ) return;
+                }
+            }
+        }
+        catch ( Throwable e )
+        {
+            // streamed data cubes throw when saving is stopped
+            if ( ! bigDataProcessor.interruptSavingThreads ) fail( "processing", e );
+        }
+        finally
+        {
+            // the last processing thread tells the writers to finish
+            if ( runningProcessors.decrementAndGet() == 0 )
+            {
+                for ( int i = 0; i < numWritingThreads; i++ ) put( processed, END );
+            }
+            if ( isStopped() ) releaseAllReservations();
+        }
+    }
+
+    private void write( AtomicInteger runningWriters )
+    {
+        final ImagePlus imp = savingSettings.imp;
+
+        try
+        {
+            Item item;
+            while ( ( item = take( processed ) ) != END && item != null )
+            {
+                if ( item.output == null ) item.frame.saveStreamed( item.c );
+                else item.frame.save( item.output, item.c );
+
+                if ( item.remainingOutputs.decrementAndGet() == 0 )
+                {
+                    release( item.reservation );
+                    item.frame.documentProgress( imp.getNFrames() * imp.getNChannels() );
+                }
+            }
+        }
+        catch ( Throwable e )
+        {
+            // streamed data cubes throw when saving is stopped
+            if ( ! bigDataProcessor.interruptSavingThreads ) fail( "writing", e );
+        }
+        finally
+        {
+            if ( isStopped() ) releaseAllReservations();
+
+            if ( runningWriters.decrementAndGet() == 0 && isStopped() )
+            {
+                logger.progress( "Stopped saving after: ", "" + counter.get() + " data cubes" );
+
+                // reported once, after all stages have finished
+                if ( failed )
+                {
+                    logger.error( firstFailure.get() + "\nSaved " + counter.get() + " data cubes; "
+                            + "see the log window for details." );
+                }
+            }
+        }
+    }
+
+    private void release( MemoryBudget.Reservation reservation )
+    {
+        reservation.close();
+        reservations.remove( reservation );
+    }
+
+    /**
+     * Releases the memory of the data cubes that are dropped when saving is stopped.
+     */
+    private void releaseAllReservations()
+    {
+        for ( MemoryBudget.Reservation reservation : reservations )
+        {
+            release( reservation );
+        }
+    }
+
+    private boolean isStopped()
+    {
+        return failed || bigDataProcessor.interruptSavingThreads;
+    }
+
+    /**
+     * Logs the failure and stops saving; the user is told about the first failure when saving has finished.
+     */
+    private void fail( String stage, Throwable e )
+    {
+        final StringWriter stackTrace = new StringWriter();
+        e.printStackTrace( new PrintWriter( stackTrace ) );
+        logger.warning( "Saving failed while " + stage + ": " + stackTrace );
+
+        firstFailure.compareAndSet( null, "Saving failed while " + stage + ": " + e.toString() );
+        failed = true;
+    }
+
+    /**
+     * Waits until there is space in the queue; the end marker is always delivered.
+     *
+     * @return false if saving has been stopped
+     */
+    private boolean put( BlockingQueue< Item > queue, Item item )
+    {
+        try
+        {
+            while ( ! queue.offer( item, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS ) )
+            {
+                if ( isStopped() && item != END ) return false;
+                if ( isStopped() ) queue.clear();
+            }
+            return true;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return null if saving has been stopped
+     */
+    private Item take( BlockingQueue< Item > queue )
+    {
+        try
+        {
+            Item item;
+            while ( ( item = queue.poll( POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS ) ) == null )
+            {
+                if ( isStopped() ) return null;
+            }
+            return isStopped() && item != END ? null : item;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static void startThread( String stage, Runnable runnable )
+    {
+        final Thread thread = new Thread( runnable, "BigDataProcessor saving " + stage );
+        thread.setDaemon( true );
+        thread.start();
+    }
+}
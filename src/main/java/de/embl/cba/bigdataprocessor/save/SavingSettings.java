@@ -2,6 +2,7 @@ package de.embl.cba.bigdataprocessor.save;
 
 import de.embl.cba.bigdataprocessor.utils.Utils;
 import ij.ImagePlus;
+import ij.plugin.Binner;
 
 /**
  * Created by tischi on 22/05/17.
@@ -10,6 +11,7 @@ public class SavingSettings {
 
     public ImagePlus imp;
     public String bin;
+    public int binningMethod = Binner.AVERAGE;
     public boolean saveVolumes;
     public boolean saveProjections;
     public boolean convertTo8Bit;
@@ -23,6 +25,10 @@ public class SavingSettings {
     public Utils.FileType fileType;
     public String compression;
     public int rowsPerStrip;
-    public int nThreads;
+    public int hdf5DeflateLevel;
+    public boolean hdf5Shuffle;
+    public int[] hdf5ChunkDimensions; // x, y, z; null to choose them for the access pattern
+    public Hdf5Storage.AccessPattern hdf5AccessPattern = Hdf5Storage.AccessPattern.PLANES;
+    public int nThreads; // also sizes the shared I/O pools, see BigDataProcessor#setNumIOThreads
 
 }
@@ -0,0 +1,144 @@
+package de.embl.cba.bigdataprocessor.save;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/**
+ * The processed planes of one channel and time point of a {@link SaveVS2Frame},
+ * which are loaded, gated, converted and binned in slabs of planes when they are accessed, see {@link CascadedSlabs}.
+ *
+ * Only the current slab is kept in memory; the planes are meant to be accessed in order, as done by the writers.
+ * If saving is stopped or a slab can not be loaded, accessing its planes throws an IllegalStateException,
+ * because the writers have no other way to learn about it.
+ */
+class SlabStack extends VirtualStack
+{
+    private final CascadedSlabs slabs;
+    private final int binningIndex;
+    private final int planesPerSlab;
+    private final int size;
+
+    private int currentSlab = -1;
+    private ImagePlus slab;
+    private Calibration calibration;
+    private ProjectionXYZ projection;
+    private int numProjectedSlabs = 0;
+
+    SlabStack( CascadedSlabs slabs, int binningIndex, int[] binning )
+    {
+        super( slabs.getImagePlus().getWidth() / Math.max( 1, binning[0] ),
+                slabs.getImagePlus().getHeight() / Math.max( 1, binning[1] ),
+                null, null );
+
+        this.slabs = slabs;
+        this.binningIndex = binningIndex;
+        this.planesPerSlab = slabs.getSlabSize() / Math.max( 1, binning[2] );
+        this.size = slabs.getImagePlus().getNSlices() / Math.max( 1, binning[2] );
+    }
+
+    int getPlanesPerSlab()
+    {
+        return planesPerSlab;
+    }
+
+    /**
+     * The calibration of the binned planes.
+     */
+    synchronized Calibration getCalibration()
+    {
+        if ( calibration == null ) loadSlab( 0 );
+        return calibration;
+    }
+
+    /**
+     * Adds the planes to the projection while they are read, such that the projection
+     * does not need to read the data cube again.
+     */
+    synchronized void setProjection( ProjectionXYZ projection )
+    {
+        this.projection = projection;
+        if ( currentSlab == 0 ) project( slab, currentSlab );
+    }
+
+    /**
+     * @return whether all planes have been added to the projection
+     */
+    synchronized boolean isProjected()
+    {
+        return projection != null && numProjectedSlabs * planesPerSlab >= size;
+    }
+
+    /**
+     * Called when the planes have been written, see {@link CascadedSlabs#finish}.
+     */
+    synchronized void finish()
+    {
+        slab = null;
+        currentSlab = -1;
+        slabs.finish( binningIndex );
+    }
+
+    @Override
+    public synchronized ImageProcessor getProcessor( int n )
+    {
+        final int slabIndex = ( n - 1 ) / planesPerSlab;
+        if ( slabIndex != currentSlab ) loadSlab( slabIndex );
+
+        return slab.getStack().getProcessor( n - slabIndex * planesPerSlab );
+    }
+
+    @Override
+    public Object getPixels( int n )
+    {
+        return getProcessor( n ).getPixels();
+    }
+
+    @Override
+    public void setPixels( Object pixels, int n )
+    {
+    }
+
+    @Override
+    public int getSize()
+    {
+        return size;
+    }
+
+    @Override
+    public String getSliceLabel( int n )
+    {
+        return null;
+    }
+
+    private void loadSlab( int slabIndex )
+    {
+        // release the previous slab before loading the next one
+        slab = null;
+        currentSlab = -1;
+
+        slab = slabs.take( binningIndex, slabIndex );
+        if ( slab == null ) throw new IllegalStateException( "Saving has been stopped or the planes could not be loaded." );
+
+        currentSlab = slabIndex;
+
+        if ( calibration == null ) calibration = slab.getCalibration().copy();
+
+        project( slab, slabIndex );
+    }
+
+    private void project( ImagePlus slab, int slabIndex )
+    {
+        // slabs that are read again have been added already
+        if ( projection == null || slabIndex != numProjectedSlabs ) return;
+
+        final int firstPlane = slabIndex * planesPerSlab;
+        for ( int i = 1; i <= slab.getStackSize() && firstPlane + i <= size; i++ )
+        {
+            projection.addPlane( firstPlane + i, slab.getStack().getProcessor( i ) );
+        }
+
+        numProjectedSlabs++;
+    }
+}
@@ -0,0 +1,605 @@
+package de.embl.cba.bigdataprocessor.save;
+
+import de.embl.cba.bigdataprocessor.utils.IOScheduler;
+import ij.ImageJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 8-bit, 16-bit and 32-bit stacks as LZW or ZIP (Deflate) compressed Tiff files;
+ * 8-bit and 16-bit planes are zipped with the horizontal predictor, 32-bit floating point planes without predictor.
+ *
+ * The strips of each plane are compressed in parallel in the compression pool of the {@link IOScheduler},
+ * while the strips of the previous plane are written. The planes are accessed in order and converted strip by strip,
+ * such that also a {@link SlabStack} can be written. The image file directories are written at the end of the file;
+ * if the file would exceed 4 GB, it is written as BigTiff.
+ *
+ * The device access of the {@link IOScheduler} is only held while the strips of a plane are written,
+ * not while the planes are read, because reading the planes of a SlabStack needs device access itself.
+ */
+class TiffStackWriter
+{
+    static final String LZW = "LZW";
+    static final String ZIP = "ZIP";
+
+    // Tiff tags
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_LENGTH = 257;
+    private static final int BITS_PER_SAMPLE = 258;
+    private static final int COMPRESSION = 259;
+    private static final int PHOTOMETRIC_INTERPRETATION = 262;
+    private static final int IMAGE_DESCRIPTION = 270;
+    private static final int STRIP_OFFSETS = 273;
+    private static final int SAMPLES_PER_PIXEL = 277;
+    private static final int ROWS_PER_STRIP = 278;
+    private static final int STRIP_BYTE_COUNTS = 279;
+    private static final int X_RESOLUTION = 282;
+    private static final int Y_RESOLUTION = 283;
+    private static final int RESOLUTION_UNIT = 296;
+    private static final int PREDICTOR = 317;
+    private static final int SAMPLE_FORMAT = 339;
+
+    // Tiff field types
+    private static final short ASCII = 2;
+    private static final short SHORT = 3;
+    private static final short LONG = 4;
+    private static final short RATIONAL = 5;
+    private static final short LONG8 = 16;
+
+    private static final int COMPRESSION_LZW = 5;
+    private static final int COMPRESSION_DEFLATE = 8;
+    private static final int PREDICTOR_HORIZONTAL = 2;
+    private static final int SAMPLE_FORMAT_FLOAT = 3;
+
+    // the header is written at the end; reserve space for the larger BigTiff header
+    private static final int HEADER_SPACE = 16;
+
+    private static final ThreadLocal< LzwEncoder > lzwEncoders = ThreadLocal.withInitial( LzwEncoder::new );
+    private static final ThreadLocal< Deflater > deflaters = ThreadLocal.withInitial( Deflater::new );
+    private static final ThreadLocal< byte[][] > stripBuffers = ThreadLocal.withInitial( () -> new byte[ 1 ][ 0 ] );
+
+    private final String path;
+    private final boolean isZip;
+    private final int rowsPerStrip;
+
+    private int width, height, bytesPerPixel, numStrips;
+
+    /**
+     * @param compression {@link #LZW} or {@link #ZIP}
+     */
+    TiffStackWriter( String path, String compression, int rowsPerStrip )
+    {
+        this.path = path;
+        this.isZip = compression.equals( ZIP );
+        this.rowsPerStrip = Math.max( 1, rowsPerStrip );
+    }
+
+    /**
+     * @return whether the images can be written, i.e. are not RGB
+     */
+    static boolean isSupported( ImagePlus imp )
+    {
+        final int bitDepth = imp.getBitDepth();
+        return bitDepth == 8 || bitDepth == 16 || bitDepth == 32;
+    }
+
+    void write( ImagePlus imp ) throws IOException
+    {
+        final ImageStack stack = imp.getStack();
+        final int n = stack.getSize();
+
+        width = imp.getWidth();
+        height = imp.getHeight();
+        bytesPerPixel = imp.getBytesPerPixel();
+        numStrips = ( height + rowsPerStrip - 1 ) / rowsPerStrip;
+
+        if ( ! isSupported( imp ) )
+        {
+            throw new IOException( "Only 8-bit, 16-bit and 32-bit images can be saved as compressed Tiff." );
+        }
+
+        final long[][] stripOffsets = new long[ n ][ numStrips ];
+        final long[][] stripByteCounts = new long[ n ][ numStrips ];
+
+        try ( FileChannel channel = FileChannel.open( Paths.get( path ),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) )
+        {
+            long position = HEADER_SPACE;
+
+            // compress the next plane while writing the current one
+            List< Future< byte[][] > > next = compress( stack.getPixels( 1 ) );
+            for ( int z = 0; z < n; z++ )
+            {
+                final List< Future< byte[][] > > current = next;
+                next = z + 1 < n ? compress( stack.getPixels( z + 2 ) ) : null;
+
+                final List< byte[] > strips = getStrips( current );
+
+                try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( path ) )
+                {
+                    int strip = 0;
+                    for ( byte[] compressed : strips )
+                    {
+                        stripOffsets[ z ][ strip ] = position;
+                        stripByteCounts[ z ][ strip ] = compressed.length;
+                        position = write( channel, ByteBuffer.wrap( compressed ), position );
+                        strip++;
+                    }
+                }
+            }
+
+            try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( path ) )
+            {
+                writeImageFileDirectories( channel, position, stripOffsets, stripByteCounts, imp.getCalibration() );
+            }
+        }
+    }
+
+    private List< Future< byte[][] > > compress( Object pixels )
+    {
+        final int numTasks = Math.max( 1, Math.min( numStrips,
+                IOScheduler.getInstance().getNumThreads( IOScheduler.Pool.COMPRESSION ) ) );
+
+        final List< Future< byte[][] > > futures = new ArrayList<>();
+        for ( int task = 0; task < numTasks; task++ )
+        {
+            final int first = ( int ) ( ( long ) numStrips * task / numTasks );
+            final int last = ( int ) ( ( long ) numStrips * ( task + 1 ) / numTasks );
+            futures.add( IOScheduler.getInstance().submit( IOScheduler.Pool.COMPRESSION,
+                    () -> compressStrips( pixels, first, last ) ) );
+        }
+
+        return futures;
+    }
+
+    private static List< byte[] > getStrips( List< Future< byte[][] > > futures ) throws IOException
+    {
+        final List< byte[] > strips = new ArrayList<>();
+        for ( Future< byte[][] > future : futures )
+        {
+            try
+            {
+                strips.addAll( Arrays.asList( future.get() ) );
+            }
+            catch ( InterruptedException | ExecutionException e )
+            {
+                throw new IOException( "Strip compression failed: " + e.toString() );
+            }
+        }
+        return strips;
+    }
+
+    /**
+     * Compresses the strips with the indices first (inclusive) to last (exclusive).
+     */
+    private byte[][] compressStrips( Object pixels, int first, int last )
+    {
+        final byte[][] compressed = new byte[ last - first ][];
+
+        for ( int strip = first; strip < last; strip++ )
+        {
+            final int firstRow = strip * rowsPerStrip;
+            final int numRows = Math.min( rowsPerStrip, height - firstRow );
+            final int numBytes = numRows * width * bytesPerPixel;
+
+            final byte[] buffer = getStripBuffer( numBytes );
+            toBytes( pixels, firstRow, numRows, buffer );
+
+            compressed[ strip - first ] = isZip ? deflate( buffer, numBytes ) : lzwEncoders.get().encode( buffer, numBytes );
+        }
+
+        return compressed;
+    }
+
+    private static byte[] getStripBuffer( int numBytes )
+    {
+        final byte[][] holder = stripBuffers.get();
+        if ( holder[ 0 ].length < numBytes ) holder[ 0 ] = new byte[ numBytes ];
+        return holder[ 0 ];
+    }
+
+    /**
+     * Copies the rows in little endian byte order; for ZIP with horizontal differencing of integer pixels.
+     */
+    private void toBytes( Object pixels, int firstRow, int numRows, byte[] buffer )
+    {
+        if ( bytesPerPixel == 1 )
+        {
+            final byte[] bytes = ( byte[] ) pixels;
+            System.arraycopy( bytes, firstRow * width, buffer, 0, numRows * width );
+
+            if ( isZip )
+            {
+                for ( int row = 0; row < numRows; row++ )
+                {
+                    final int start = row * width;
+                    for ( int x = width - 1; x > 0; x-- )
+                    {
+                        buffer[ start + x ] -= buffer[ start + x - 1 ];
+                    }
+                }
+            }
+        }
+        else if ( bytesPerPixel == 4 )
+        {
+            final float[] floats = ( float[] ) pixels;
+            int j = 0;
+            for ( int i = firstRow * width; i < ( firstRow + numRows ) * width; i++ )
+            {
+                final int v = Float.floatToRawIntBits( floats[ i ] );
+                buffer[ j++ ] = ( byte ) v;
+                buffer[ j++ ] = ( byte ) ( v >> 8 );
+                buffer[ j++ ] = ( byte ) ( v >> 16 );
+                buffer[ j++ ] = ( byte ) ( v >> 24 );
+            }
+        }
+        else
+        {
+            final short[] shorts = ( short[] ) pixels;
+            int j = 0;
+            for ( int row = 0; row < numRows; row++ )
+            {
+                final int start = ( firstRow + row ) * width;
+                short previous = 0;
+                for ( int x = 0; x < width; x++ )
+                {
+                    final short value = shorts[ start + x ];
+                    final int v = isZip ? value - previous : value;
+                    previous = value;
+                    buffer[ j++ ] = ( byte ) v;
+                    buffer[ j++ ] = ( byte ) ( v >> 8 );
+                }
+            }
+        }
+    }
+
+    private static byte[] deflate( byte[] buffer, int numBytes )
+    {
+        final Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput( buffer, 0, numBytes );
+        deflater.finish();
+
+        byte[] output = new byte[ numBytes / 2 + 64 ];
+        int length = 0;
+        while ( ! deflater.finished() )
+        {
+            if ( length == output.length ) output = Arrays.copyOf( output, 2 * output.length );
+            length += deflater.deflate( output, length, output.length - length );
+        }
+
+        return Arrays.copyOf( output, length );
+    }
+
+    private void writeImageFileDirectories( FileChannel channel, long position,
+                                            long[][] stripOffsets, long[][] stripByteCounts,
+                                            Calibration calibration ) throws IOException
+    {
+        final int n = stripOffsets.length;
+
+        // classic Tiff uses 32 bit offsets
+        final long classicIfdBytes = ( long ) n * ( 512 + 8L * numStrips );
+        final boolean isBigTiff = position + classicIfdBytes >= 0xFFFFFFFFL;
+
+        position += position % 2; // word alignment
+        final long firstIfd = position;
+
+        for ( int z = 0; z < n; z++ )
+        {
+            final Ifd ifd = new Ifd( isBigTiff );
+            ifd.add( IMAGE_WIDTH, LONG, width );
+            ifd.add( IMAGE_LENGTH, LONG, height );
+            ifd.add( BITS_PER_SAMPLE, SHORT, 8 * bytesPerPixel );
+            ifd.add( COMPRESSION, SHORT, isZip ? COMPRESSION_DEFLATE : COMPRESSION_LZW );
+            ifd.add( PHOTOMETRIC_INTERPRETATION, SHORT, 1 );
+            if ( z == 0 ) ifd.addAscii( IMAGE_DESCRIPTION, getDescription( n, calibration ) );
+            ifd.addArray( STRIP_OFFSETS, isBigTiff ? LONG8 : LONG, stripOffsets[ z ] );
+            ifd.add( SAMPLES_PER_PIXEL, SHORT, 1 );
+            ifd.add( ROWS_PER_STRIP, LONG, rowsPerStrip );
+            ifd.addArray( STRIP_BYTE_COUNTS, LONG, stripByteCounts[ z ] );
+            if ( calibration.scaled() )
+            {
+                ifd.addRational( X_RESOLUTION, 1.0 / calibration.pixelWidth );
+                ifd.addRational( Y_RESOLUTION, 1.0 / calibration.pixelHeight );
+                ifd.add( RESOLUTION_UNIT, SHORT, 1 );
+            }
+            if ( isZip && bytesPerPixel < 4 ) ifd.add( PREDICTOR, SHORT, PREDICTOR_HORIZONTAL );
+            if ( bytesPerPixel == 4 ) ifd.add( SAMPLE_FORMAT, SHORT, SAMPLE_FORMAT_FLOAT );
+
+            final ByteBuffer buffer = ifd.toBytes( position, z < n - 1 );
+            position = write( channel, buffer, position );
+            position += position % 2;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate( HEADER_SPACE ).order( ByteOrder.LITTLE_ENDIAN );
+        header.put( ( byte ) 'I' ).put( ( byte ) 'I' );
+        if ( isBigTiff )
+        {
+            header.putShort( ( short ) 43 ).putShort( ( short ) 8 ).putShort( ( short ) 0 ).putLong( firstIfd );
+        }
+        else
+        {
+            header.putShort( ( short ) 42 ).putInt( ( int ) firstIfd );
+        }
+        header.rewind();
+        write( channel, header, 0 );
+    }
+
+    /**
+     * As written by ImageJ, such that ImageJ restores the calibration.
+     */
+    private static String getDescription( int n, Calibration calibration )
+    {
+        final StringBuilder description = new StringBuilder( "ImageJ=" + ImageJ.VERSION + "\n" );
+        if ( n > 1 ) description.append( "slices=" ).append( n ).append( "\n" );
+        if ( calibration.scaled() )
+        {
+            description.append( "unit=" ).append( calibration.getUnit() ).append( "\n" );
+            if ( n > 1 ) description.append( "spacing=" ).append( calibration.pixelDepth ).append( "\n" );
+        }
+        return description.toString();
+    }
+
+    private static long write( FileChannel channel, ByteBuffer buffer, long position ) throws IOException
+    {
+        while ( buffer.hasRemaining() )
+        {
+            position += channel.write( buffer, position );
+        }
+        return position;
+    }
+
+    /**
+     * An image file directory; the values that do not fit into the entries are stored right after it.
+     */
+    private static class Ifd
+    {
+        private final boolean isBigTiff;
+        private final List< int[] > headers = new ArrayList<>(); // tag, type, count
+        private final List< byte[] > values = new ArrayList<>();
+
+        Ifd( boolean isBigTiff )
+        {
+            this.isBigTiff = isBigTiff;
+        }
+
+        void add( int tag, short type, long value )
+        {
+            addArray( tag, type, new long[]{ value } );
+        }
+
+        void addArray( int tag, short type, long[] array )
+        {
+            final ByteBuffer buffer = ByteBuffer.allocate( array.length * getSize( type ) ).order( ByteOrder.LITTLE_ENDIAN );
+            for ( long value : array )
+            {
+                if ( type == SHORT ) buffer.putShort( ( short ) value );
+                else if ( type == LONG ) buffer.putInt( ( int ) value );
+                else buffer.putLong( value );
+            }
+            put( tag, type, array.length, buffer.array() );
+        }
+
+        /**
+         * Chooses the largest denominator for which the numerator still fits;
+         * both are kept below 2^31, because ImageJ reads them as signed integers.
+         */
+        void addRational( int tag, double value )
+        {
+            final long denominator = ( long ) Math.max( 1, Math.min( Integer.MAX_VALUE, Integer.MAX_VALUE / Math.max( 1.0, value ) ) );
+            final long numerator = Math.min( Integer.MAX_VALUE, Math.round( value * denominator ) );
+
+            final ByteBuffer buffer = ByteBuffer.allocate( 8 ).order( ByteOrder.LITTLE_ENDIAN );
+            buffer.putInt( ( int ) numerator ).putInt( ( int ) denominator );
+            put( tag, RATIONAL, 1, buffer.array() );
+        }
+
+        void addAscii( int tag, String value )
+        {
+            final byte[] bytes = Arrays.copyOf( value.getBytes( StandardCharsets.US_ASCII ), value.length() + 1 );
+            put( tag, ASCII, bytes.length, bytes );
+        }
+
+        private void put( int tag, short type, int count, byte[] value )
+        {
+            headers.add( new int[]{ tag, type, count } );
+            values.add( value );
+        }
+
+        /**
+         * @param position of the directory in the file
+         * @param hasNext whether another directory follows right after this one and its values
+         */
+        ByteBuffer toBytes( long position, boolean hasNext )
+        {
+            final int valueSize = isBigTiff ? 8 : 4;
+            final int entrySize = isBigTiff ? 20 : 12;
+            final int directorySize = ( isBigTiff ? 16 : 6 ) + headers.size() * entrySize;
+
+            int valuesSize = 0;
+            for ( byte[] value : values )
+            {
+                if ( value.length > valueSize ) valuesSize += value.length + value.length % 2;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate( directorySize + valuesSize ).order( ByteOrder.LITTLE_ENDIAN );
+            long valuePosition = position + directorySize;
+            final long next = hasNext ? position + directorySize + valuesSize : 0;
+
+            if ( isBigTiff ) buffer.putLong( headers.size() );
+            else buffer.putShort( ( short ) headers.size() );
+
+            for ( int i = 0; i < headers.size(); i++ )
+            {
+                final int[] header = headers.get( i );
+                final byte[] value = values.get( i );
+
+                buffer.putShort( ( short ) header[ 0 ] ).putShort( ( short ) header[ 1 ] );
+                if ( isBigTiff ) buffer.putLong( header[ 2 ] );
+                else buffer.putInt( header[ 2 ] );
+
+                if ( value.length <= valueSize )
+                {
+                    buffer.put( Arrays.copyOf( value, valueSize ) );
+                }
+                else
+                {
+                    if ( isBigTiff ) buffer.putLong( valuePosition );
+                    else buffer.putInt( ( int ) valuePosition );
+                    valuePosition += value.length + value.length % 2;
+                }
+            }
+
+            if ( isBigTiff ) buffer.putLong( next );
+            else buffer.putInt( ( int ) next );
+
+            for ( byte[] value : values )
+            {
+                if ( value.length > valueSize )
+                {
+                    buffer.put( value );
+                    if ( value.length % 2 == 1 ) buffer.put( ( byte ) 0 );
+                }
+            }
+
+            buffer.rewind();
+            return buffer;
+        }
+
+        private static int getSize( short type )
+        {
+            return type == SHORT ? 2 : type == LONG ? 4 : 8;
+        }
+    }
+
+    /**
+     * Tiff LZW compression, with the same code length changes and table resets as libtiff.
+     * The string table is a hash table that is reused for all strips of a thread.
+     */
+    static class LzwEncoder
+    {
+        private static final int CLEAR_CODE = 256;
+        private static final int EOI_CODE = 257;
+        private static final int FIRST_CODE = 258;
+        private static final int MAX_CODE = 4095;
+        private static final int MIN_CODE_LENGTH = 9;
+
+        private static final int HASH_SIZE = 1 << 13;
+
+        private final int[] keys = new int[ HASH_SIZE ];
+        private final short[] codes = new short[ HASH_SIZE ];
+
+        private byte[] output = new byte[ 1024 ];
+        private int length;
+        private long bits;
+        private int numBits;
+
+        byte[] encode( byte[] src, int numBytes )
+        {
+            length = 0;
+            bits = 0;
+            numBits = 0;
+
+            if ( numBytes == 0 ) return new byte[ 0 ];
+
+            int nextCode = FIRST_CODE;
+            int codeLength = MIN_CODE_LENGTH;
+            Arrays.fill( keys, -1 );
+
+            writeCode( CLEAR_CODE, codeLength );
+            int prefix = src[ 0 ] & 0xff;
+
+            for ( int i = 1; i < numBytes; i++ )
+            {
+                final int b = src[ i ] & 0xff;
+                final int key = ( prefix << 8 ) | b;
+
+                int slot = hash( key );
+                while ( keys[ slot ] != -1 && keys[ slot ] != key )
+                {
+                    slot = ( slot + 1 ) & ( HASH_SIZE - 1 );
+                }
+
+                if ( keys[ slot ] == key )
+                {
+                    prefix = codes[ slot ];
+                    continue;
+                }
+
+                writeCode( prefix, codeLength );
+
+                keys[ slot ] = key;
+                codes[ slot ] = ( short ) nextCode;
+                nextCode++;
+
+                if ( nextCode == MAX_CODE - 1 )
+                {
+                    writeCode( CLEAR_CODE, codeLength );
+                    Arrays.fill( keys, -1 );
+                    nextCode = FIRST_CODE;
+                    codeLength = MIN_CODE_LENGTH;
+                }
+                else if ( nextCode > ( 1 << codeLength ) - 1 )
+                {
+                    codeLength++;
+                }
+
+                prefix = b;
+            }
+
+            writeCode( prefix, codeLength );
+            nextCode++;
+            if ( nextCode == MAX_CODE - 1 )
+            {
+                writeCode( CLEAR_CODE, codeLength );
+                codeLength = MIN_CODE_LENGTH;
+            }
+            else if ( nextCode > ( 1 << codeLength ) - 1 )
+            {
+                codeLength++;
+            }
+
+            writeCode( EOI_CODE, codeLength );
+            if ( numBits > 0 ) writeByte( ( int ) ( bits << ( 8 - numBits ) ) );
+
+            return Arrays.copyOf( output, length );
+        }
+
+        private static int hash( int key )
+        {
+            return ( key * 0x9E3779B1 >>> 19 ) & ( HASH_SIZE - 1 );
+        }
+
+        private void writeCode( int code, int codeLength )
+        {
+            bits = ( bits << codeLength ) | code;
+            numBits += codeLength;
+            while ( numBits >= 8 )
+            {
+                writeByte( ( int ) ( bits >> ( numBits - 8 ) ) );
+                numBits -= 8;
+            }
+        }
+
+        private void writeByte( int value )
+        {
+            if ( length == output.length ) output = Arrays.copyOf( output, 2 * output.length );
+            output[ length++ ] = ( byte ) value;
+        }
+    }
+}
@@ -5,10 +5,13 @@ import de.embl.cba.bigdataprocessor.track.AdaptiveCropUI;
 import de.embl.cba.imaris.ImarisUtils;
 import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
 import de.embl.cba.bigdataprocessor.log.Logger;
+import de.embl.cba.bigdataprocessor.save.Hdf5Storage;
 import de.embl.cba.bigdataprocessor.save.SavingSettings;
+import de.embl.cba.bigdataprocessor.utils.IOScheduler;
 import de.embl.cba.bigdataprocessor.utils.ImageDataInfo;
 import de.embl.cba.bigdataprocessor.utils.SpringUtilities;
 import de.embl.cba.bigdataprocessor.utils.Utils;
+import de.embl.cba.bigdataprocessor.virtualstack2.PlaneCache;
 import de.embl.cba.bigdataprocessor.virtualstack2.VirtualStack2;
 import ij.CompositeImage;
 import ij.IJ;
@@ -41,17 +44,24 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
 
     JCheckBox cbVerboseLogging = new JCheckBox("Verbose Logging");
     JCheckBox cbLZW = new JCheckBox("LZW Compression (Tiff)");
+    JCheckBox cbZIP = new JCheckBox("ZIP Compression (Tiff, Hdf5)");
     JCheckBox cbSaveVolume = new JCheckBox("Save Volume Data");
     JCheckBox cbSaveProjection = new JCheckBox("Save Projections");
     JCheckBox cbConvertTo8Bit = new JCheckBox("8-bit Conversion   ");
     JCheckBox cbConvertTo16Bit = new JCheckBox("16-bit Conversion");
     JCheckBox cbGating = new JCheckBox("Gate");
+    JCheckBox cbHdf5Shuffle = new JCheckBox( "Shuffle bytes before ZIP compression (Hdf5)" );
+    JCheckBox cbParseLazily = new JCheckBox("Parse file headers on demand");
 
     JTextField tfBinning = new JTextField("1,1,1", 10);
     JTextField tfCropZMinMax = new JTextField("1,all", 5);
     JTextField tfCropTMinMax = new JTextField("1,all", 5);
     JTextField tfIOThreads = new JTextField("5", 2);
+    JTextField tfPlaneCacheMB = new JTextField( "" + PlaneCache.DEFAULT_MAX_SIZE_MB, 5 );
+    JTextField tfIOPerDevice = new JTextField( "" + IOScheduler.DEFAULT_MAX_ACCESSES_PER_DEVICE, 2 );
     JTextField tfRowsPerStrip = new JTextField("10", 3);
+    JTextField tfHdf5DeflateLevel = new JTextField( "" + Hdf5Storage.DEFAULT_DEFLATE_LEVEL, 2 );
+    JTextField tfHdf5ChunkDimensions = new JTextField( "auto", 10 );
     JTextField tfMapTo255 = new JTextField("65535",5);
     JTextField tfMapTo0 = new JTextField("0",5);
     JTextField tfGateMin = new JTextField("0",5);
@@ -97,6 +107,8 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
             "ITKImage/0/VoxelData"
             });
 
+    JComboBox comboHdf5AccessPattern = new JComboBox( Hdf5Storage.AccessPattern.values() );
+
     JComboBox comboFileTypeForSaving = new JComboBox( new Utils.FileType[]{
             Utils.FileType.TIFF_STACKS,
             Utils.FileType.TIFF_PLANES,
@@ -146,6 +158,9 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
     private JTextField inputFolderTF;
     private String inputFolder;
     private JLabel rowsPerStripLabel;
+    private JLabel hdf5DeflateLevelLabel;
+    private JLabel hdf5AccessPatternLabel;
+    private JLabel hdf5ChunkDimensionsLabel;
 
     public void showDialog()
     {
@@ -181,6 +196,24 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
 
         miscPanel.add( new JLabel("I/O threads") );
 		miscPanel.add( tfIOThreads );
+        tfIOThreads.addActionListener( e ->
+                IOScheduler.getInstance().setNumIOThreads( ( int ) parseSetting( tfIOThreads, 1, Integer.MAX_VALUE,
+                        IOScheduler.getInstance().getNumThreads( IOScheduler.Pool.READING ) ) ) );
+        tfIOThreads.addFocusListener( this );
+
+        miscPanel.add( new JLabel("Max. concurrent file accesses per disk") );
+        miscPanel.add( tfIOPerDevice );
+        tfIOPerDevice.addActionListener( e ->
+                IOScheduler.getInstance().setMaxAccessesPerDevice( ( int ) parseSetting( tfIOPerDevice, 1, Integer.MAX_VALUE,
+                        IOScheduler.getInstance().getMaxAccessesPerDevice() ) ) );
+        tfIOPerDevice.addFocusListener( this );
+
+        miscPanel.add( new JLabel("Plane cache [MB]") );
+        miscPanel.add( tfPlaneCacheMB );
+        tfPlaneCacheMB.addActionListener( e ->
+                PlaneCache.getInstance().setMaxSizeMB( parseSetting( tfPlaneCacheMB, 0, Long.MAX_VALUE,
+                        PlaneCache.getInstance().getMaxSizeMB() ) ) );
+        tfPlaneCacheMB.addFocusListener( this );
 
 		miscPanel.add( new JLabel(" ") );
 		miscPanel.add( cbVerboseLogging );
@@ -194,7 +227,7 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
 
 		SpringUtilities.makeCompactGrid(
 				miscPanel,
-				3, 2,
+				5, 2,
 				6, 6,
 				6, 6);
 
@@ -248,19 +281,48 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
 
         savingPanel.add(cbLZW);
         cbLZW.addItemListener( e -> {
-			tfRowsPerStrip.setVisible( cbLZW.isSelected() );
-            rowsPerStripLabel.setVisible( cbLZW.isSelected()  );
+            if ( cbLZW.isSelected() ) cbZIP.setSelected( false );
+			tfRowsPerStrip.setVisible( cbLZW.isSelected() || cbZIP.isSelected() );
+            rowsPerStripLabel.setVisible( cbLZW.isSelected() || cbZIP.isSelected() );
 			savingPanel.invalidate();
 			savingPanel.validate();
 		} );
-        savingPanel.add(new JLabel( " " ));
+        savingPanel.add(cbZIP);
+        cbZIP.addItemListener( e -> {
+            if ( cbZIP.isSelected() ) cbLZW.setSelected( false );
+            tfRowsPerStrip.setVisible( cbLZW.isSelected() || cbZIP.isSelected() );
+            rowsPerStripLabel.setVisible( cbLZW.isSelected() || cbZIP.isSelected() );
+            setHdf5StorageVisibility();
+            savingPanel.invalidate();
+            savingPanel.validate();
+        } );
         cbLZW.setSelected(false);
-        rowsPerStripLabel = new JLabel( "LZW rows per strip [#]" );
+        cbZIP.setSelected(false);
+        rowsPerStripLabel = new JLabel( "Compression rows per strip [#]" );
         savingPanel.add( rowsPerStripLabel );
         savingPanel.add(tfRowsPerStrip);
         tfRowsPerStrip.setVisible( false );
         rowsPerStripLabel.setVisible( false );
 
+        hdf5DeflateLevelLabel = new JLabel( "Hdf5 ZIP compression level [0-9]" );
+        savingPanel.add( hdf5DeflateLevelLabel );
+        savingPanel.add( tfHdf5DeflateLevel );
+        savingPanel.add( cbHdf5Shuffle );
+        savingPanel.add( new JLabel( " " ) );
+        cbHdf5Shuffle.setSelected( true );
+        hdf5AccessPatternLabel = new JLabel( "Hdf5 chunks for reading" );
+        savingPanel.add( hdf5AccessPatternLabel );
+        savingPanel.add( comboHdf5AccessPattern );
+        hdf5ChunkDimensionsLabel = new JLabel( "Hdf5 chunk size [pixels]: x,y,z or auto" );
+        savingPanel.add( hdf5ChunkDimensionsLabel );
+        savingPanel.add( tfHdf5ChunkDimensions );
+        setHdf5StorageVisibility();
+        comboFileTypeForSaving.addActionListener( e -> {
+            setHdf5StorageVisibility();
+            savingPanel.invalidate();
+            savingPanel.validate();
+        } );
+
         savingPanel.add(cbConvertTo8Bit);
         savingPanel.add(new JLabel( " " ));
         final JLabel label255 = new JLabel( "255 =" );
@@ -301,13 +363,66 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
 
         SpringUtilities.makeCompactGrid(
                 savingPanel,
-                12, 2, //rows, cols
+                16, 2, //rows, cols
                 6, 6, //initX, initY
                 6, 6); //xPad, yPad
 
         tabbedPane.add("Saving", mainPanels.get(mainPanelIdx++));
     }
 
+    /**
+     * Parses a numeric setting and clamps it to [ min, max ]; the text field is updated to the value that is used,
+     * which is the current one if the text is not a number.
+     */
+    private long parseSetting( JTextField textField, long min, long max, long current )
+    {
+        long value;
+        try
+        {
+            value = Math.min( max, Math.max( min, Long.parseLong( textField.getText().trim() ) ) );
+        }
+        catch ( NumberFormatException e )
+        {
+            logger.warning( "Not a number: " + textField.getText() );
+            value = current;
+        }
+        textField.setText( "" + value );
+        return value;
+    }
+
+    /**
+     * The chunks of Hdf5 files are shown for Hdf5 only, their compression level and shuffling
+     * also only if they are compressed, i.e. if ZIP compression is selected.
+     */
+    private void setHdf5StorageVisibility()
+    {
+        final boolean isHdf5 = Utils.FileType.HDF5.equals( comboFileTypeForSaving.getSelectedItem() );
+
+        hdf5DeflateLevelLabel.setVisible( isHdf5 && cbZIP.isSelected() );
+        tfHdf5DeflateLevel.setVisible( isHdf5 && cbZIP.isSelected() );
+        cbHdf5Shuffle.setVisible( isHdf5 && cbZIP.isSelected() );
+        hdf5AccessPatternLabel.setVisible( isHdf5 );
+        comboHdf5AccessPattern.setVisible( isHdf5 );
+        hdf5ChunkDimensionsLabel.setVisible( isHdf5 );
+        tfHdf5ChunkDimensions.setVisible( isHdf5 );
+    }
+
+    /**
+     * @return the chunk dimensions x, y, z, or null to choose them for the access pattern
+     */
+    private int[] getHdf5ChunkDimensions()
+    {
+        final String text = tfHdf5ChunkDimensions.getText().trim();
+        if ( text.isEmpty() || text.equalsIgnoreCase( "auto" ) ) return null;
+
+        final int[] chunkDimensions = Utils.delimitedStringToIntegerArray( text, "," );
+        if ( chunkDimensions.length != 3 )
+        {
+            throw new NumberFormatException( "Please enter the Hdf5 chunk size as x,y,z or auto: " + text );
+        }
+        return chunkDimensions;
+    }
+
     private void addPanel( JLabel jLabel, JTextField tfRowsPerStrip, int mainPanelIdx )
     {
         panels.add(new JPanel());
@@ -380,6 +495,10 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
         loadingPanel.add( hdf5DataSetComboBox );
         hdf5DataSetComboBox.setEditable(true);
 
+        loadingPanel.add( new JLabel( "" ) );
+        loadingPanel.add( cbParseLazily );
+        cbParseLazily.setSelected( false );
+
         loadingPanel.add( new JLabel( "" ) );
         loadingPanel.add( load );
         load.setActionCommand( LOAD );
@@ -387,7 +506,7 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
 
         SpringUtilities.makeCompactGrid(
                 loadingPanel,
-                5, 2, //rows, cols
+                6, 2, //rows, cols
                 6, 6, //initX, initY
                 6, 6); //xPad, yPad
 
@@ -488,7 +607,8 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
 					new ImageDataInfo(),
 					nIOthreads,
 					true,
-					false) );
+					false,
+					cbParseLazily.isSelected() ) );
             thread.start();
         }
         else if (e.getActionCommand().equals(STREAMfromInfoFile))
@@ -662,7 +782,7 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
         savingSettings.mapTo255 = Integer.parseInt(tfMapTo255.getText());
         savingSettings.filePath = file.getAbsolutePath();
         savingSettings.fileType = fileType;
-        savingSettings.compression = cbLZW.isSelected() ? "LZW" : "";
+        savingSettings.compression = getCompression();
         savingSettings.rowsPerStrip = rowsPerStrip;
         savingSettings.nThreads = new Integer(tfIOThreads.getText());
 
@@ -670,6 +790,13 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
         bdc.saveAsTiffPlanes(savingSettings);
     }
 
+    private String getCompression()
+    {
+        if ( cbZIP.isSelected() ) return "ZIP";
+        if ( cbLZW.isSelected() ) return "LZW";
+        return "";
+    }
+
     private void saveAsStacks(
             Utils.FileType fileType,
             File file,
@@ -684,8 +811,20 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
                 memorySafetyMargin,
                 Math.min(ioThreads, imp.getNFrames())) ) return;
 
-        String compression = "";
-        if( cbLZW.isSelected() ) compression="LZW";
+        String compression = getCompression();
+
+        final int hdf5DeflateLevel;
+        final int[] hdf5ChunkDimensions;
+        try
+        {
+            hdf5DeflateLevel = cbZIP.isSelected() ? Integer.parseInt( tfHdf5DeflateLevel.getText().trim() ) : 0;
+            hdf5ChunkDimensions = getHdf5ChunkDimensions();
+        }
+        catch ( NumberFormatException e )
+        {
+            logger.error( "Invalid Hdf5 storage settings: " + e.getMessage() );
+            return;
+        }
 
         SavingSettings savingSettings = new SavingSettings();
         savingSettings.imp = imp;
@@ -705,6 +844,10 @@ public class BigDataProcessorUI extends JFrame implements ActionListener, FocusL
         savingSettings.fileType = fileType;
         savingSettings.compression = compression;
         savingSettings.rowsPerStrip = rowsPerStrip;
+        savingSettings.hdf5DeflateLevel = hdf5DeflateLevel;
+        savingSettings.hdf5Shuffle = hdf5DeflateLevel > 0 && cbHdf5Shuffle.isSelected();
+        savingSettings.hdf5ChunkDimensions = hdf5ChunkDimensions;
+        savingSettings.hdf5AccessPattern = ( Hdf5Storage.AccessPattern ) comboHdf5AccessPattern.getSelectedItem();
         savingSettings.nThreads = ioThreads;
 
         new Thread(new Runnable() {
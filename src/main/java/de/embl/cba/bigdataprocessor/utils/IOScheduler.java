@@ -0,0 +1,338 @@
+package de.embl.cba.bigdataprocessor.utils;
+
+import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
+import de.embl.cba.bigdataprocessor.log.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Central thread pools for all file input and output.
+ *
+ * There is one bounded pool per kind of work, such that e.g. parsing file headers cannot starve
+ * the reading of image data. Tasks that are submitted from within a thread of the same pool are
+ * run directly in the submitting thread; this avoids dead-locks when a task of a pool waits for
+ * sub-tasks in the same pool, e.g. when loading frames into RAM that are themselves read plane-wise.
+ *
+ * In addition, the number of concurrent file accesses per storage device is limited, because
+ * too many concurrent accesses slow down spinning disks.
+ *
+ * The pools are shared by the viewer and all jobs, thus their sizes are set once from the settings,
+ * see {@link #setNumIOThreads}, rather than by each job.
+ * Speculative reads, such as prefetching, run in their own small pool of low priority threads,
+ * such that they do not compete with the reads of the viewer.
+ * Imaris files are written by a single Hdf5 writing thread, to which the threads that compute
+ * the resolution pyramids hand over the finished planes.
+ *
+ * Idle threads are terminated after a while, such that no resources are kept when nothing happens.
+ */
+public class IOScheduler
+{
+    public enum Pool
+    {
+        PARSING,
+        READING,
+        COMPRESSION,
+        WRITING,
+        HDF5_WRITING,
+        PREFETCH
+    }
+
+    public static final int DEFAULT_MAX_ACCESSES_PER_DEVICE = 8;
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final long IDLE_POLLING_MILLIS = 50;
+
+    private static final IOScheduler instance = new IOScheduler();
+
+    private static final ThreadLocal< Pool > currentPool = new ThreadLocal<>();
+
+    private static Logger logger = new IJLazySwingLogger();
+
+    private final Map< Pool, ThreadPoolExecutor > executors = new EnumMap<>( Pool.class );
+    private final Map< Pool, Integer > numThreads = new EnumMap<>( Pool.class );
+
+    private final Map< String, DeviceSemaphore > directoryToDevice = new ConcurrentHashMap<>();
+    private final Map< Object, DeviceSemaphore > devices = new ConcurrentHashMap<>();
+    private int maxAccessesPerDevice = DEFAULT_MAX_ACCESSES_PER_DEVICE;
+
+    private IOScheduler()
+    {
+        final int numProcessors = Runtime.getRuntime().availableProcessors();
+        numThreads.put( Pool.PARSING, 5 );
+        numThreads.put( Pool.READING, 5 );
+        numThreads.put( Pool.COMPRESSION, numProcessors );
+        numThreads.put( Pool.WRITING, 5 );
+        numThreads.put( Pool.HDF5_WRITING, 1 );
+        numThreads.put( Pool.PREFETCH, 2 );
+    }
+
+    public static IOScheduler getInstance()
+    {
+        return instance;
+    }
+
+    public Future< ? > submit( Pool pool, Runnable task )
+    {
+        return submit( pool, Executors.callable( task ) );
+    }
+
+    public < T > Future< T > submit( Pool pool, Callable< T > task )
+    {
+        final FutureTask< T > future = new FutureTask<>( task );
+
+        if ( currentPool.get() == pool )
+        {
+            future.run();
+        }
+        else
+        {
+            getExecutor( pool ).execute( future );
+        }
+
+        return future;
+    }
+
+    public synchronized void setNumThreads( Pool pool, int n )
+    {
+        n = Math.max( 1, n );
+        numThreads.put( pool, n );
+
+        final ThreadPoolExecutor executor = executors.get( pool );
+        if ( executor != null )
+        {
+            if ( n > executor.getMaximumPoolSize() )
+            {
+                executor.setMaximumPoolSize( n );
+                executor.setCorePoolSize( n );
+            }
+            else
+            {
+                executor.setCorePoolSize( n );
+                executor.setMaximumPoolSize( n );
+            }
+        }
+    }
+
+    /**
+     * Sets the number of threads of the pools for parsing, reading and writing files.
+     */
+    public synchronized void setNumIOThreads( int n )
+    {
+        setNumThreads( Pool.PARSING, n );
+        setNumThreads( Pool.READING, n );
+        setNumThreads( Pool.WRITING, n );
+    }
+
+    public synchronized int getNumThreads( Pool pool )
+    {
+        return numThreads.get( pool );
+    }
+
+    /**
+     * Limits the number of concurrent file accesses on one storage device.
+     * Accesses that are already held are not affected; if the limit is lowered,
+     * new accesses wait until enough of them are closed.
+     */
+    public synchronized void setMaxAccessesPerDevice( int maxAccessesPerDevice )
+    {
+        this.maxAccessesPerDevice = Math.max( 1, maxAccessesPerDevice );
+
+        for ( DeviceSemaphore semaphore : devices.values() )
+        {
+            semaphore.setMaxAccesses( this.maxAccessesPerDevice );
+        }
+    }
+
+    public synchronized int getMaxAccessesPerDevice()
+    {
+        return maxAccessesPerDevice;
+    }
+
+    /**
+     * Blocks until the device containing the path may be accessed.
+     * The returned access must be closed once the file operation is finished;
+     * do not wait for other I/O tasks while holding it.
+     */
+    public DeviceAccess acquireDeviceAccess( String path )
+    {
+        final Semaphore semaphore = getDeviceSemaphore( path );
+        semaphore.acquireUninterruptibly();
+        return new DeviceAccess( semaphore );
+    }
+
+    /**
+     * As {@link #acquireDeviceAccess}, but for background work that should not slow down other accesses:
+     * waits while other accesses are waiting for the device, and keeps one access of the device free for them.
+     */
+    public DeviceAccess acquireIdleDeviceAccess( String path ) throws InterruptedException
+    {
+        final DeviceSemaphore semaphore = getDeviceSemaphore( path );
+
+        while ( true )
+        {
+            final int minAvailable = semaphore.getMaxAccesses() > 1 ? 2 : 1;
+
+            if ( ! semaphore.hasQueuedThreads()
+                    && semaphore.availablePermits() >= minAvailable
+                    && semaphore.tryAcquire() )
+            {
+                return new DeviceAccess( semaphore );
+            }
+
+            Thread.sleep( IDLE_POLLING_MILLIS );
+        }
+    }
+
+    /**
+     * Stops all threads; the pools are re-created on demand.
+     */
+    public synchronized void shutdown()
+    {
+        for ( ThreadPoolExecutor executor : executors.values() )
+        {
+            executor.shutdown();
+        }
+        executors.clear();
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor( Pool pool )
+    {
+        ThreadPoolExecutor executor = executors.get( pool );
+
+        if ( executor == null )
+        {
+            final int n = numThreads.get( pool );
+            executor = new ThreadPoolExecutor( n, n,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    runnable ->
+                    {
+                        Thread thread = new Thread( () ->
+                        {
+                            currentPool.set( pool );
+                            runnable.run();
+                        }, "BigDataProcessor " + pool.toString().toLowerCase() );
+                        thread.setDaemon( true );
+                        if ( pool == Pool.PREFETCH ) thread.setPriority( Thread.MIN_PRIORITY );
+                        return thread;
+                    } );
+            executor.allowCoreThreadTimeOut( true );
+            executors.put( pool, executor );
+        }
+
+        return executor;
+    }
+
+    private DeviceSemaphore getDeviceSemaphore( String path )
+    {
+        File directory = new File( path ).getAbsoluteFile();
+        if ( ! directory.isDirectory() ) directory = directory.getParentFile();
+
+        final String key = directory == null ? "" : directory.getPath();
+
+        DeviceSemaphore semaphore = directoryToDevice.get( key );
+
+        if ( semaphore == null )
+        {
+            final Object device = getDevice( directory );
+
+            // such that no semaphore is created with an outdated limit while the limit is changed
+            synchronized ( this )
+            {
+                semaphore = devices.computeIfAbsent( device, d -> new DeviceSemaphore( maxAccessesPerDevice ) );
+            }
+            directoryToDevice.put( key, semaphore );
+        }
+
+        return semaphore;
+    }
+
+    private static Object getDevice( File directory )
+    {
+        // files that are about to be written may not yet have existing parent directories
+        while ( directory != null && ! directory.exists() )
+        {
+            directory = directory.getParentFile();
+        }
+
+        if ( directory == null ) return "";
+
+        try
+        {
+            final FileStore fileStore = Files.getFileStore( directory.toPath() );
+            return fileStore;
+        }
+        catch ( IOException e )
+        {
+            logger.warning( "Could not determine storage device of " + directory + ": " + e.toString() );
+            return "";
+        }
+    }
+
+    /**
+     * A semaphore whose number of permits can be changed while permits are held.
+     */
+    private static class DeviceSemaphore extends Semaphore
+    {
+        private int maxAccesses;
+
+        DeviceSemaphore( int maxAccesses )
+        {
+            super( maxAccesses, true );
+            this.maxAccesses = maxAccesses;
+        }
+
+        synchronized void setMaxAccesses( int maxAccesses )
+        {
+            if ( maxAccesses > this.maxAccesses )
+            {
+                release( maxAccesses - this.maxAccesses );
+            }
+            else
+            {
+                reducePermits( this.maxAccesses - maxAccesses );
+            }
+
+            this.maxAccesses = maxAccesses;
+        }
+
+        synchronized int getMaxAccesses()
+        {
+            return maxAccesses;
+        }
+    }
+
+    public static class DeviceAccess implements AutoCloseable
+    {
+        private Semaphore semaphore;
+
+        private DeviceAccess( Semaphore semaphore )
+        {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public void close()
+        {
+            if ( semaphore != null )
+            {
+                semaphore.release();
+                semaphore = null;
+            }
+        }
+    }
+}
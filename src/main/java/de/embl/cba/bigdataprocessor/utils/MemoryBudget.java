@@ -0,0 +1,149 @@
+package de.embl.cba.bigdataprocessor.utils;
+
+import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
+import de.embl.cba.bigdataprocessor.log.Logger;
+import ij.IJ;
+
+/**
+ * Admission control for memory intensive tasks, such as saving data cubes or loading them into RAM.
+ *
+ * Before a task allocates its data it reserves its estimated peak memory; the reservation blocks until
+ * it fits into the budget next to the reservations of the running tasks, instead of running out of memory.
+ * The budget is a fraction of the maximal heap, minus the memory that is used otherwise, e.g. by open images.
+ *
+ * A task that needs more than the whole budget is run once no other task holds a reservation.
+ */
+public class MemoryBudget
+{
+    public static final double DEFAULT_MAX_FRACTION = 0.8;
+
+    private static final long WAIT_MILLIS = 1000;
+
+    private static final double GIGA = 1000000000.0;
+
+    private static final MemoryBudget instance = new MemoryBudget();
+
+    private static Logger logger = new IJLazySwingLogger();
+
+    private double maxFraction = DEFAULT_MAX_FRACTION;
+    private long reservedBytes = 0;
+    private int numReservations = 0;
+
+    private MemoryBudget()
+    {
+    }
+
+    public static MemoryBudget getInstance()
+    {
+        return instance;
+    }
+
+    /** Sets the fraction of the maximal heap that may be used by reservations. */
+    public synchronized void setMaxFraction( double maxFraction )
+    {
+        this.maxFraction = Math.max( 0.1, Math.min( 1.0, maxFraction ) );
+        notifyAll();
+    }
+
+    /**
+     * Blocks until the memory can be reserved.
+     * The returned reservation must be closed once the task does not need the memory anymore.
+     */
+    public Reservation reserve( long bytes )
+    {
+        synchronized ( this )
+        {
+            boolean isWaiting = false;
+            long lastReservedBytes = reservedBytes;
+
+            while ( numReservations > 0 && reservedBytes + bytes > getBudget() )
+            {
+                if ( ! isWaiting )
+                {
+                    logger.info( "Waiting for memory: " + toGB( bytes ) + " GB needed, "
+                            + toGB( reservedBytes ) + " GB reserved by running tasks." );
+                    isWaiting = true;
+                    System.gc();
+                }
+                else if ( reservedBytes < lastReservedBytes )
+                {
+                    // the memory of finished tasks is only available after garbage collection
+                    System.gc();
+                }
+                lastReservedBytes = reservedBytes;
+
+                try
+                {
+                    wait( WAIT_MILLIS );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            if ( numReservations == 0 && bytes > getBudget() )
+            {
+                logger.warning( "A task needs " + toGB( bytes ) + " GB, which is more than the " +
+                        toGB( getBudget() ) + " GB of memory that are available; it may run out of memory." );
+            }
+
+            reservedBytes += bytes;
+            numReservations++;
+        }
+
+        return new Reservation( bytes );
+    }
+
+    /** The memory that may be reserved if no other memory is used. */
+    public synchronized long getMaxBytes()
+    {
+        return ( long ) ( maxFraction * IJ.maxMemory() );
+    }
+
+    public synchronized long getReservedBytes()
+    {
+        return reservedBytes;
+    }
+
+    private synchronized void release( long bytes )
+    {
+        reservedBytes -= bytes;
+        numReservations--;
+        notifyAll();
+    }
+
+    private long getBudget()
+    {
+        // memory in use apart from the reservations, which may not have been allocated yet
+        final long otherBytes = Math.max( 0, IJ.currentMemory() - reservedBytes );
+
+        return getMaxBytes() - otherBytes;
+    }
+
+    private static String toGB( long bytes )
+    {
+        return String.format( "%.2f", bytes / GIGA );
+    }
+
+    public static class Reservation implements AutoCloseable
+    {
+        private long bytes;
+
+        private Reservation( long bytes )
+        {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            if ( bytes >= 0 )
+            {
+                instance.release( bytes );
+                bytes = -1;
+            }
+        }
+    }
+}
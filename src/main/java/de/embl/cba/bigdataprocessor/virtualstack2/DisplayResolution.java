@@ -0,0 +1,176 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import ij.CompositeImage;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+
+import java.awt.EventQueue;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+
+/**
+ * Follows the magnification of the window showing a VirtualStack2, such that the shown planes are read
+ * by {@link VirtualStack2#getDisplayProcessor} from the coarsest resolution level stored with the data
+ * that suffices for the magnification.
+ *
+ * ImageJ does not notify about zooming, thus the magnification is checked after the input events
+ * that can zoom: the zoom tool and scrolling with the mouse, the zoom keys, and resizing of the canvas.
+ * The planes of slice changes are read by ImageJ through {@link VirtualStack2#getProcessor}, at full resolution.
+ */
+class DisplayResolution implements ImageListener
+{
+    private final VirtualStack2 vs2;
+    private final ImagePlus imp;
+
+    private final MouseAdapter mouseListener = new MouseAdapter()
+    {
+        @Override
+        public void mouseReleased( MouseEvent e )
+        {
+            magnificationMayHaveChanged();
+        }
+
+        @Override
+        public void mouseWheelMoved( MouseWheelEvent e )
+        {
+            magnificationMayHaveChanged();
+        }
+    };
+
+    private final KeyAdapter keyListener = new KeyAdapter()
+    {
+        @Override
+        public void keyReleased( KeyEvent e )
+        {
+            magnificationMayHaveChanged();
+        }
+    };
+
+    private final ComponentAdapter componentListener = new ComponentAdapter()
+    {
+        @Override
+        public void componentResized( ComponentEvent e )
+        {
+            magnificationMayHaveChanged();
+        }
+    };
+
+    private ImageCanvas canvas;
+
+    private volatile boolean isRefreshing = false;
+
+    DisplayResolution( VirtualStack2 vs2, ImagePlus imp )
+    {
+        this.vs2 = vs2;
+        this.imp = imp;
+
+        ImagePlus.addImageListener( this );
+        if ( imp.getCanvas() != null ) addCanvasListeners();
+    }
+
+    @Override
+    public void imageOpened( ImagePlus imp )
+    {
+        if ( imp == this.imp ) addCanvasListeners();
+    }
+
+    @Override
+    public void imageClosed( ImagePlus imp )
+    {
+        if ( imp != this.imp ) return;
+
+        removeCanvasListeners();
+        ImagePlus.removeImageListener( this );
+        vs2.setDisplaySubSampling( 1 );
+    }
+
+    @Override
+    public void imageUpdated( ImagePlus imp )
+    {
+    }
+
+    private synchronized void addCanvasListeners()
+    {
+        if ( canvas != null ) return;
+
+        canvas = imp.getCanvas();
+        if ( canvas == null ) return;
+
+        canvas.addMouseListener( mouseListener );
+        canvas.addMouseWheelListener( mouseListener );
+        canvas.addKeyListener( keyListener );
+        canvas.addComponentListener( componentListener );
+    }
+
+    private synchronized void removeCanvasListeners()
+    {
+        if ( canvas == null ) return;
+
+        canvas.removeMouseListener( mouseListener );
+        canvas.removeMouseWheelListener( mouseListener );
+        canvas.removeKeyListener( keyListener );
+        canvas.removeComponentListener( componentListener );
+        canvas = null;
+    }
+
+    /**
+     * Checks the magnification once ImageJ has handled the event.
+     */
+    private void magnificationMayHaveChanged()
+    {
+        EventQueue.invokeLater( this::updateSubSampling );
+    }
+
+    private void updateSubSampling()
+    {
+        final ImageCanvas canvas = imp.getCanvas();
+        if ( canvas == null || isRefreshing ) return;
+
+        final int subSampling = vs2.getDisplaySubSampling( canvas.getMagnification() );
+        if ( subSampling == vs2.getDisplaySubSampling() ) return;
+
+        vs2.setDisplaySubSampling( subSampling );
+
+        // reading the shown planes at the new resolution can take a while
+        isRefreshing = true;
+        new Thread( this::refresh, "BigDataProcessor display refresh" ).start();
+    }
+
+    private void refresh()
+    {
+        try
+        {
+            if ( imp.isComposite() )
+            {
+                final CompositeImage composite = ( CompositeImage ) imp;
+                for ( int c = 1; c <= imp.getNChannels(); c++ )
+                {
+                    final int n = imp.getStackIndex( c, imp.getSlice(), imp.getFrame() );
+                    composite.getProcessor( c ).setPixels( vs2.getDisplayProcessor( n ).getPixels() );
+                }
+            }
+            else
+            {
+                final int n = imp.getCurrentSlice();
+                final Object pixels = vs2.getDisplayProcessor( n ).getPixels();
+                if ( imp.getCurrentSlice() != n ) return;
+                imp.getProcessor().setPixels( pixels );
+            }
+
+            imp.updateAndDraw();
+        }
+        finally
+        {
+            isRefreshing = false;
+
+            // the user may have zoomed again while the planes were read
+            magnificationMayHaveChanged();
+        }
+    }
+}
@@ -223,7 +223,7 @@ public class FastTiffDecoder {
             }
         } else {
             for (int i = 0, j = 0; i < bytes.length; i += 2, j++) {
-                ints[j] = (((bytes[i+2]&0xff) << 8) | (bytes[i+3]&0xff));
+                ints[j] = (((bytes[i]&0xff) << 8) | (bytes[i+1]&0xff));
             }
 
         }
@@ -313,7 +313,12 @@ public class FastTiffDecoder {
             }
             else if ( fieldType == LONG )
             {
-                value = isBigTiff ? getLong() : getInt(); // 8 : 4
+                value = getInt() & 0xffffffffL; // 4
+                if (isBigTiff) unused = getInt(); // 4
+            }
+            else if ( fieldType == LONG8 )
+            {
+                value = getLong(); // 8
             }
             else
             {
@@ -696,6 +701,28 @@ public class FastTiffDecoder {
         debugMode = true;
     }
 
+    /**
+     * Reads the strip offsets or lengths of an IFD entry with count > 1;
+     * the values are stored in the entry itself if they fit, otherwise at the given location.
+     */
+    long[] readStripValues(int fieldType, long count, long location, long valueLoc) throws IOException {
+        int valueSize = fieldType==SHORT ? 2 : fieldType==LONG8 ? 8 : 4;
+        boolean isInline = count*valueSize <= (isBigTiff ? 8 : 4);
+        long saveLoc = in.getLongFilePointer();  // where the IFD currently is
+        in.seek(isInline ? valueLoc : location);
+        long[] values = new long[(int)count];
+        byte[] buffer = new byte[(int)count*valueSize];
+        in.readFully(buffer);
+        if (valueSize==2)
+            convertToShort(values, buffer);
+        else if (valueSize==8)
+            convertToLong8(values, buffer);
+        else
+            convertToLong(values, buffer);
+        in.seek(saveLoc); // go back to IFD
+        return values;
+    }
+
     FileInfoSer fullyReadIFD(long[] relativeStripInfoLocations) throws IOException {
 
         long ifdLoc = in.getFilePointer();
@@ -732,7 +759,9 @@ public class FastTiffDecoder {
 
             fieldType = getShort();
             count = isBigTiff ? getLong() : getInt();
-            value = getValue(fieldType, count)&0xffffffffL;
+            long valueLoc = in.getLongFilePointer();
+            value = getValue(fieldType, count);
+            if ( ! isBigTiff ) value &= 0xffffffffL;
 
             if (debugMode && ifdCount<10) dumpTag(tag, (int)count, (int)value, fi);
             //ij.IJ.writeHeaderFile(i+"/"+nEntries+" "+tag + ", count=" + count + ", value=" + value);
@@ -747,40 +776,16 @@ public class FastTiffDecoder {
                     break;
                 case STRIP_OFFSETS:
                     startTimeStrips = System.nanoTime();
-                    int byteCount = isBigTiff ? 8 : 4;
                     // either is the address of the stripOffset array (count > 1)
                     // or the location of the image data (count == 1)
                     if ( count==1 )
-                        fi.stripOffsets = new long[] {(int)value};
-                    else {
-                        long saveLoc = in.getLongFilePointer();  // where the IFD currently is
-                        in.seek(value);
-                        fi.stripOffsets = new long[(int)count];
-                        byte[] buffer = new byte[(int)count*byteCount];
-                        //int pos = in.getFilePointer();
-                        //readingStrips = true;
-                        in.readFully(buffer);
-                        //for (int channel=0; channel<count; channel++)
-                        //    fi.stripOffsets[channel] = getInt();
-                        if ( isBigTiff )
-                        {
-                            convertToLong8(fi.stripOffsets, buffer);
-                        }
-                        else
-                        {
-                            convertToInt(fi.stripOffsets, buffer);
-                        }
-                        //readingStrips = false;
-                        //if(ifdCount == 1) logger.info("Strip offset 10:" + fi.stripOffsets[10]); //76728  //76427
-                        //info(""+(in.getFilePointer()-pos));
-                        //info(""+(count*4));
-                        in.seek(saveLoc); // go back to IFD
-                    }
+                        fi.stripOffsets = new long[] {value};
+                    else
+                        fi.stripOffsets = readStripValues(fieldType, count, value, valueLoc);
 
-                    fi.offset = count>0?fi.stripOffsets[0]:(int)value;
-                    if (count>1 && (((long)fi.stripOffsets[(int)count-1])&0xffffffffL)<(((long)fi.stripOffsets[0])&0xffffffffL))
+                    fi.offset = count>0?fi.stripOffsets[0]:value;
+                    if (count>1 && fi.stripOffsets[(int)count-1] < fi.stripOffsets[0])
                         fi.offset = fi.stripOffsets[(int)count-1];
-                    //info("fi.offset "+fi.offset);
                     stripTime += (System.nanoTime() - startTimeStrips);
 
                     break;
@@ -788,36 +793,9 @@ public class FastTiffDecoder {
                 case STRIP_BYTE_COUNT:
                     startTimeStrips = System.nanoTime();
                     if (count==1)
-                    {
-                        fi.stripLengths = new long[]{(int) value};
-                    }
+                        fi.stripLengths = new long[]{value};
                     else
-                    {
-                        long saveLoc = in.getLongFilePointer();
-                        in.seek(value);
-                        fi.stripLengths = new long[(int)count];
-                        if (fieldType==SHORT) {
-                            byte[] buffer = new byte[(int)count*2];
-                            in.readFully(buffer);
-                            convertToShort(fi.stripLengths, buffer);
-                        } else if (fieldType==LONG) {
-                            byte[] buffer = new byte[(int)count*4];
-                            in.readFully(buffer);
-                            convertToInt(fi.stripLengths, buffer);
-                        } else if (fieldType==LONG8) {
-                            byte[] buffer = new byte[(int)count*8];
-                            in.readFully(buffer);
-                            convertToLong8(fi.stripLengths, buffer);
-                        }
-                        /*for (int channel=0; channel<count; channel++) {
-                            if (fieldType==SHORT)
-                                fi.stripLengths[channel] = getShort();
-                            else
-                                fi.stripLengths[channel] = getInt();
-                        }*/
-
-                        in.seek(saveLoc); // go back to IFD
-                    }
+                        fi.stripLengths = readStripValues(fieldType, count, value, valueLoc);
                     stripTime += (System.nanoTime() - startTimeStrips);
 
                     break;
@@ -945,6 +923,8 @@ public class FastTiffDecoder {
                 case PREDICTOR:
                     if (value==2 && fi.compression==FileInfo.LZW)
                         fi.compression = FileInfo.LZW_WITH_DIFFERENCING;
+                    else if (value==2 && fi.compression==FileInfo.ZIP)
+                        fi.compression = TiffDecompressor.ZIP_WITH_DIFFERENCING;
                     break;
                 case COLOR_MAP:
                     if (count==768)
@@ -1020,145 +1000,6 @@ public class FastTiffDecoder {
         return fi;
     }
 
-    FileInfoSer onlyReadStripsFromIFD(long[] relativeStripInfoLocations , Boolean fastParsingWorked ) throws IOException {
-
-        FileInfoSer fi = new FileInfoSer();
-        long startLoc = in.getLongFilePointer();
-        long stripLoc;
-        byte[] buffer;
-        int tag, fieldType;
-        long value, count;
-
-        in.seek(startLoc + relativeStripInfoLocations[0]);
-
-        tag = getShort();
-
-        if ( tag != STRIP_OFFSETS )
-        {
-            fastParsingWorked = false;
-            return( null );
-        }
-
-        fieldType = getShort();
-        count = isBigTiff ? getLong() : getInt();
-        value = getValue(fieldType, count);
-
-        //
-        // Initialise
-        //
-        fi.stripOffsets = new long[(int)count];
-        fi.stripLengths = new long[(int)count];
-
-        if(count==1)
-        {
-            // value is the location where the image is stored
-            fi.stripOffsets[0] = value;
-        }
-        else
-        {
-            // is the location where the strips are stored
-            in.seek(value);
-
-            // and read the values
-            if ( fieldType == SHORT )
-            {
-                buffer = new byte[(int)count * 2];
-                in.readFully(buffer);
-                convertToShort(fi.stripOffsets, buffer);
-            }
-            else if ( fieldType == LONG || fieldType == RATIONALE )
-            {
-                buffer = new byte[(int)count * 4];
-                in.readFully(buffer);
-                convertToInt(fi.stripOffsets, buffer);
-            }
-            else if ( fieldType == LONG8 )
-            {
-                buffer = new byte[(int)count * 8];
-                in.readFully(buffer);
-                convertToLong8(fi.stripOffsets, buffer);
-            }
-
-        }
-
-        fi.offset = fi.stripOffsets[0];
-        // TODO: I don't understand below line
-        if (count > 1 && ( fi.stripOffsets[(int) count - 1] < fi.stripOffsets[0] ))
-        {
-            fi.offset = fi.stripOffsets[(int) count - 1];
-            logger.warning("Weird line... " + name);
-        }
-
-        //
-        // stripLengths
-        //
-
-        long stripLengthLoc = startLoc + relativeStripInfoLocations[1];
-        in.seek(stripLengthLoc);
-        tag = getShort();
-        if ( tag != STRIP_BYTE_COUNT )
-        {
-            logger.warning("Fast IFD strip parsing failed. Falling back on full parsing.");
-            return(null);
-        }
-        fieldType = getShort();
-        count = isBigTiff ? getLong() : getInt();
-        value = getValue(fieldType, count); // & 0xffffffffL;
-
-        if(count==1)
-        {
-            fi.stripLengths[0] = value;
-        }
-        else
-        {
-            // go to where the actual strips are stored
-            in.seek(value);
-
-            // and read the values
-            if ( fieldType == SHORT )
-            {
-                buffer = new byte[(int)count * 2];
-                in.readFully(buffer);
-                convertToShort(fi.stripLengths, buffer);
-            }
-            else if ( fieldType == LONG || fieldType == RATIONALE)
-            {
-                buffer = new byte[(int)count * 4];
-                in.readFully(buffer);
-                convertToInt(fi.stripLengths, buffer);
-            }
-            else if ( fieldType == LONG8 )
-            {
-                buffer = new byte[(int)count * 8];
-                in.readFully(buffer);
-                convertToLong8(fi.stripLengths, buffer);
-            }
-
-        }
-
-        //
-        // go to end of this IFD
-        // - this is important since there is the address to the next IFD
-        //
-
-        /*
-        if ( value > 4294967294L )
-        {
-            int a = 1;
-        }
-        if ( fi.stripLengths[0] > 10000 )
-        {
-            int a = 1;
-        }
-        */
-
-        in.seek(startLoc+relativeStripInfoLocations[2]);
-
-        fastParsingWorked = true;
-
-        return fi;
-    }
-
     public FileInfoSer[] getTiffInfo() throws IOException {
         if( logger.isShowDebug() ) {
               logger.info("# getTiffInfo");
@@ -1181,60 +1022,75 @@ public class FastTiffDecoder {
         }
         if (debugMode) dInfo = "\n  " + name + ": opening\n";
 
-        Boolean fastParsingWorked = true;
-        while (ifdOffset>0L)
+        long[] nextIfdOffset = new long[1];
+        IfdScanner scanner = null;
+        try
         {
-            in.seek(ifdOffset);
-            if( listIFDs.size() < 3 ) // somehow the first ones are sometimes different...
+            while (ifdOffset>0L)
             {
-                fi = fullyReadIFD( relativeStripInfoLocations );
-            }
-            else
-            {
-                fi = onlyReadStripsFromIFD( relativeStripInfoLocations, fastParsingWorked );
-                if ( ! fastParsingWorked )
+                fi = null;
+                if( listIFDs.size() >= 3 ) // somehow the first ones are sometimes different...
+                {
+                    if ( scanner == null )
+                    {
+                        scanner = new IfdScanner( new File( directory, name ).getPath(), littleEndian, isBigTiff );
+                    }
+                    fi = scanner.readStrips( ifdOffset, relativeStripInfoLocations, nextIfdOffset );
+                    if ( fi == null )
+                    {
+                        logger.warning(name + ", IFD "+listIFDs.size()+
+                                ": Fast IFD strip parsing failed! " +
+                                "Maybe something wrong with this file?");
+                    }
+                }
+                if ( fi == null )
                 {
-                    logger.warning(name + ", IFD "+listIFDs.size()+
-                            ": Fast IFD strip parsing failed! " +
-                            "Maybe something wrong with this file?");
+                    in.seek(ifdOffset);
                     fi = fullyReadIFD( relativeStripInfoLocations );
+                    if ( fi != null )
+                    {
+                        nextIfdOffset[0] = isBigTiff ? getLong() : getUnsignedIntAsLong();
+                    }
                 }
-            }
-            if( logger.isShowDebug() ) {
-                  logger.info("IFD " + listIFDs.size() + " at " + ifdOffset);
-                  logger.info("fi.nImages: " + fi.nImages);
-                  logger.info("fi.offset: " + fi.offset);
-                  logger.info("fi.stripLengths.length: " + fi.stripLengths.length);
-                  logger.info("fi.stripOffsets.length: " + fi.stripOffsets.length);
-            }
-            if (fi != null)
-            {
-                // add the IFD to the fileInfoSer list
-                listIFDs.add(fi);
-                // and determine where the next IFD is stored
-                ifdOffset = isBigTiff ? getLong() : getUnsignedIntAsLong();
-            }
-            else
-            {
-                // reached end of IFDs
-                // exit while loop
-                ifdOffset = 0L;
-            }
-            if (debugMode && ifdCount<10) dInfo += "  nextIFD=" + ifdOffset + "\n";
-            if (fi!=null && fi.nImages > 1) {
-                // set offsets of the following IFDs
-                long size = fi.width*fi.height*fi.bytesPerPixel;
-                for (int n=1; n < fi.nImages; n++) {
-                    FileInfoSer fi2 = new FileInfoSer();
-                    fi2.offset = fi.offset + (n-1)*(size+fi.gapBetweenImages);
-                    fi2.nImages = 1;
-                    listIFDs.add(fi2);
+                if( logger.isShowDebug() && fi != null ) {
+                      logger.info("IFD " + listIFDs.size() + " at " + ifdOffset);
+                      logger.info("fi.nImages: " + fi.nImages);
+                      logger.info("fi.offset: " + fi.offset);
+                      logger.info("fi.stripLengths.length: " + fi.stripLengths.length);
+                      logger.info("fi.stripOffsets.length: " + fi.stripOffsets.length);
+                }
+                if (fi != null)
+                {
+                    // add the IFD to the fileInfoSer list
+                    listIFDs.add(fi);
+                    // and go to where the next IFD is stored
+                    ifdOffset = nextIfdOffset[0];
+                }
+                else
+                {
+                    // reached end of IFDs
+                    // exit while loop
+                    ifdOffset = 0L;
+                }
+                if (debugMode && ifdCount<10) dInfo += "  nextIFD=" + ifdOffset + "\n";
+                if (fi!=null && fi.nImages > 1) {
+                    // set offsets of the following IFDs
+                    long size = fi.width*fi.height*fi.bytesPerPixel;
+                    for (int n=1; n < fi.nImages; n++) {
+                        FileInfoSer fi2 = new FileInfoSer();
+                        fi2.offset = fi.offset + (n-1)*(size+fi.gapBetweenImages);
+                        fi2.nImages = 1;
+                        listIFDs.add(fi2);
+                    }
+                    ifdOffset = 0L;   // exit while loop
                 }
-                ifdOffset = 0L;   // exit while loop
-            }
-
 
-        } // loop through IFDs
+            } // loop through IFDs
+        }
+        finally
+        {
+            if ( scanner != null ) scanner.close();
+        }
 
         if (listIFDs.size()==0) {
             in.close();
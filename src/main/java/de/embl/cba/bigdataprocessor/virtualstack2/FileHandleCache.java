@@ -0,0 +1,316 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
+import de.embl.cba.bigdataprocessor.log.Logger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Keeps files open for reading, such that repeated reads from the same file do not need to open it again,
+ * which is expensive on network file systems.
+ *
+ * Handles are reference counted; a handle is only closed when no reader uses it anymore and either
+ * the maximal number of open files is exceeded (least recently used first), it has not been used for a while,
+ * or its file has been invalidated because it is written.
+ *
+ * A handle can be closed by the system while it is cached, e.g. a FileChannel is closed when a thread
+ * that reads from it is interrupted; such handles are not handed out again but reopened.
+ *
+ * Usage:
+ * <pre>
+ * try ( FileHandleCache.Handle< FileChannel > handle = FileHandleCache.TIFF.acquire( path ) )
+ * {
+ *     handle.get().read( ... );
+ * }
+ * </pre>
+ */
+class FileHandleCache< T >
+{
+    interface HandleOpener< T >
+    {
+        T open( String path ) throws IOException;
+    }
+
+    interface HandleCloser< T >
+    {
+        void close( T handle ) throws IOException;
+    }
+
+    interface HandleValidator< T >
+    {
+        boolean isOpen( T handle );
+    }
+
+    private static final long IDLE_TIME_MILLIS = 30000;
+
+    private static final Timer idleEvictionTimer = new Timer( "BigDataProcessor file handle eviction", true );
+
+    /**
+     * FileChannels support concurrent reads at different positions, thus one channel can be shared by all threads.
+     */
+    static final FileHandleCache< FileChannel > TIFF = new FileHandleCache<>(
+            "Tiff",
+            128,
+            path -> FileChannel.open( Paths.get( path ), StandardOpenOption.READ ),
+            FileChannel::close,
+            FileChannel::isOpen );
+
+    /**
+     * Users of the reader must synchronize on it, because the reader keeps state between calls.
+     */
+    static final FileHandleCache< IHDF5Reader > HDF5 = new FileHandleCache<>(
+            "Hdf5",
+            32,
+            HDF5Factory::openForReading,
+            IHDF5Reader::close,
+            reader -> true );
+
+    private final String name;
+    private final int maxOpenFiles;
+    private final HandleOpener< T > opener;
+    private final HandleCloser< T > closer;
+    private final HandleValidator< T > validator;
+    private final LinkedHashMap< String, Entry< T > > entries = new LinkedHashMap<>( 16, 0.75F, true );
+
+    private Logger logger = new IJLazySwingLogger();
+
+    FileHandleCache( String name, int maxOpenFiles, HandleOpener< T > opener, HandleCloser< T > closer, HandleValidator< T > validator )
+    {
+        this.name = name;
+        this.maxOpenFiles = maxOpenFiles;
+        this.opener = opener;
+        this.closer = closer;
+        this.validator = validator;
+
+        idleEvictionTimer.schedule( new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                evict( true );
+            }
+        }, IDLE_TIME_MILLIS, IDLE_TIME_MILLIS );
+    }
+
+    Handle< T > acquire( String path ) throws IOException
+    {
+        synchronized ( this )
+        {
+            final Entry< T > entry = entries.get( path );
+            if ( entry != null )
+            {
+                if ( validator.isOpen( entry.handle ) )
+                {
+                    entry.references++;
+                    return new Handle<>( this, path, entry );
+                }
+
+                // closed behind our back: drop it and open the file again
+                discard( path, entry );
+            }
+        }
+
+        // open outside of the lock, such that slow file systems do not block reading other files
+        final T opened = opener.open( path );
+
+        final Entry< T > entry;
+        final boolean alreadyOpened;
+        synchronized ( this )
+        {
+            Entry< T > existing = entries.get( path );
+            if ( existing != null && ! validator.isOpen( existing.handle ) )
+            {
+                discard( path, existing );
+                existing = null;
+            }
+            alreadyOpened = existing != null;
+            if ( alreadyOpened )
+            {
+                entry = existing;
+            }
+            else
+            {
+                entry = new Entry<>( opened );
+                entries.put( path, entry );
+            }
+            entry.references++;
+        }
+
+        if ( alreadyOpened )
+        {
+            // another thread was faster
+            close( path, opened );
+        }
+        else
+        {
+            evict( false );
+        }
+
+        return new Handle<>( this, path, entry );
+    }
+
+    /**
+     * Closes the handle of the given file, e.g. because the file is written;
+     * a handle that is in use is closed once it is released, and is not handed out anymore.
+     */
+    void invalidate( String path )
+    {
+        T toBeClosed = null;
+
+        synchronized ( this )
+        {
+            final Entry< T > entry = entries.remove( path );
+            if ( entry != null )
+            {
+                entry.isInvalidated = true;
+                if ( entry.references == 0 ) toBeClosed = entry.handle;
+            }
+        }
+
+        if ( toBeClosed != null ) close( path, toBeClosed );
+    }
+
+    /**
+     * Removes the entry if it is still the cached one; an entry in use is closed once it is released,
+     * an unused one has been closed already, see {@link HandleValidator}.
+     * Guarded by this.
+     */
+    private void discard( String path, Entry< T > entry )
+    {
+        if ( entries.get( path ) == entry ) entries.remove( path );
+        entry.isInvalidated = true;
+    }
+
+    private void invalidate( String path, Entry< T > entry )
+    {
+        synchronized ( this )
+        {
+            discard( path, entry );
+        }
+    }
+
+    private void release( String path, Entry< T > entry )
+    {
+        boolean isClosing;
+
+        synchronized ( this )
+        {
+            entry.references--;
+            entry.lastUse = System.currentTimeMillis();
+            isClosing = entry.isInvalidated && entry.references == 0;
+        }
+
+        if ( isClosing ) close( path, entry.handle );
+
+        evict( false );
+    }
+
+    private void evict( boolean idleOnly )
+    {
+        final Map< String, T > toBeClosed = new LinkedHashMap<>();
+
+        synchronized ( this )
+        {
+            final long now = System.currentTimeMillis();
+            int numOpen = entries.size();
+
+            // iterates from least to most recently used
+            final Iterator< Map.Entry< String, Entry< T > > > iterator = entries.entrySet().iterator();
+            while ( iterator.hasNext() )
+            {
+                final Map.Entry< String, Entry< T > > mapEntry = iterator.next();
+                final Entry< T > entry = mapEntry.getValue();
+
+                if ( entry.references > 0 ) continue;
+
+                final boolean isIdle = now - entry.lastUse > IDLE_TIME_MILLIS;
+                final boolean isTooMany = ! idleOnly && numOpen > maxOpenFiles;
+
+                if ( isIdle || isTooMany )
+                {
+                    toBeClosed.put( mapEntry.getKey(), entry.handle );
+                    iterator.remove();
+                    numOpen--;
+                }
+            }
+        }
+
+        for ( Map.Entry< String, T > entry : toBeClosed.entrySet() )
+        {
+            close( entry.getKey(), entry.getValue() );
+        }
+    }
+
+    private void close( String path, T handle )
+    {
+        try
+        {
+            closer.close( handle );
+        }
+        catch ( Exception e )
+        {
+            logger.warning( name + " file handle cache: could not close " + path + ": " + e.toString() );
+        }
+    }
+
+    private static class Entry< T >
+    {
+        final T handle;
+        int references = 0;
+        long lastUse = System.currentTimeMillis();
+        boolean isInvalidated = false;
+
+        Entry( T handle )
+        {
+            this.handle = handle;
+        }
+    }
+
+    static class Handle< T > implements AutoCloseable
+    {
+        private final FileHandleCache< T > cache;
+        private final String path;
+        private Entry< T > entry;
+
+        private Handle( FileHandleCache< T > cache, String path, Entry< T > entry )
+        {
+            this.cache = cache;
+            this.path = path;
+            this.entry = entry;
+        }
+
+        T get()
+        {
+            return entry.handle;
+        }
+
+        /**
+         * To be called when reading failed because the handle has been closed, e.g. by a {@link java.nio.channels.ClosedByInterruptException};
+         * the handle is not handed out anymore and the file is opened again by the next reader.
+         */
+        void invalidate()
+        {
+            if ( entry != null ) cache.invalidate( path, entry );
+        }
+
+        @Override
+        public void close()
+        {
+            if ( entry != null )
+            {
+                cache.release( path, entry );
+                entry = null;
+            }
+        }
+    }
+}
@@ -72,7 +72,6 @@ public class FileInfoSer implements Cloneable, Serializable {
     public int gapBetweenImages;
     public String info;
 
-    // add to copy:
     public int calibrationFunction;
     public String valueUnit;
     public double[] coefficients;
@@ -164,6 +163,20 @@ public class FileInfoSer implements Cloneable, Serializable {
         this.gapBetweenImages = info.gapBetweenImages;
         this.info = info.info;
         this.description = info.description;
+        this.calibrationFunction = info.calibrationFunction;
+        this.valueUnit = info.valueUnit;
+        this.coefficients = info.coefficients;
+        this.metaDataTypes = info.metaDataTypes;
+        this.metaData = info.metaData;
+        this.sliceLabels = info.sliceLabels;
+        this.displayRanges = info.displayRanges;
+        this.channelLuts = info.channelLuts;
+        this.roi = info.roi;
+        this.overlay = info.overlay;
+        this.lutSize = info.lutSize;
+        this.reds = info.reds;
+        this.greens = info.greens;
+        this.blues = info.blues;
 
 
     }
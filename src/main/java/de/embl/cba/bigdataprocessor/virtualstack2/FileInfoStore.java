@@ -0,0 +1,284 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import java.util.Arrays;
+
+/**
+ * Compact storage of the file infos of all planes of a data set.
+ *
+ * Per (c, t) one header is kept, which is shared by all planes; per plane only the location of its pixel data,
+ * i.e. the offset and the strips, is stored in primitive arrays. Strip lengths that are the same for all planes,
+ * as for uncompressed data, are stored only once.
+ * Planes whose header does not match the shared one are kept as they are.
+ *
+ * The FileInfoSer objects returned by the getters are created on request;
+ * modifying them does not change the store.
+ */
+class FileInfoStore
+{
+    private final int nC, nT, nZ;
+    private final PlaneTable[][] tables;
+
+    FileInfoStore( int nC, int nT, int nZ )
+    {
+        this.nC = nC;
+        this.nT = nT;
+        this.nZ = nZ;
+        this.tables = new PlaneTable[ nC ][ nT ];
+
+        for ( int c = 0; c < nC; c++ )
+        {
+            for ( int t = 0; t < nT; t++ )
+            {
+                tables[ c ][ t ] = new PlaneTable( nZ );
+            }
+        }
+    }
+
+    FileInfoStore( FileInfoSer[][][] infos )
+    {
+        this( infos.length, infos[ 0 ].length, infos[ 0 ][ 0 ].length );
+
+        for ( int c = 0; c < nC; c++ )
+        {
+            for ( int t = 0; t < nT; t++ )
+            {
+                set( c, t, infos[ c ][ t ] );
+            }
+        }
+    }
+
+    int getNumZ()
+    {
+        return nZ;
+    }
+
+    /**
+     * @return null if the plane has not been set
+     */
+    FileInfoSer get( int c, int t, int z )
+    {
+        return tables[ c ][ t ].get( z );
+    }
+
+    /**
+     * Returns the infos of all planes of (c, t); planes that have not been set are null.
+     */
+    FileInfoSer[] get( int c, int t )
+    {
+        return get( c, t, 0, nZ - 1 );
+    }
+
+    /**
+     * Returns an array with the infos of the planes zMin to zMax and of plane 0, which holds the general information;
+     * all other elements are null. This avoids creating infos for all planes when reading a few of them.
+     */
+    FileInfoSer[] get( int c, int t, int zMin, int zMax )
+    {
+        final FileInfoSer[] infos = new FileInfoSer[ nZ ];
+
+        final PlaneTable table = tables[ c ][ t ];
+        synchronized ( table )
+        {
+            infos[ 0 ] = table.get( 0 );
+            for ( int z = Math.max( zMin, 1 ); z <= Math.min( zMax, nZ - 1 ); z++ )
+            {
+                infos[ z ] = table.get( z );
+            }
+        }
+
+        return infos;
+    }
+
+    boolean contains( int c, int t, int z )
+    {
+        return tables[ c ][ t ].contains( z );
+    }
+
+    void set( int c, int t, int z, FileInfoSer info )
+    {
+        tables[ c ][ t ].set( z, info );
+    }
+
+    void set( int c, int t, FileInfoSer[] infos )
+    {
+        if ( infos == null ) return;
+
+        final PlaneTable table = tables[ c ][ t ];
+        synchronized ( table )
+        {
+            for ( int z = 0; z < Math.min( infos.length, nZ ); z++ )
+            {
+                if ( infos[ z ] != null ) table.set( z, infos[ z ] );
+            }
+        }
+    }
+
+    /**
+     * Creates the infos of all planes, e.g. for saving them.
+     */
+    FileInfoSer[][][] toArray()
+    {
+        final FileInfoSer[][][] infos = new FileInfoSer[ nC ][ nT ][];
+
+        for ( int c = 0; c < nC; c++ )
+        {
+            for ( int t = 0; t < nT; t++ )
+            {
+                infos[ c ][ t ] = get( c, t );
+            }
+        }
+
+        return infos;
+    }
+
+    private static class PlaneTable
+    {
+        private static final long UNSET = -1;
+
+        private final int nZ;
+
+        private FileInfoSer header;
+        private int stripsPerPlane;
+        private long[] offsets;
+        private long[] stripOffsets;        // [ z * stripsPerPlane + strip ]
+        private long[] commonStripLengths;  // of all planes, as long as stripLengths == null
+        private long[] stripLengths;        // [ z * stripsPerPlane + strip ]
+        private String[] fileNames;         // null as long as all planes are in the file of the header
+        private FileInfoSer[] irregularPlanes;
+
+        PlaneTable( int nZ )
+        {
+            this.nZ = nZ;
+        }
+
+        synchronized boolean contains( int z )
+        {
+            return ( offsets != null && offsets[ z ] != UNSET )
+                    || ( irregularPlanes != null && irregularPlanes[ z ] != null );
+        }
+
+        synchronized FileInfoSer get( int z )
+        {
+            if ( irregularPlanes != null && irregularPlanes[ z ] != null ) return new FileInfoSer( irregularPlanes[ z ] );
+
+            if ( offsets == null || offsets[ z ] == UNSET ) return null;
+
+            final FileInfoSer info = new FileInfoSer( header );
+            info.offset = offsets[ z ];
+            if ( fileNames != null ) info.fileName = fileNames[ z ];
+
+            if ( stripsPerPlane > 0 )
+            {
+                final int from = z * stripsPerPlane;
+                info.stripOffsets = Arrays.copyOfRange( stripOffsets, from, from + stripsPerPlane );
+                info.stripLengths = stripLengths == null
+                        ? commonStripLengths.clone()
+                        : Arrays.copyOfRange( stripLengths, from, from + stripsPerPlane );
+            }
+
+            return info;
+        }
+
+        synchronized void set( int z, FileInfoSer info )
+        {
+            if ( header == null ) initialise( info );
+
+            if ( ! isRegular( info ) )
+            {
+                if ( irregularPlanes == null ) irregularPlanes = new FileInfoSer[ nZ ];
+                irregularPlanes[ z ] = info;
+                offsets[ z ] = UNSET;
+                return;
+            }
+
+            if ( irregularPlanes != null ) irregularPlanes[ z ] = null;
+
+            offsets[ z ] = info.offset;
+
+            if ( stripsPerPlane > 0 )
+            {
+                System.arraycopy( info.stripOffsets, 0, stripOffsets, z * stripsPerPlane, stripsPerPlane );
+
+                if ( stripLengths == null && ! Arrays.equals( commonStripLengths, info.stripLengths ) )
+                {
+                    stripLengths = new long[ nZ * stripsPerPlane ];
+                    for ( int z2 = 0; z2 < nZ; z2++ )
+                    {
+                        System.arraycopy( commonStripLengths, 0, stripLengths, z2 * stripsPerPlane, stripsPerPlane );
+                    }
+                }
+
+                if ( stripLengths != null )
+                {
+                    System.arraycopy( info.stripLengths, 0, stripLengths, z * stripsPerPlane, stripsPerPlane );
+                }
+            }
+
+            if ( fileNames == null && ! equals( info.fileName, header.fileName ) )
+            {
+                fileNames = new String[ nZ ];
+                Arrays.fill( fileNames, header.fileName );
+            }
+
+            if ( fileNames != null ) fileNames[ z ] = info.fileName;
+        }
+
+        private void initialise( FileInfoSer info )
+        {
+            header = new FileInfoSer( info );
+            header.offset = 0;
+            header.stripOffsets = null;
+            header.stripLengths = null;
+
+            stripsPerPlane = info.stripOffsets == null ? 0 : info.stripOffsets.length;
+
+            offsets = new long[ nZ ];
+            Arrays.fill( offsets, UNSET );
+
+            if ( stripsPerPlane > 0 )
+            {
+                stripOffsets = new long[ nZ * stripsPerPlane ];
+                commonStripLengths = info.stripLengths.clone();
+            }
+        }
+
+        /**
+         * Whether all information of the plane, apart from its location, is the one of the header.
+         */
+        private boolean isRegular( FileInfoSer info )
+        {
+            final int numStrips = info.stripOffsets == null ? 0 : info.stripOffsets.length;
+            final int numStripLengths = info.stripLengths == null ? 0 : info.stripLengths.length;
+
+            return numStrips == stripsPerPlane
+                    && numStripLengths == stripsPerPlane
+                    && info.offset != UNSET
+                    && info.width == header.width
+                    && info.height == header.height
+                    && info.bytesPerPixel == header.bytesPerPixel
+                    && info.fileType == header.fileType
+                    && info.fileFormat == header.fileFormat
+                    && info.compression == header.compression
+                    && info.intelByteOrder == header.intelByteOrder
+                    && info.rowsPerStrip == header.rowsPerStrip
+                    && info.samplesPerPixel == header.samplesPerPixel
+                    && info.nImages == header.nImages
+                    && info.gapBetweenImages == header.gapBetweenImages
+                    && info.pixelWidth == header.pixelWidth
+                    && info.pixelHeight == header.pixelHeight
+                    && info.pixelDepth == header.pixelDepth
+                    && info.isCropped == header.isCropped
+                    && Arrays.equals( info.pCropOffset, header.pCropOffset )
+                    && Arrays.equals( info.pCropSize, header.pCropSize )
+                    && equals( info.directory, header.directory )
+                    && equals( info.fileTypeString, header.fileTypeString )
+                    && equals( info.h5DataSet, header.h5DataSet )
+                    && equals( info.unit, header.unit );
+        }
+
+        private static boolean equals( String a, String b )
+        {
+            return a == null ? b == null : a.equals( b );
+        }
+    }
+}
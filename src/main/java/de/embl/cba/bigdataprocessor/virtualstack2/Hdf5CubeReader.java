@@ -0,0 +1,198 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import ch.systemsx.cisd.base.mdarray.MDByteArray;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
+import de.embl.cba.bigdataprocessor.log.Logger;
+import ij.ImageStack;
+
+/**
+ * Reads a cube of an 8 or 16 bit Hdf5 data set into the planes of an ImageStack.
+ *
+ * The planes are read in batches that are aligned to the chunks of the data set in z,
+ * such that each chunk is only read and decompressed once. Batches of one plane, e.g. for
+ * contiguous data sets or data sets chunked plane wise, are read directly into the pixel arrays of the stack;
+ * other batches go through a buffer of the size of one batch, rather than of the whole cube.
+ * Batches are limited to {@link #MAX_BATCH_BYTES}; for data sets that are chunked over a larger depth,
+ * e.g. over their whole depth, the chunks are then read and decompressed once per batch.
+ *
+ * The caller must synchronize on the reader.
+ */
+class Hdf5CubeReader
+{
+    private static Logger logger = new IJLazySwingLogger();
+
+    static final long MAX_BATCH_BYTES = 256L * 1024 * 1024;
+
+    private final IHDF5Reader reader;
+    private final String dataSet;
+    private final boolean is16bit;
+
+    private Object buffer;
+
+    Hdf5CubeReader( IHDF5Reader reader, String dataSet, int bytesPerPixel )
+    {
+        this.reader = reader;
+        this.dataSet = dataSet;
+        this.is16bit = bytesPerPixel == 2;
+    }
+
+    /**
+     * Reads the pixels at z = zs, zs + dz, ..., y = ys, ys + dy, ... and x = xs, xs + dx, ... into the planes of the stack,
+     * which determines the number of pixels read.
+     *
+     * The Hdf5 library can only skip whole chunks, thus sub-sampled pixels are picked from the read blocks
+     * while copying them into the stack.
+     *
+     * @return false if the data type of the data set is not supported
+     */
+    boolean read( ImageStack stack, int zs, int dz, int xs, int dx, int ys, int dy )
+    {
+        final HDF5DataSetInformation dsInfo = reader.getDataSetInformation( dataSet );
+        final String dsTypeString = OpenerExtension.hdf5InfoToString( dsInfo );
+
+        if ( ! ( is16bit ? dsTypeString.endsWith( "int16" ) : dsTypeString.endsWith( "int8" ) ) )
+        {
+            logger.error( "Data type " + dsTypeString + " is currently not supported" );
+            return false;
+        }
+
+        final int nx = stack.getWidth();
+        final int ny = stack.getHeight();
+        final int nz = stack.getSize();
+
+        // size of the read region in y and x
+        final int nyRead = ( ny - 1 ) * dy + 1;
+        final int nxRead = ( nx - 1 ) * dx + 1;
+        final boolean isSubSampledXY = dx > 1 || dy > 1;
+
+        if ( dsInfo.getDimensions().length == 2 )
+        {
+            // 2-d data set
+            if ( isSubSampledXY )
+            {
+                if ( ( long ) nyRead * nxRead > Integer.MAX_VALUE )
+                {
+                    logger.error( "The plane of " + nxRead + " x " + nyRead + " pixels is too large to be read" );
+                    return false;
+                }
+                final Object plane = getBuffer( nyRead * nxRead );
+                readBlock( plane, new int[]{ nyRead, nxRead }, new long[]{ ys, xs } );
+                copySubSampled( plane, 0, nxRead, dx, dy, stack.getPixels( 1 ), nx, ny );
+            }
+            else
+            {
+                readBlock( stack.getPixels( 1 ), new int[]{ ny, nx }, new long[]{ ys, xs } );
+            }
+            buffer = null;
+            return true;
+        }
+
+        final int[] chunkSizes = dsInfo.tryGetChunkSizes();
+        final int chunkSizeZ = chunkSizes == null ? 1 : chunkSizes[ 0 ];
+
+        final long planeSize = ( long ) nxRead * nyRead;
+        final long maxBatchPlanes = Math.min( Integer.MAX_VALUE, MAX_BATCH_BYTES / ( is16bit ? 2 : 1 ) ) / planeSize;
+        if ( maxBatchPlanes < 1 )
+        {
+            logger.error( "The plane of " + nxRead + " x " + nyRead + " pixels is too large to be read" );
+            return false;
+        }
+
+        for ( int iz = 0; iz < nz; )
+        {
+            // all planes of this batch lie in the same chunk
+            final int z = zs + iz * dz;
+            final long chunkEnd = ( z / chunkSizeZ + 1L ) * chunkSizeZ;
+            int numPlanes = 1;
+            while ( iz + numPlanes < nz
+                    && z + ( long ) numPlanes * dz < chunkEnd
+                    && ( long ) numPlanes * dz + 1 <= maxBatchPlanes )
+            {
+                numPlanes++;
+            }
+
+            if ( numPlanes == 1 && ! isSubSampledXY )
+            {
+                readBlock( stack.getPixels( iz + 1 ), new int[]{ 1, ny, nx }, new long[]{ z, ys, xs } );
+            }
+            else
+            {
+                // within int range, as the batch is at most maxBatchPlanes planes
+                final int numBatchPlanes = ( numPlanes - 1 ) * dz + 1;
+                final int batchPlaneSize = ( int ) planeSize;
+                final Object batch = getBuffer( numBatchPlanes * batchPlaneSize );
+                readBlock( batch, new int[]{ numBatchPlanes, nyRead, nxRead }, new long[]{ z, ys, xs } );
+
+                for ( int i = 0; i < numPlanes; i++ )
+                {
+                    if ( isSubSampledXY )
+                    {
+                        copySubSampled( batch, i * dz * batchPlaneSize, nxRead, dx, dy, stack.getPixels( iz + i + 1 ), nx, ny );
+                    }
+                    else
+                    {
+                        System.arraycopy( batch, i * dz * batchPlaneSize, stack.getPixels( iz + i + 1 ), 0, batchPlaneSize );
+                    }
+                }
+            }
+
+            iz += numPlanes;
+        }
+
+        buffer = null;
+
+        return true;
+    }
+
+    private static void copySubSampled( Object source, int offset, int sourceWidth, int dx, int dy,
+                                        Object target, int nx, int ny )
+    {
+        for ( int y = 0; y < ny; y++ )
+        {
+            int i = offset + y * dy * sourceWidth;
+            int j = y * nx;
+
+            if ( target instanceof short[] )
+            {
+                final short[] s = ( short[] ) source;
+                final short[] t = ( short[] ) target;
+                for ( int x = 0; x < nx; x++, i += dx ) t[ j++ ] = s[ i ];
+            }
+            else
+            {
+                final byte[] s = ( byte[] ) source;
+                final byte[] t = ( byte[] ) target;
+                for ( int x = 0; x < nx; x++, i += dx ) t[ j++ ] = s[ i ];
+            }
+        }
+    }
+
+    private void readBlock( Object pixels, int[] dimensions, long[] offset )
+    {
+        final int[] memoryOffset = new int[ dimensions.length ];
+
+        // signed and unsigned data are read the same way, the type of the pixel arrays is what matters
+        if ( is16bit )
+        {
+            reader.int16().readToMDArrayBlockWithOffset(
+                    dataSet, new MDShortArray( ( short[] ) pixels, dimensions ), dimensions, offset, memoryOffset );
+        }
+        else
+        {
+            reader.int8().readToMDArrayBlockWithOffset(
+                    dataSet, new MDByteArray( ( byte[] ) pixels, dimensions ), dimensions, offset, memoryOffset );
+        }
+    }
+
+    private Object getBuffer( int length )
+    {
+        if ( buffer == null || java.lang.reflect.Array.getLength( buffer ) != length )
+        {
+            buffer = is16bit ? new short[ length ] : new byte[ length ];
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,196 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
+import de.embl.cba.bigdataprocessor.log.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The resolution levels stored in an Hdf5 file next to the data set that was opened, i.e.
+ * "ResolutionLevel 0/...", "ResolutionLevel 1/...", ... as written by Imaris, or "Data", "Data222", "Data444", ...
+ * in the same group.
+ *
+ * The down-sampling factors of the levels are determined from their dimensions relative to the opened data set,
+ * such that the naming of the levels does not matter.
+ */
+class Hdf5ResolutionLevels
+{
+    private static Logger logger = new IJLazySwingLogger();
+
+    private static final Pattern RESOLUTION_LEVEL = Pattern.compile( "ResolutionLevel (\\d+)" );
+    private static final Pattern BINNED_DATA = Pattern.compile( "Data(\\d\\d\\d)?" );
+    private static final int MAX_NUM_LEVELS = 32;
+
+    private static final Map< String, Hdf5ResolutionLevels > cache = new ConcurrentHashMap<>();
+
+    static class Level
+    {
+        final String dataSet;
+        final int fx, fy, fz;
+        final long[] dimensions; // z, y, x
+
+        Level( String dataSet, int fx, int fy, int fz, long[] dimensions )
+        {
+            this.dataSet = dataSet;
+            this.fx = fx;
+            this.fy = fy;
+            this.fz = fz;
+            this.dimensions = dimensions;
+        }
+    }
+
+    private final List< Level > levels = new ArrayList<>();
+
+    /**
+     * The levels are discovered once per file and data set; the caller must synchronize on the reader.
+     */
+    static Hdf5ResolutionLevels get( IHDF5Reader reader, String path, String dataSet )
+    {
+        final String key = path + "\n" + dataSet;
+
+        Hdf5ResolutionLevels levels = cache.get( key );
+        if ( levels == null )
+        {
+            levels = new Hdf5ResolutionLevels( reader, dataSet );
+            cache.put( key, levels );
+        }
+
+        return levels;
+    }
+
+    private Hdf5ResolutionLevels( IHDF5Reader reader, String dataSet )
+    {
+        final long[] dimensions = reader.getDataSetInformation( dataSet ).getDimensions();
+        levels.add( new Level( dataSet, 1, 1, 1, dimensions ) );
+
+        if ( dimensions.length != 3 ) return;
+
+        try
+        {
+            for ( String candidate : getCandidates( reader, dataSet ) )
+            {
+                if ( candidate.equals( dataSet ) ) continue;
+
+                final Level level = createLevel( reader, candidate, dimensions );
+                if ( level != null ) levels.add( level );
+            }
+        }
+        catch ( Exception e )
+        {
+            logger.warning( "Could not determine the resolution levels of " + dataSet + ": " + e.toString() );
+        }
+    }
+
+    private static List< String > getCandidates( IHDF5Reader reader, String dataSet )
+    {
+        final List< String > candidates = new ArrayList<>();
+
+        final Matcher resolutionLevel = RESOLUTION_LEVEL.matcher( dataSet );
+        if ( resolutionLevel.find() )
+        {
+            for ( int i = 0; i < MAX_NUM_LEVELS; i++ )
+            {
+                final String candidate = dataSet.substring( 0, resolutionLevel.start( 1 ) )
+                        + i + dataSet.substring( resolutionLevel.end( 1 ) );
+                if ( ! reader.object().isDataSet( candidate ) ) break;
+                candidates.add( candidate );
+            }
+            return candidates;
+        }
+
+        final int separator = dataSet.lastIndexOf( '/' );
+        final String group = dataSet.substring( 0, separator + 1 );
+        if ( ! BINNED_DATA.matcher( dataSet.substring( separator + 1 ) ).matches() ) return candidates;
+
+        for ( String member : reader.object().getGroupMembers( group.isEmpty() ? "/" : group ) )
+        {
+            if ( BINNED_DATA.matcher( member ).matches() && reader.object().isDataSet( group + member ) )
+            {
+                candidates.add( group + member );
+            }
+        }
+
+        return candidates;
+    }
+
+    /**
+     * @return null if the data set is not a down-sampled version of the full resolution data
+     */
+    private static Level createLevel( IHDF5Reader reader, String dataSet, long[] fullDimensions )
+    {
+        final HDF5DataSetInformation dsInfo = reader.getDataSetInformation( dataSet );
+        final long[] dimensions = dsInfo.getDimensions();
+        if ( dimensions.length != 3 ) return null;
+
+        final int[] factors = new int[ 3 ];
+        for ( int d = 0; d < 3; d++ )
+        {
+            if ( dimensions[ d ] == 0 ) return null;
+
+            factors[ d ] = ( int ) Math.round( 1.0 * fullDimensions[ d ] / dimensions[ d ] );
+            if ( factors[ d ] < 1 ) return null;
+
+            // allows for rounding and for padding to the chunk size, as done by Imaris
+            final double expected = 1.0 * fullDimensions[ d ] / factors[ d ];
+            if ( Math.abs( dimensions[ d ] - expected ) > Math.max( 1.0, expected / 8 ) ) return null;
+        }
+
+        return new Level( dataSet, factors[ 2 ], factors[ 1 ], factors[ 0 ], dimensions );
+    }
+
+    /**
+     * Returns the coarsest level from which the pixels at x = xs, xs + dx, ..., y = ys, ys + dy, ..., z = zs, zs + dz, ...
+     * of the full resolution data can be read by sub-sampling,
+     * i.e. whose down-sampling factors divide dx, dy and dz and which contains the last pixel (xLast, yLast, zLast).
+     * For display, a single plane (nz == 1) can be read from a level that is down-sampled in z,
+     * from the plane that contains it.
+     */
+    Level select( int dx, int dy, int dz, int nz, int xLast, int yLast, int zLast, boolean isForDisplay )
+    {
+        Level selected = levels.get( 0 );
+
+        for ( Level level : levels.subList( 1, levels.size() ) )
+        {
+            if ( dx % level.fx != 0 || dy % level.fy != 0 || ( ! ( isForDisplay && nz == 1 ) && dz % level.fz != 0 ) ) continue;
+
+            if ( zLast / level.fz >= level.dimensions[ 0 ]
+                    || yLast / level.fy >= level.dimensions[ 1 ]
+                    || xLast / level.fx >= level.dimensions[ 2 ] ) continue;
+
+            if ( ( long ) level.fx * level.fy * level.fz > ( long ) selected.fx * selected.fy * selected.fz )
+            {
+                selected = level;
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * The down-sampling factors of the levels that are equally down-sampled in x and y, in increasing order.
+     */
+    List< Integer > getSubSamplingsXY()
+    {
+        final List< Integer > subSamplings = new ArrayList<>();
+
+        for ( Level level : levels.subList( 1, levels.size() ) )
+        {
+            if ( level.fx == level.fy && level.fx > 1 && ! subSamplings.contains( level.fx ) )
+            {
+                subSamplings.add( level.fx );
+            }
+        }
+
+        Collections.sort( subSamplings );
+
+        return subSamplings;
+    }
+}
@@ -0,0 +1,671 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
+import de.embl.cba.bigdataprocessor.log.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of the parsed file headers of a data set, such that reopening a data set
+ * does not require parsing all files again.
+ *
+ * The index is stored in the cache directory of the user, not next to the data,
+ * such that opening a data set never writes into the data directory, which may be read-only or shared.
+ *
+ * Each entry holds the FileInfoSer[] of one file together with the size and modification time of the file;
+ * entries of files that changed since they were indexed are ignored and parsed again.
+ * All fields that are set by parsing the headers are stored, in a compact binary format,
+ * in which planes that share the header of the first plane of a file only store their location.
+ * The entries are also kept in this format in memory.
+ */
+class HeaderIndex
+{
+    private static final int MAGIC = 0x42445049; // "BDPI"
+    private static final int VERSION = 3;
+
+    private static Logger logger = new IJLazySwingLogger();
+
+    private final File file;
+    private final String directory;
+    private final String fileType;
+    private final String h5DataSet;
+    private final Map< String, Entry > entries = new ConcurrentHashMap<>();
+    private volatile boolean isModified = false;
+
+    private HeaderIndex( File file, String directory, String fileType, String h5DataSet )
+    {
+        this.file = file;
+        this.directory = directory;
+        this.fileType = fileType;
+        this.h5DataSet = h5DataSet;
+    }
+
+    /**
+     * Loads the index of the directory; the index is empty if there is none yet,
+     * or if it was created for another file type or Hdf5 data set.
+     */
+    static HeaderIndex load( String directory, String fileType, String h5DataSet )
+    {
+        final String absoluteDirectory = new File( directory ).getAbsolutePath();
+        final HeaderIndex index = new HeaderIndex( getIndexFile( absoluteDirectory ), absoluteDirectory, fileType, h5DataSet );
+
+        if ( ! index.file.exists() ) return index;
+
+        final long start = System.currentTimeMillis();
+
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( index.file ), 1 << 16 ) ) )
+        {
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) return index;
+            if ( ! equals( readString( in ), absoluteDirectory ) ) return index;
+            if ( ! equals( readString( in ), fileType ) || ! equals( readString( in ), h5DataSet ) ) return index;
+
+            final int numEntries = in.readInt();
+            for ( int i = 0; i < numEntries; i++ )
+            {
+                final String path = in.readUTF();
+                final long size = in.readLong();
+                final long lastModified = in.readLong();
+                final byte[] data = new byte[ in.readInt() ];
+                in.readFully( data );
+                index.entries.put( path, new Entry( size, lastModified, data ) );
+            }
+
+            logger.info( "Read header index of " + absoluteDirectory + " with " + numEntries + " files in "
+                    + ( System.currentTimeMillis() - start ) + " ms: " + index.file );
+        }
+        catch ( IOException e )
+        {
+            logger.warning( "Could not read header index " + index.file + ": " + e.toString() );
+            index.entries.clear();
+        }
+
+        return index;
+    }
+
+    /**
+     * The index of a data directory is named after its absolute path, in the cache directory of the user.
+     */
+    private static File getIndexFile( String absoluteDirectory )
+    {
+        final String name = UUID.nameUUIDFromBytes( absoluteDirectory.getBytes( StandardCharsets.UTF_8 ) ).toString();
+        return new File( getCacheDirectory(), name );
+    }
+
+    private static File getCacheDirectory()
+    {
+        String base = System.getenv( "XDG_CACHE_HOME" );
+
+        if ( base == null || base.isEmpty() )
+        {
+            base = System.getenv( "LOCALAPPDATA" ); // Windows
+        }
+
+        if ( base == null || base.isEmpty() )
+        {
+            base = new File( System.getProperty( "user.home" ), ".cache" ).getPath();
+        }
+
+        return new File( new File( base, "BigDataProcessor" ), "header-index" );
+    }
+
+    /**
+     * Returns the indexed infos of the file, or null if the file is not indexed or has changed since.
+     *
+     * @param path path of the file, relative to the data set directory
+     */
+    FileInfoSer[] get( String path, File file )
+    {
+        final Entry entry = entries.get( path );
+        if ( entry == null ) return null;
+
+        final BasicFileAttributes attributes = getAttributes( file );
+        if ( attributes == null
+                || attributes.size() != entry.size
+                || attributes.lastModifiedTime().toMillis() != entry.lastModified )
+        {
+            return null;
+        }
+
+        try
+        {
+            return decode( entry.data );
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+    }
+
+    void put( String path, File file, FileInfoSer[] infos )
+    {
+        if ( infos.length == 0 ) return;
+
+        final BasicFileAttributes attributes = getAttributes( file );
+        if ( attributes == null ) return;
+
+        for ( FileInfoSer info : infos )
+        {
+            if ( info == null ) return; // incompletely parsed
+        }
+
+        try
+        {
+            entries.put( path, new Entry( attributes.size(), attributes.lastModifiedTime().toMillis(), encode( infos ) ) );
+            isModified = true;
+        }
+        catch ( IOException e )
+        {
+            logger.warning( "Could not index " + path + ": " + e.toString() );
+        }
+    }
+
+    /**
+     * Writes the index if files have been added or updated since it was loaded.
+     * The index is written into a temporary file first, such that readers never see a partial index.
+     */
+    synchronized void save()
+    {
+        if ( ! isModified ) return;
+
+        final File tmpFile = new File( file.getParentFile(), file.getName() + ".tmp" );
+        file.getParentFile().mkdirs();
+
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ), 1 << 16 ) ) )
+        {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            writeString( out, directory );
+            writeString( out, fileType );
+            writeString( out, h5DataSet );
+
+            final Map< String, Entry > snapshot = new java.util.HashMap<>( entries );
+            out.writeInt( snapshot.size() );
+            for ( Map.Entry< String, Entry > mapEntry : snapshot.entrySet() )
+            {
+                final Entry entry = mapEntry.getValue();
+                out.writeUTF( mapEntry.getKey() );
+                out.writeLong( entry.size );
+                out.writeLong( entry.lastModified );
+                out.writeInt( entry.data.length );
+                out.write( entry.data );
+            }
+        }
+        catch ( IOException e )
+        {
+            // e.g. read-only home directory
+            logger.info( "Could not write header index " + file + ": " + e.toString() );
+            tmpFile.delete();
+            return;
+        }
+
+        try
+        {
+            Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            isModified = false;
+        }
+        catch ( IOException e )
+        {
+            logger.info( "Could not write header index " + file + ": " + e.toString() );
+            tmpFile.delete();
+        }
+    }
+
+    int size()
+    {
+        return entries.size();
+    }
+
+    private static BasicFileAttributes getAttributes( File file )
+    {
+        try
+        {
+            return Files.readAttributes( file.toPath(), BasicFileAttributes.class );
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+    }
+
+    private static byte[] encode( FileInfoSer[] infos ) throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream( bytes );
+
+        out.writeInt( infos.length );
+        writeInfo( out, infos[ 0 ] );
+        for ( int i = 1; i < infos.length; i++ )
+        {
+            final boolean isSameHeader = isSameHeader( infos[ 0 ], infos[ i ] );
+            out.writeBoolean( isSameHeader );
+            if ( isSameHeader )
+            {
+                writeLocation( out, infos[ i ] );
+            }
+            else
+            {
+                writeInfo( out, infos[ i ] );
+            }
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static FileInfoSer[] decode( byte[] data ) throws IOException
+    {
+        final DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) );
+
+        final FileInfoSer[] infos = new FileInfoSer[ in.readInt() ];
+        infos[ 0 ] = readInfo( in );
+        for ( int i = 1; i < infos.length; i++ )
+        {
+            if ( in.readBoolean() )
+            {
+                infos[ i ] = new FileInfoSer( infos[ 0 ] );
+                readLocation( in, infos[ i ] );
+            }
+            else
+            {
+                infos[ i ] = readInfo( in );
+            }
+        }
+
+        return infos;
+    }
+
+    /**
+     * Whether the infos only differ in the location of the pixel data, with respect to the stored fields.
+     */
+    private static boolean isSameHeader( FileInfoSer a, FileInfoSer b )
+    {
+        return equals( a.fileName, b.fileName )
+                && equals( a.directory, b.directory )
+                && equals( a.fileTypeString, b.fileTypeString )
+                && equals( a.h5DataSet, b.h5DataSet )
+                && equals( a.unit, b.unit )
+                && a.fileFormat == b.fileFormat
+                && a.fileType == b.fileType
+                && a.width == b.width
+                && a.height == b.height
+                && a.bytesPerPixel == b.bytesPerPixel
+                && a.samplesPerPixel == b.samplesPerPixel
+                && a.nImages == b.nImages
+                && a.gapBetweenImages == b.gapBetweenImages
+                && a.compression == b.compression
+                && a.intelByteOrder == b.intelByteOrder
+                && a.rowsPerStrip == b.rowsPerStrip
+                && a.pixelWidth == b.pixelWidth
+                && a.pixelHeight == b.pixelHeight
+                && a.pixelDepth == b.pixelDepth
+                && a.frameInterval == b.frameInterval
+                && a.isCropped == b.isCropped
+                && Arrays.equals( a.pCropOffset, b.pCropOffset )
+                && Arrays.equals( a.pCropSize, b.pCropSize )
+                && isSameMetadata( a, b );
+    }
+
+    private static boolean isSameMetadata( FileInfoSer a, FileInfoSer b )
+    {
+        return equals( a.url, b.url )
+                && equals( a.description, b.description )
+                && equals( a.info, b.info )
+                && equals( a.valueUnit, b.valueUnit )
+                && a.whiteIsZero == b.whiteIsZero
+                && a.calibrationFunction == b.calibrationFunction
+                && a.lutSize == b.lutSize
+                && Arrays.equals( a.coefficients, b.coefficients )
+                && Arrays.equals( a.metaDataTypes, b.metaDataTypes )
+                && Arrays.deepEquals( a.metaData, b.metaData )
+                && Arrays.equals( a.sliceLabels, b.sliceLabels )
+                && Arrays.equals( a.displayRanges, b.displayRanges )
+                && Arrays.deepEquals( a.channelLuts, b.channelLuts )
+                && Arrays.equals( a.roi, b.roi )
+                && Arrays.deepEquals( a.overlay, b.overlay )
+                && Arrays.equals( a.reds, b.reds )
+                && Arrays.equals( a.greens, b.greens )
+                && Arrays.equals( a.blues, b.blues );
+    }
+
+    private static void writeLocation( DataOutputStream out, FileInfoSer fi ) throws IOException
+    {
+        out.writeLong( fi.offset );
+        writeLongs( out, fi.stripOffsets );
+        writeLongs( out, fi.stripLengths );
+    }
+
+    private static void readLocation( DataInputStream in, FileInfoSer fi ) throws IOException
+    {
+        fi.offset = in.readLong();
+        fi.stripOffsets = readLongs( in );
+        fi.stripLengths = readLongs( in );
+    }
+
+    private static void writeInfo( DataOutputStream out, FileInfoSer fi ) throws IOException
+    {
+        writeString( out, fi.fileName );
+        writeString( out, fi.directory );
+        writeString( out, fi.fileTypeString );
+        writeString( out, fi.h5DataSet );
+        writeString( out, fi.unit );
+
+        out.writeInt( fi.fileFormat );
+        out.writeInt( fi.fileType );
+        out.writeInt( fi.width );
+        out.writeInt( fi.height );
+        out.writeInt( fi.bytesPerPixel );
+        out.writeInt( fi.samplesPerPixel );
+        out.writeInt( fi.nImages );
+        out.writeInt( fi.gapBetweenImages );
+        out.writeInt( fi.compression );
+        out.writeBoolean( fi.intelByteOrder );
+        out.writeInt( fi.rowsPerStrip );
+        writeLocation( out, fi );
+
+        out.writeDouble( fi.pixelWidth );
+        out.writeDouble( fi.pixelHeight );
+        out.writeDouble( fi.pixelDepth );
+        out.writeDouble( fi.frameInterval );
+
+        out.writeBoolean( fi.isCropped );
+        for ( int d = 0; d < 3; d++ )
+        {
+            out.writeInt( fi.pCropOffset[ d ] );
+            out.writeInt( fi.pCropSize[ d ] );
+        }
+
+        writeMetadata( out, fi );
+    }
+
+    /**
+     * The fields that are not needed for reading the pixel data, but are part of the parsed headers;
+     * strings may be longer than {@link DataOutputStream#writeUTF} supports, e.g. the ImageJ info of a Tiff.
+     */
+    private static void writeMetadata( DataOutputStream out, FileInfoSer fi ) throws IOException
+    {
+        writeText( out, fi.url );
+        writeText( out, fi.description );
+        writeText( out, fi.info );
+        writeText( out, fi.valueUnit );
+        out.writeBoolean( fi.whiteIsZero );
+        out.writeInt( fi.calibrationFunction );
+        out.writeInt( fi.lutSize );
+
+        writeDoubles( out, fi.coefficients );
+        writeDoubles( out, fi.displayRanges );
+        writeInts( out, fi.metaDataTypes );
+        writeByteArrays( out, fi.metaData );
+        writeByteArrays( out, fi.channelLuts );
+        writeByteArrays( out, fi.overlay );
+        writeBytes( out, fi.roi );
+        writeBytes( out, fi.reds );
+        writeBytes( out, fi.greens );
+        writeBytes( out, fi.blues );
+
+        out.writeInt( fi.sliceLabels == null ? -1 : fi.sliceLabels.length );
+        if ( fi.sliceLabels != null )
+        {
+            for ( String label : fi.sliceLabels ) writeText( out, label );
+        }
+    }
+
+    private static void readMetadata( DataInputStream in, FileInfoSer fi ) throws IOException
+    {
+        fi.url = readText( in );
+        fi.description = readText( in );
+        fi.info = readText( in );
+        fi.valueUnit = readText( in );
+        fi.whiteIsZero = in.readBoolean();
+        fi.calibrationFunction = in.readInt();
+        fi.lutSize = in.readInt();
+
+        fi.coefficients = readDoubles( in );
+        fi.displayRanges = readDoubles( in );
+        fi.metaDataTypes = readInts( in );
+        fi.metaData = readByteArrays( in );
+        fi.channelLuts = readByteArrays( in );
+        fi.overlay = readByteArrays( in );
+        fi.roi = readBytes( in );
+        fi.reds = readBytes( in );
+        fi.greens = readBytes( in );
+        fi.blues = readBytes( in );
+
+        final int numLabels = in.readInt();
+        if ( numLabels >= 0 )
+        {
+            fi.sliceLabels = new String[ numLabels ];
+            for ( int i = 0; i < numLabels; i++ ) fi.sliceLabels[ i ] = readText( in );
+        }
+    }
+
+    private static FileInfoSer readInfo( DataInputStream in ) throws IOException
+    {
+        final FileInfoSer fi = new FileInfoSer();
+
+        fi.fileName = readString( in );
+        fi.directory = readString( in );
+        fi.fileTypeString = readString( in );
+        fi.h5DataSet = readString( in );
+        fi.unit = readString( in );
+
+        fi.fileFormat = in.readInt();
+        fi.fileType = in.readInt();
+        fi.width = in.readInt();
+        fi.height = in.readInt();
+        fi.bytesPerPixel = in.readInt();
+        fi.samplesPerPixel = in.readInt();
+        fi.nImages = in.readInt();
+        fi.gapBetweenImages = in.readInt();
+        fi.compression = in.readInt();
+        fi.intelByteOrder = in.readBoolean();
+        fi.rowsPerStrip = in.readInt();
+        readLocation( in, fi );
+
+        fi.pixelWidth = in.readDouble();
+        fi.pixelHeight = in.readDouble();
+        fi.pixelDepth = in.readDouble();
+        fi.frameInterval = in.readDouble();
+
+        fi.isCropped = in.readBoolean();
+        for ( int d = 0; d < 3; d++ )
+        {
+            fi.pCropOffset[ d ] = in.readInt();
+            fi.pCropSize[ d ] = in.readInt();
+        }
+
+        readMetadata( in, fi );
+
+        return fi;
+    }
+
+    /**
+     * Strip offsets and lengths are mostly increasing or constant,
+     * thus the differences to the previous value are stored as variable length integers.
+     */
+    private static void writeLongs( DataOutputStream out, long[] values ) throws IOException
+    {
+        if ( values == null )
+        {
+            writeVarLong( out, 0 );
+            return;
+        }
+
+        writeVarLong( out, values.length + 1 );
+        long previous = 0;
+        for ( long value : values )
+        {
+            final long delta = value - previous;
+            writeVarLong( out, ( delta << 1 ) ^ ( delta >> 63 ) ); // zig-zag encoding of negative differences
+            previous = value;
+        }
+    }
+
+    private static long[] readLongs( DataInputStream in ) throws IOException
+    {
+        final int length = ( int ) readVarLong( in ) - 1;
+        if ( length < 0 ) return null;
+
+        final long[] values = new long[ length ];
+        long previous = 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            final long zigZag = readVarLong( in );
+            previous += ( zigZag >>> 1 ) ^ -( zigZag & 1 );
+            values[ i ] = previous;
+        }
+        return values;
+    }
+
+    private static void writeVarLong( DataOutputStream out, long value ) throws IOException
+    {
+        while ( ( value & ~0x7FL ) != 0 )
+        {
+            out.writeByte( ( int ) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+        out.writeByte( ( int ) value );
+    }
+
+    private static long readVarLong( DataInputStream in ) throws IOException
+    {
+        long value = 0;
+        for ( int shift = 0; shift < 64; shift += 7 )
+        {
+            final int b = in.readUnsignedByte();
+            value |= ( long ) ( b & 0x7F ) << shift;
+            if ( ( b & 0x80 ) == 0 ) return value;
+        }
+        throw new IOException( "Malformed variable length integer" );
+    }
+
+    private static void writeString( DataOutputStream out, String string ) throws IOException
+    {
+        out.writeBoolean( string != null );
+        if ( string != null ) out.writeUTF( string );
+    }
+
+    private static String readString( DataInputStream in ) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeText( DataOutputStream out, String text ) throws IOException
+    {
+        writeBytes( out, text == null ? null : text.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    private static String readText( DataInputStream in ) throws IOException
+    {
+        final byte[] bytes = readBytes( in );
+        return bytes == null ? null : new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    private static void writeBytes( DataOutputStream out, byte[] values ) throws IOException
+    {
+        out.writeInt( values == null ? -1 : values.length );
+        if ( values != null ) out.write( values );
+    }
+
+    private static byte[] readBytes( DataInputStream in ) throws IOException
+    {
+        final int length = in.readInt();
+        if ( length < 0 ) return null;
+
+        final byte[] values = new byte[ length ];
+        in.readFully( values );
+        return values;
+    }
+
+    private static void writeByteArrays( DataOutputStream out, byte[][] values ) throws IOException
+    {
+        out.writeInt( values == null ? -1 : values.length );
+        if ( values != null )
+        {
+            for ( byte[] value : values ) writeBytes( out, value );
+        }
+    }
+
+    private static byte[][] readByteArrays( DataInputStream in ) throws IOException
+    {
+        final int length = in.readInt();
+        if ( length < 0 ) return null;
+
+        final byte[][] values = new byte[ length ][];
+        for ( int i = 0; i < length; i++ ) values[ i ] = readBytes( in );
+        return values;
+    }
+
+    private static void writeInts( DataOutputStream out, int[] values ) throws IOException
+    {
+        out.writeInt( values == null ? -1 : values.length );
+        if ( values != null )
+        {
+            for ( int value : values ) out.writeInt( value );
+        }
+    }
+
+    private static int[] readInts( DataInputStream in ) throws IOException
+    {
+        final int length = in.readInt();
+        if ( length < 0 ) return null;
+
+        final int[] values = new int[ length ];
+        for ( int i = 0; i < length; i++ ) values[ i ] = in.readInt();
+        return values;
+    }
+
+    private static void writeDoubles( DataOutputStream out, double[] values ) throws IOException
+    {
+        out.writeInt( values == null ? -1 : values.length );
+        if ( values != null )
+        {
+            for ( double value : values ) out.writeDouble( value );
+        }
+    }
+
+    private static double[] readDoubles( DataInputStream in ) throws IOException
+    {
+        final int length = in.readInt();
+        if ( length < 0 ) return null;
+
+        final double[] values = new double[ length ];
+        for ( int i = 0; i < length; i++ ) values[ i ] = in.readDouble();
+        return values;
+    }
+
+    private static boolean equals( String a, String b )
+    {
+        return a == null ? b == null : a.equals( b );
+    }
+
+    private static class Entry
+    {
+        final long size;
+        final long lastModified;
+        final byte[] data;
+
+        Entry( long size, long lastModified, byte[] data )
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the strip offsets and lengths of a chain of equally structured Tiff IFDs,
+ * as written for all planes of a stack by ImageJ and most microscope software.
+ *
+ * The file is read in blocks rather than per value: if the IFDs are stored next to each other,
+ * a large block covering many IFDs is read at once; if they are interleaved with the image data,
+ * only the IFD and its strip arrays are read, in one request, by predicting their extent from the previous IFD.
+ */
+class IfdScanner implements AutoCloseable
+{
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    // strip arrays further away from their IFD are read separately
+    private static final int MAX_WINDOW_SIZE = 1 << 16;
+
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    private static final int LONG8 = 16;
+
+    private final FileHandleCache.Handle< FileChannel > handle;
+    private final boolean isBigTiff;
+    private final ByteOrder byteOrder;
+
+    private ByteBuffer block;
+    private long blockStart = 0;
+    private int blockLength = 0;
+
+    private long previousIfdOffset = -1;
+    private int windowSize = 0;
+
+    IfdScanner( String path, boolean littleEndian, boolean isBigTiff ) throws IOException
+    {
+        this.handle = FileHandleCache.TIFF.acquire( path );
+        this.isBigTiff = isBigTiff;
+        this.byteOrder = littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        this.block = ByteBuffer.allocate( BLOCK_SIZE ).order( byteOrder );
+    }
+
+    /**
+     * Reads the strips of the IFD at ifdOffset, which must have the same layout as the IFD
+     * from which the relativeStripInfoLocations were determined.
+     *
+     * @param relativeStripInfoLocations positions of the StripOffsets and StripByteCounts entries and the length of the IFD,
+     *                                   relative to the start of the IFD
+     * @param nextIfdOffset receives the offset of the next IFD
+     * @return null if the IFD does not have the expected layout
+     */
+    FileInfoSer readStrips( long ifdOffset, long[] relativeStripInfoLocations, long[] nextIfdOffset ) throws IOException
+    {
+        final int ifdLength = ( int ) relativeStripInfoLocations[ 2 ] + ( isBigTiff ? 8 : 4 );
+        final long predictedNextIfdOffset = previousIfdOffset < 0 ? -1 : 2 * ifdOffset - previousIfdOffset;
+        previousIfdOffset = ifdOffset;
+
+        if ( predictedNextIfdOffset > ifdOffset && predictedNextIfdOffset + ifdLength <= ifdOffset + BLOCK_SIZE )
+        {
+            // IFDs are close to each other: read many of them at once
+            if ( ! ensure( ifdOffset, ifdLength, BLOCK_SIZE ) ) return null;
+        }
+        else
+        {
+            if ( ! ensure( ifdOffset, ifdLength, Math.max( ifdLength, windowSize ) ) ) return null;
+        }
+
+        final long numEntries = isBigTiff ? getLong( ifdOffset ) : getShort( ifdOffset );
+        final int entrySize = isBigTiff ? 20 : 12;
+        if ( ( isBigTiff ? 8 : 2 ) + numEntries * entrySize != relativeStripInfoLocations[ 2 ] ) return null;
+
+        final StripEntry offsets = readEntry( ifdOffset + relativeStripInfoLocations[ 0 ], FastTiffDecoder.STRIP_OFFSETS );
+        final StripEntry lengths = readEntry( ifdOffset + relativeStripInfoLocations[ 1 ], FastTiffDecoder.STRIP_BYTE_COUNT );
+        if ( offsets == null || lengths == null || offsets.count != lengths.count ) return null;
+
+        nextIfdOffset[ 0 ] = isBigTiff
+                ? getLong( ifdOffset + relativeStripInfoLocations[ 2 ] )
+                : getInt( ifdOffset + relativeStripInfoLocations[ 2 ] );
+
+        final FileInfoSer fi = new FileInfoSer();
+        fi.stripOffsets = readValues( offsets );
+        fi.stripLengths = readValues( lengths );
+        if ( fi.stripOffsets == null || fi.stripLengths == null ) return null;
+
+        fi.offset = fi.stripOffsets[ 0 ];
+        if ( fi.stripOffsets.length > 1 && fi.stripOffsets[ fi.stripOffsets.length - 1 ] < fi.stripOffsets[ 0 ] )
+        {
+            fi.offset = fi.stripOffsets[ fi.stripOffsets.length - 1 ];
+        }
+
+        updateWindowSize( ifdOffset, ifdLength, offsets, lengths );
+
+        return fi;
+    }
+
+    /**
+     * Makes sure that [ position, position + length ) is in the block, reading readLength bytes from position if not.
+     */
+    private boolean ensure( long position, int length, int readLength ) throws IOException
+    {
+        if ( position >= blockStart && position + length <= blockStart + blockLength ) return true;
+
+        if ( block.capacity() < readLength )
+        {
+            block = ByteBuffer.allocate( readLength ).order( byteOrder );
+        }
+
+        block.clear();
+        block.limit( readLength );
+
+        final FileChannel channel = handle.get();
+        long readPosition = position;
+        while ( block.hasRemaining() )
+        {
+            final int n;
+            try
+            {
+                n = channel.read( block, readPosition );
+            }
+            catch ( ClosedChannelException e )
+            {
+                handle.invalidate();
+                throw e;
+            }
+            if ( n < 0 ) break;
+            readPosition += n;
+        }
+
+        blockStart = position;
+        blockLength = block.position();
+
+        return blockLength >= length;
+    }
+
+    private StripEntry readEntry( long position, int expectedTag )
+    {
+        if ( getShort( position ) != expectedTag ) return null;
+
+        final StripEntry entry = new StripEntry();
+        entry.fieldType = getShort( position + 2 );
+        entry.count = isBigTiff ? getLong( position + 4 ) : getInt( position + 4 );
+
+        final int valueSize = getValueSize( entry.fieldType );
+        if ( valueSize == 0 || entry.count < 1 || entry.count > Integer.MAX_VALUE / 8 ) return null;
+
+        final long valuePosition = position + ( isBigTiff ? 12 : 8 );
+        final int inlineCapacity = isBigTiff ? 8 : 4;
+
+        if ( entry.count * valueSize <= inlineCapacity )
+        {
+            // the values are stored in the entry itself
+            entry.inlineValues = new long[ ( int ) entry.count ];
+            for ( int i = 0; i < entry.count; i++ )
+            {
+                entry.inlineValues[ i ] = getValue( entry.fieldType, valuePosition + i * valueSize );
+            }
+        }
+        else
+        {
+            entry.valuesOffset = isBigTiff ? getLong( valuePosition ) : getInt( valuePosition );
+        }
+
+        return entry;
+    }
+
+    private long[] readValues( StripEntry entry ) throws IOException
+    {
+        if ( entry.inlineValues != null ) return entry.inlineValues;
+
+        final int valueSize = getValueSize( entry.fieldType );
+        final int length = ( int ) entry.count * valueSize;
+        if ( ! ensure( entry.valuesOffset, length, Math.max( length, BLOCK_SIZE / 16 ) ) ) return null;
+
+        final long[] values = new long[ ( int ) entry.count ];
+        for ( int i = 0; i < values.length; i++ )
+        {
+            values[ i ] = getValue( entry.fieldType, entry.valuesOffset + ( long ) i * valueSize );
+        }
+        return values;
+    }
+
+    /**
+     * If the strip arrays are stored right after their IFD, subsequent IFDs are read together with their strip arrays.
+     */
+    private void updateWindowSize( long ifdOffset, int ifdLength, StripEntry offsets, StripEntry lengths )
+    {
+        long end = ifdOffset + ifdLength;
+        for ( StripEntry entry : new StripEntry[]{ offsets, lengths } )
+        {
+            if ( entry.inlineValues == null && entry.valuesOffset >= ifdOffset )
+            {
+                end = Math.max( end, entry.valuesOffset + entry.count * getValueSize( entry.fieldType ) );
+            }
+        }
+
+        if ( end - ifdOffset <= MAX_WINDOW_SIZE )
+        {
+            windowSize = Math.max( windowSize, ( int ) ( end - ifdOffset ) );
+        }
+    }
+
+    private int getValueSize( int fieldType )
+    {
+        switch ( fieldType )
+        {
+            case SHORT: return 2;
+            case LONG: return 4;
+            case LONG8: return 8;
+            default: return 0;
+        }
+    }
+
+    private long getValue( int fieldType, long position )
+    {
+        switch ( fieldType )
+        {
+            case SHORT: return getShort( position );
+            case LONG: return getInt( position );
+            default: return getLong( position );
+        }
+    }
+
+    private int getShort( long position )
+    {
+        return block.getShort( ( int ) ( position - blockStart ) ) & 0xffff;
+    }
+
+    private long getInt( long position )
+    {
+        return block.getInt( ( int ) ( position - blockStart ) ) & 0xffffffffL;
+    }
+
+    private long getLong( long position )
+    {
+        return block.getLong( ( int ) ( position - blockStart ) );
+    }
+
+    @Override
+    public void close()
+    {
+        handle.close();
+    }
+
+    private static class StripEntry
+    {
+        int fieldType;
+        long count;
+        long valuesOffset;
+        long[] inlineValues;
+    }
+}
@@ -2,6 +2,7 @@ package de.embl.cba.bigdataprocessor.virtualstack2;
 
 import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
 import de.embl.cba.bigdataprocessor.log.Logger;
+import de.embl.cba.bigdataprocessor.utils.MemoryBudget;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ImageProcessor;
@@ -35,27 +36,39 @@ public class LoadFrameFromVS2IntoRAM implements Runnable
 
         VirtualStack2 vs2 = (VirtualStack2 ) imp.getStack();
 
-        for (int c = 0; c < imp.getNChannels(); c++) {
-
-            // Load time-point and channel
-            //logger.info("Loading time point " + t + ", channel " + c + "; memory: " + IJ.freeMemory());
-            ImagePlus impChannelTime = vs2.getFullFrame(c, t, new Point3D(1, 1, 1), nThreads);
-
-            // Copy time-point and channel at the right place into impRAM
-            ImageStack stack = impChannelTime.getStack();
-            ImageStack stackRAM = impRAM.getStack();
+        // the RAM image is already allocated, thus only the loaded data cube needs memory
+        final long bytesPerCube = (long) vs2.getWidth() * vs2.getHeight() * impRAM.getNSlices()
+                * ( impRAM.getBitDepth() / 8 );
 
-            int iStart = impRAM.getStackIndex(1,1,t+1);
-            int iEnd = iStart + impRAM.getNSlices() - 1;
+        for (int c = 0; c < imp.getNChannels(); c++) {
 
-            for ( int i = iStart; i <= iEnd; i++ )
+            try ( MemoryBudget.Reservation reservation = MemoryBudget.getInstance().reserve( bytesPerCube ) )
             {
-                ImageProcessor ip = stack.getProcessor(i - iStart + 1);
-                stackRAM.setPixels(ip.getPixels(), i);
+                loadChannel( vs2, c );
             }
 
         }
 
     }
 
+    private void loadChannel( VirtualStack2 vs2, int c )
+    {
+        // Load time-point and channel
+        //logger.info("Loading time point " + t + ", channel " + c + "; memory: " + IJ.freeMemory());
+        ImagePlus impChannelTime = vs2.getFullFrame(c, t, new Point3D(1, 1, 1), nThreads);
+
+        // Copy time-point and channel at the right place into impRAM
+        ImageStack stack = impChannelTime.getStack();
+        ImageStack stackRAM = impRAM.getStack();
+
+        int iStart = impRAM.getStackIndex(1,1,t+1);
+        int iEnd = iStart + impRAM.getNSlices() - 1;
+
+        for ( int i = iStart; i <= iEnd; i++ )
+        {
+            ImageProcessor ip = stack.getProcessor(i - iStart + 1);
+            stackRAM.setPixels(ip.getPixels(), i);
+        }
+    }
+
 }
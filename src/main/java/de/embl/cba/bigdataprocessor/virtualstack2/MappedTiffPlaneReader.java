@@ -0,0 +1,313 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
+import de.embl.cba.bigdataprocessor.log.Logger;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads cropped planes of uncompressed Tiff files via memory mapping.
+ *
+ * The pixels are copied directly from the mapped file into the pixel array of the image,
+ * without intermediate byte buffers. Files are mapped in windows of 1 GB (a MappedByteBuffer
+ * can not be larger than 2 GB), which overlap such that each image row is contained in one window.
+ * The mapped windows are kept in a small cache, such that subsequent reads from the same file,
+ * e.g. while scrolling through a stack, do not have to map it again; the files themselves are
+ * opened via the {@link FileHandleCache}.
+ *
+ * Mapped windows are unmapped as soon as their file is evicted from the cache or invalidated
+ * because it is written, and no read uses it anymore, rather than when the garbage collector
+ * gets to them; on Windows, mapped files can not be rewritten.
+ */
+class MappedTiffPlaneReader
+{
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final long WINDOW_OVERLAP = 1L << 26;
+    private static final int MAX_MAPPED_FILES = 64;
+
+    /** 16-bit signed integer; as in ij.io.FileInfo */
+    private static final int GRAY16_SIGNED = 1;
+
+    private static Logger logger = new IJLazySwingLogger();
+
+    // mapped windows stay valid without an open channel
+    private static final Map< String, MappedFile > mappedFiles =
+            new LinkedHashMap< String, MappedFile >( 16, 0.75F, true )
+            {
+                @Override
+                protected boolean removeEldestEntry( Map.Entry< String, MappedFile > eldest )
+                {
+                    if ( size() <= MAX_MAPPED_FILES ) return false;
+                    eldest.getValue().remove();
+                    return true;
+                }
+            };
+
+    static boolean canRead( FileInfoSer fi )
+    {
+        return ( fi.compression == 0 || fi.compression == 1 )
+                && ( fi.bytesPerPixel == 1 || fi.bytesPerPixel == 2 );
+    }
+
+    /**
+     * Copies the pixels xs to xs + nx - 1 of the rows ys to ys + ny - 1 into the pixel array.
+     *
+     * @param pixels byte[] or short[] of size nx * ny
+     */
+    static void readPlane( String path, FileInfoSer fi, Object pixels, int xs, int nx, int ys, int ny )
+            throws IOException
+    {
+        final MappedFile file = acquireMappedFile( path );
+        try
+        {
+            readPlane( file, fi, pixels, xs, nx, ys, ny );
+        }
+        finally
+        {
+            releaseMappedFile( file );
+        }
+    }
+
+    /**
+     * Unmaps the file, e.g. because it is about to be written; reads that currently use it finish first.
+     */
+    static void invalidate( String path )
+    {
+        synchronized ( mappedFiles )
+        {
+            final MappedFile file = mappedFiles.remove( path );
+            if ( file != null ) file.remove();
+        }
+    }
+
+    private static void readPlane( MappedFile file, FileInfoSer fi, Object pixels, int xs, int nx, int ys, int ny )
+            throws IOException
+    {
+        final int imByteWidth = fi.width * fi.bytesPerPixel;
+        final int rowByteLength = nx * fi.bytesPerPixel;
+        final boolean hasStrips = fi.stripOffsets != null && fi.stripOffsets.length > 1;
+        final ByteOrder byteOrder = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+        for ( int y = ys, i = 0; y < ys + ny; y++, i += nx )
+        {
+            long rowStart;
+            if ( hasStrips )
+            {
+                rowStart = fi.stripOffsets[ y / fi.rowsPerStrip ] + (long) ( y % fi.rowsPerStrip ) * imByteWidth;
+            }
+            else
+            {
+                rowStart = fi.offset + (long) y * imByteWidth;
+            }
+            rowStart += (long) xs * fi.bytesPerPixel;
+
+            final ByteBuffer row = file.getRow( rowStart, rowByteLength );
+            row.order( byteOrder );
+
+            if ( fi.bytesPerPixel == 1 )
+            {
+                row.get( ( byte[] ) pixels, i, nx );
+            }
+            else
+            {
+                final short[] shortPixels = ( short[] ) pixels;
+                row.asShortBuffer().get( shortPixels, i, nx );
+
+                if ( fi.fileType == GRAY16_SIGNED )
+                {
+                    for ( int j = i; j < i + nx; j++ )
+                    {
+                        shortPixels[ j ] = ( short ) ( shortPixels[ j ] + 32768 );
+                    }
+                }
+            }
+        }
+    }
+
+    private static MappedFile acquireMappedFile( String path ) throws IOException
+    {
+        synchronized ( mappedFiles )
+        {
+            final MappedFile file = mappedFiles.get( path );
+            if ( file != null )
+            {
+                file.references++;
+                return file;
+            }
+        }
+
+        // open outside of the lock, such that slow file systems do not block reading other files
+        final MappedFile opened = new MappedFile( path );
+
+        final MappedFile file;
+        synchronized ( mappedFiles )
+        {
+            final MappedFile existing = mappedFiles.get( path );
+            if ( existing != null )
+            {
+                // another thread was faster
+                file = existing;
+            }
+            else
+            {
+                file = opened;
+                mappedFiles.put( path, file );
+            }
+            file.references++;
+        }
+
+        if ( file != opened ) opened.unmap();
+
+        return file;
+    }
+
+    private static void releaseMappedFile( MappedFile file )
+    {
+        synchronized ( mappedFiles )
+        {
+            file.references--;
+            if ( file.isRemoved && file.references == 0 ) file.unmap();
+        }
+    }
+
+    /**
+     * Releases the memory of a mapped buffer immediately.
+     * The buffer must not be accessed anymore, otherwise the JVM crashes.
+     */
+    private static void unmap( MappedByteBuffer buffer )
+    {
+        try
+        {
+            try
+            {
+                // Java 9 and later
+                final Class< ? > unsafeClass = Class.forName( "sun.misc.Unsafe" );
+                final Field field = unsafeClass.getDeclaredField( "theUnsafe" );
+                field.setAccessible( true );
+                final Method invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+                invokeCleaner.invoke( field.get( null ), buffer );
+            }
+            catch ( NoSuchMethodException e )
+            {
+                // Java 8
+                final Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+                cleanerMethod.setAccessible( true );
+                final Object cleaner = cleanerMethod.invoke( buffer );
+                if ( cleaner != null ) cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+            }
+        }
+        catch ( Exception e )
+        {
+            // left to the garbage collector
+            logger.debug( "Could not unmap a Tiff file: " + e.toString() );
+        }
+    }
+
+    private static class MappedFile
+    {
+        private final String path;
+        private final long size;
+        private final MappedByteBuffer[] windows;
+
+        // guarded by mappedFiles
+        private int references = 0;
+        private boolean isRemoved = false;
+
+        MappedFile( String path ) throws IOException
+        {
+            this.path = path;
+            try ( FileHandleCache.Handle< FileChannel > handle = FileHandleCache.TIFF.acquire( path ) )
+            {
+                this.size = size( handle );
+            }
+            this.windows = new MappedByteBuffer[ (int) ( ( size + WINDOW_SIZE - 1 ) / WINDOW_SIZE ) ];
+        }
+
+        /**
+         * Returns a buffer positioned at the row start, independent of other threads reading the same file.
+         */
+        ByteBuffer getRow( long rowStart, int rowByteLength ) throws IOException
+        {
+            if ( rowStart + rowByteLength > size )
+            {
+                throw new IOException( "The requested data exceeds the file length: "
+                        + ( rowStart + rowByteLength ) + " > " + size );
+            }
+
+            if ( rowByteLength > WINDOW_OVERLAP )
+            {
+                throw new IOException( "Image rows larger than " + WINDOW_OVERLAP + " bytes are not supported." );
+            }
+
+            final int windowIndex = (int) ( rowStart / WINDOW_SIZE );
+            final ByteBuffer row = getWindow( windowIndex ).duplicate();
+            row.position( (int) ( rowStart - windowIndex * WINDOW_SIZE ) );
+            return row;
+        }
+
+        /**
+         * Called once the file is not in the cache anymore; guarded by mappedFiles.
+         */
+        void remove()
+        {
+            isRemoved = true;
+            if ( references == 0 ) unmap();
+        }
+
+        private synchronized void unmap()
+        {
+            for ( int i = 0; i < windows.length; i++ )
+            {
+                if ( windows[ i ] != null )
+                {
+                    MappedTiffPlaneReader.unmap( windows[ i ] );
+                    windows[ i ] = null;
+                }
+            }
+        }
+
+        private synchronized MappedByteBuffer getWindow( int windowIndex ) throws IOException
+        {
+            if ( windows[ windowIndex ] == null )
+            {
+                final long start = windowIndex * WINDOW_SIZE;
+                final long length = Math.min( size - start, WINDOW_SIZE + WINDOW_OVERLAP );
+                try ( FileHandleCache.Handle< FileChannel > handle = FileHandleCache.TIFF.acquire( path ) )
+                {
+                    try
+                    {
+                        windows[ windowIndex ] = handle.get().map( FileChannel.MapMode.READ_ONLY, start, length );
+                    }
+                    catch ( ClosedChannelException e )
+                    {
+                        handle.invalidate();
+                        throw e;
+                    }
+                }
+            }
+            return windows[ windowIndex ];
+        }
+
+        private static long size( FileHandleCache.Handle< FileChannel > handle ) throws IOException
+        {
+            try
+            {
+                return handle.get().size();
+            }
+            catch ( ClosedChannelException e )
+            {
+                handle.invalidate();
+                throw e;
+            }
+        }
+    }
+}
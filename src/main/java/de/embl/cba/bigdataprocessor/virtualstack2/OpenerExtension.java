@@ -13,6 +13,7 @@ package de.embl.cba.bigdataprocessor.virtualstack2;
 
 import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
 import de.embl.cba.bigdataprocessor.log.Logger;
+import de.embl.cba.bigdataprocessor.utils.IOScheduler;
 import de.embl.cba.bigdataprocessor.utils.Utils;
 import ch.systemsx.cisd.base.mdarray.MDByteArray;
 import ch.systemsx.cisd.base.mdarray.MDShortArray;
@@ -20,20 +21,18 @@ import ch.systemsx.cisd.hdf5.*;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.io.BitBuffer;
 import ij.io.Opener;
 import de.embl.cba.util.Point3D;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 
 // TODO: make extra classes for hdf5 reading
@@ -48,6 +47,24 @@ class OpenerExtension extends Opener {
     }
 
     public ImagePlus readDataCube(String directory, FileInfoSer[] info, int dz, Point3D po, Point3D ps, int nThreads)
+    {
+        return readDataCube( directory, info, 1, 1, dz, po, ps, nThreads );
+    }
+
+    /**
+     * Sub-sampling in x and y (dx, dy &gt; 1) is only supported for Hdf5 data;
+     * the returned image then contains the pixels at x = xs, xs + dx, ... and y = ys, ys + dy, ...
+     */
+    public ImagePlus readDataCube(String directory, FileInfoSer[] info, int dx, int dy, int dz, Point3D po, Point3D ps, int nThreads)
+    {
+        return readDataCube( directory, info, dx, dy, dz, po, ps, nThreads, false );
+    }
+
+    /**
+     * @param isForDisplay whether a single plane may be read from a resolution level that is down-sampled in z,
+     *                     which is only approximately the requested plane
+     */
+    public ImagePlus readDataCube(String directory, FileInfoSer[] info, int dx, int dy, int dz, Point3D po, Point3D ps, int nThreads, boolean isForDisplay)
     {
 
         // compute ranges to be loaded
@@ -66,6 +83,12 @@ class OpenerExtension extends Opener {
 
         ImagePlus imp = null;
 
+        if ( ( dx > 1 || dy > 1 ) && ! info[zs].fileTypeString.equals(Utils.FileType.HDF5.toString()) )
+        {
+            logger.error("sub-sampling in x and y while reading is not supported for " + info[zs].fileTypeString);
+            return(null);
+        }
+
         if(info[zs].fileTypeString.equals(Utils.FileType.TIFF_STACKS.toString()))
         {
             imp = readDataCubeFromTiff(directory, info, nThreads, zs, ze, nz, dz, xs, xe, ys, ye);
@@ -76,7 +99,7 @@ class OpenerExtension extends Opener {
         }
         else if(info[zs].fileTypeString.equals(Utils.FileType.HDF5.toString()))
         {
-            imp = readDataCubeFromHdf5(directory, info, zs, ze, nz, dz, xs, xe, ys, ye);
+            imp = readDataCubeFromHdf5(directory, info, zs, ze, nz, dz, xs, xe, ys, ye, dx, dy, isForDisplay);
         }
         else
         {
@@ -91,6 +114,22 @@ class OpenerExtension extends Opener {
                                           int zs, int ze, int nz, int dz,
                                           int xs, int xe, int ys, int ye)
     {
+        return readDataCubeFromHdf5( directory, info, zs, ze, nz, dz, xs, xe, ys, ye, 1, 1 );
+    }
+
+    public ImagePlus readDataCubeFromHdf5(String directory, FileInfoSer[] info,
+                                          int zs, int ze, int nz, int dz,
+                                          int xs, int xe, int ys, int ye,
+                                          int dx, int dy)
+    {
+        return readDataCubeFromHdf5( directory, info, zs, ze, nz, dz, xs, xe, ys, ye, dx, dy, false );
+    }
+
+    private ImagePlus readDataCubeFromHdf5(String directory, FileInfoSer[] info,
+                                           int zs, int ze, int nz, int dz,
+                                           int xs, int xe, int ys, int ye,
+                                           int dx, int dy, boolean isForDisplay)
+    {
 
         if (info == null) {
             logger.error("FileInfo was empty; could not load data.");
@@ -99,318 +138,110 @@ class OpenerExtension extends Opener {
 
         FileInfoSer fi = info[0];
 
-        ImagePlus imp;
+        ImagePlus imp = null;
+
+        String path = directory + fi.directory + fi.fileName;
 
-        if ( fi.bytesPerPixel == 1 )
+        try ( FileHandleCache.Handle< IHDF5Reader > handle = FileHandleCache.HDF5.acquire( path );
+              IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( path ) )
         {
-            imp = read8bitDataCubeFromHdf5( directory, info,
-                    zs,  ze,  nz,  dz, xs,  xe,  ys,  ye);
+            IHDF5Reader reader = handle.get();
+
+            // the reader is shared with other threads reading from the same file
+            synchronized ( reader )
+            {
+                imp = readDataCubeFromHdf5( reader, path, info, fi.bytesPerPixel == 1 ? 1 : 2,
+                        zs, ze, nz, dz, xs, xe, ys, ye, dx, dy, isForDisplay );
+            }
         }
-        else
+        catch ( Exception e )
         {
-            imp = read16bitDataCubeFromHdf5( directory, info,
-                    zs,  ze,  nz,  dz, xs,  xe,  ys,  ye);
+            logger.error( "Could not read " + path + ": " + e.toString() );
         }
 
         return ( imp );
     }
 
 
-    public ImagePlus read16bitDataCubeFromHdf5(String directory, FileInfoSer[] info,
+    public ImagePlus read16bitDataCubeFromHdf5(IHDF5Reader reader, String directory, FileInfoSer[] info,
                                                int zs, int ze, int nz, int dz,
                                                int xs, int xe, int ys, int ye)
     {
-        long settingTime = 0, readingPixelsTime = 0, readingInitTime = 0, totalTime = 0, allocationTime = 0;
-
-        totalTime = System.currentTimeMillis();
-
-        allocationTime = System.currentTimeMillis();
-
-        FileInfoSer fi = info[0];
-
-        int nx = xe - xs + 1;
-        int ny = ye - ys + 1;
-
-        if ( logger.isShowDebug() ) {
-            logger.info("# readDataCubeFromHdf5");
-            logger.info("root directory: " + directory);
-            logger.info("fi.directory: " + fi.directory);
-            logger.info("fi.filename: " + fi.fileName);
-            logger.info("info.length: " + info.length);
-            logger.info("zs,dz,ze,nz,xs,xe,ys,ye: " + zs + "," + dz + "," + ze + "," + nz + "," + xs + "," +
-                    xe + "," + ys + "," + ye);
-        }
-
-        short[] asFlatArray = null, pixels;
-        MDShortArray block = null;
-        int imShortSize = nx * ny;
-
-        // Allocate the stack
-        ImageStack stack = ImageStack.create(nx, ny, nz, fi.bytesPerPixel * 8);
-        ImagePlus imp = new ImagePlus("cropped", stack);
-
-        long maxSize = (1L << 31) - 1;
-        long nPixels = (long) nx * ny * nz;
-        boolean readInOneGo = true;
-        if (nPixels > maxSize) {
-            logger.info("H5 Loader: nPixels > 2^31 => reading plane wise (=> slower!).");
-            readInOneGo = false;
-        }
-        allocationTime = System.currentTimeMillis() - allocationTime;
-
-        readingInitTime = System.currentTimeMillis();
-        IHDF5Reader reader = HDF5Factory.openForReading(directory + fi.directory + fi.fileName);
-        HDF5DataSetInformation dsInfo = reader.getDataSetInformation(fi.h5DataSet);
-        String dsTypeString = hdf5InfoToString(dsInfo);
-        readingInitTime = System.currentTimeMillis() - readingInitTime;
-
-        if (dz == 1 && readInOneGo) {
-
-            // read everything in one go
-            //
-
-            /*
-            String filePath = directory + fi.directory + fi.fileName;
-            String[] dsetNames = new String[] {fi.h5DataSet};
-            int nFrames = 1;
-            int nChannels = 1;
-            */
-
-            readingPixelsTime = System.currentTimeMillis();
-
-
-            if ( dsTypeString.equals("int16") )
-            {
-                try
-                {
-                    block = reader.int16().readMDArrayBlockWithOffset(fi.h5DataSet, new int[]{nz, ny, nx}, new long[]{zs, ys, xs});
-                }
-                catch (Exception e)
-                {
-                    // 2-d data set
-                    block = reader.int16().readMDArrayBlockWithOffset(fi.h5DataSet, new int[]{ny, nx}, new long[]{ys, xs});
-                }
-            }
-            else if ( dsTypeString.equals("uint16") )
-            {
-                try
-                {
-                    block = reader.uint16().readMDArrayBlockWithOffset(fi.h5DataSet, new int[]{nz, ny, nx}, new long[]{zs, ys, xs});
-                }
-                catch (Exception e)
-                {
-                    // 2-d data set
-                    block = reader.uint16().readMDArrayBlockWithOffset(fi.h5DataSet, new int[]{ny, nx}, new long[]{ys, xs});
-                }
-            }
-            else
-            {
-                logger.error("Data type " + dsTypeString + " is currently not supported");
-                return ( null );
-            }
-            readingPixelsTime = System.currentTimeMillis() - readingPixelsTime;
-
-            // copy pixels plane-wise into stack
-            settingTime = System.currentTimeMillis();
-            asFlatArray = block.getAsFlatArray();
-            for (int z = zs; z <= ze; z++) {
-                pixels = (short[]) imp.getStack().getPixels(z - zs + 1);
-                System.arraycopy(asFlatArray, (z - zs) * imShortSize, pixels, 0, imShortSize);
-            }
-            settingTime = System.currentTimeMillis() - settingTime;
-
-        }
-        else
-        {
-            // todo: make a fast version for too large data sets (check code from Ronnerberger)
-
-            // read plane wise
-            // - sub-sampling in z possible
-            // - no java indexing issue for the asFlatArray
-            int z = zs;
-            for (int iz=1; iz<=nz; iz++, z+=dz)
-            {
-                if ( dsTypeString.equals("int16") )
-                {
-                    block = reader.int16().readMDArrayBlockWithOffset( fi.h5DataSet, new int[]{ 1, ny, nx }, new long[]{ z,
-                            ys, xs } );
-                }
-                else if ( dsTypeString.equals("uint16") )
-                {
-                    block = reader.uint16().readMDArrayBlockWithOffset( fi.h5DataSet, new int[]{ 1, ny, nx }, new long[]{ z,
-                            ys, xs } );
-                }
-                asFlatArray = block.getAsFlatArray();
-                imp.getStack().setPixels(asFlatArray, iz);
-                //pixels = (short[]) imp.getStack().getPixels(iz);
-                //System.arraycopy(asFlatArray, 0, pixels, 0, imShortSize);
-
-            }
-        }
-
-        totalTime = (System.currentTimeMillis() - totalTime);
-
-        if( logger.isShowDebug() ) {
-            logger.info("h5 allocationTime [ms]: " + allocationTime);
-            logger.info("h5 readingInitTime [ms]: " + readingInitTime);
-            logger.info("h5 readingPixelsTime [ms]: " + readingPixelsTime);
-            logger.info("h5 settingPixelsIntoImageStackTime [ms]: " + settingTime);
-            logger.info("h5 totalTime [ms]: " + totalTime);
-            logger.info("pixels read: " + asFlatArray.length);
-            logger.info("effective reading speed [MB/s]: " + (double) nz * nx * ny * fi.bytesPerPixel / (
-                    (totalTime + 0.001) * 1000));
-
-        }
-
-        return(imp);
+        return readDataCubeFromHdf5( reader, directory + info[0].directory + info[0].fileName, info, 2,
+                zs, ze, nz, dz, xs, xe, ys, ye, 1, 1, false );
     }
 
 
-    public ImagePlus read8bitDataCubeFromHdf5(String directory, FileInfoSer[] info,
+    public ImagePlus read8bitDataCubeFromHdf5(IHDF5Reader reader, String directory, FileInfoSer[] info,
                                               int zs, int ze, int nz, int dz,
                                               int xs, int xe, int ys, int ye)
     {
-        long settingTime = 0, readingPixelsTime = 0, readingInitTime = 0, totalTime = 0, allocationTime = 0;
+        return readDataCubeFromHdf5( reader, directory + info[0].directory + info[0].fileName, info, 1,
+                zs, ze, nz, dz, xs, xe, ys, ye, 1, 1, false );
+    }
 
-        totalTime = System.currentTimeMillis();
 
-        allocationTime = System.currentTimeMillis();
+    /**
+     * Reads the pixels at z = zs, zs + dz, ..., y = ys, ys + dy, ... and x = xs, xs + dx, ...;
+     * if the file contains a down-sampled resolution level of the data set that has these pixels, it is read from there.
+     */
+    private ImagePlus readDataCubeFromHdf5(IHDF5Reader reader, String path, FileInfoSer[] info,
+                                           int bytesPerPixel,
+                                           int zs, int ze, int nz, int dz,
+                                           int xs, int xe, int ys, int ye,
+                                           int dx, int dy, boolean isForDisplay)
+    {
+        long readingPixelsTime = 0, totalTime = 0, allocationTime = 0;
+
+        totalTime = System.currentTimeMillis();
 
         FileInfoSer fi = info[0];
 
-        int nx = xe - xs + 1;
-        int ny = ye - ys + 1;
+        int nx = (xe - xs) / dx + 1;
+        int ny = (ye - ys) / dy + 1;
+
+        Hdf5ResolutionLevels.Level level = Hdf5ResolutionLevels.get( reader, path, fi.h5DataSet )
+                .select( dx, dy, dz, nz, xs + (nx - 1) * dx, ys + (ny - 1) * dy, zs + (nz - 1) * dz, isForDisplay );
 
         if ( logger.isShowDebug() ) {
             logger.info("# readDataCubeFromHdf5");
-            logger.info("root directory: " + directory);
-            logger.info("fi.directory: " + fi.directory);
-            logger.info("fi.filename: " + fi.fileName);
+            logger.info("path: " + path);
             logger.info("info.length: " + info.length);
             logger.info("zs,dz,ze,nz,xs,xe,ys,ye: " + zs + "," + dz + "," + ze + "," + nz + "," + xs + "," +
                     xe + "," + ys + "," + ye);
+            logger.info("dx,dy: " + dx + "," + dy);
+            logger.info("data set: " + level.dataSet);
         }
 
-        byte[] asFlatArray = null, pixels;
-        MDByteArray block = null;
-        int imSize = nx * ny;
-
-        // Allocate the stack
-        ImageStack stack = ImageStack.create(nx, ny, nz, fi.bytesPerPixel * 8);
-        ImagePlus imp = new ImagePlus("cropped", stack);
-
-        long maxSize = (1L << 31) - 1;
-        long nPixels = (long) nx * ny * nz;
-        boolean readInOneGo = true;
-        if (nPixels > maxSize) {
-            logger.info("H5 Loader: nPixels > 2^31 => reading plane wise (=> slower!).");
-            readInOneGo = false;
-        }
+        // Allocate the stack; the pixels are read directly into its planes
+        allocationTime = System.currentTimeMillis();
+        ImageStack stack = ImageStack.create(nx, ny, nz, bytesPerPixel * 8);
         allocationTime = System.currentTimeMillis() - allocationTime;
 
-
-        readingInitTime = System.currentTimeMillis();
-        IHDF5Reader reader = HDF5Factory.openForReading(directory + fi.directory + fi.fileName);
-        HDF5DataSetInformation dsInfo = reader.getDataSetInformation(fi.h5DataSet);
-        String dsTypeString = hdf5InfoToString(dsInfo);
-        readingInitTime = System.currentTimeMillis() - readingInitTime;
-
-        if (dz == 1 && readInOneGo) {
-
-            // read everything in one go
-            //
-
-        /*
-        String filePath = directory + fi.directory + fi.fileName;
-        String[] dsetNames = new String[] {fi.h5DataSet};
-        int nFrames = 1;
-        int nChannels = 1;
-        */
-
-            readingPixelsTime = System.currentTimeMillis();
-
-
-            if ( dsTypeString.equals("int8") )
-            {
-                try
-                {
-                    block = reader.int8().readMDArrayBlockWithOffset(fi.h5DataSet, new int[]{nz, ny, nx}, new long[]{zs, ys, xs});
-                }
-                catch (Exception e)
-                {
-                    // 2-d data set
-                    block = reader.int8().readMDArrayBlockWithOffset(fi.h5DataSet, new int[]{ny, nx}, new long[]{ys, xs});
-                }
-            }
-            else if ( dsTypeString.equals("uint8") )
-            {
-                try
-                {
-                    block = reader.uint8().readMDArrayBlockWithOffset(fi.h5DataSet, new int[]{nz, ny, nx}, new long[]{zs, ys, xs});
-                }
-                catch (Exception e)
-                {
-                    // 2-d data set
-                    block = reader.uint8().readMDArrayBlockWithOffset(fi.h5DataSet, new int[]{ny, nx}, new long[]{ys, xs});
-                }
-            }
-            else
-            {
-                logger.error("Data type " + dsTypeString + " is currently not supported");
-                return ( null );
-            }
-            readingPixelsTime = System.currentTimeMillis() - readingPixelsTime;
-
-            // copy pixels plane-wise into stack
-            settingTime = System.currentTimeMillis();
-            asFlatArray = block.getAsFlatArray();
-            for (int z = zs; z <= ze; z++) {
-                pixels = (byte[]) imp.getStack().getPixels(z - zs + 1);
-                System.arraycopy(asFlatArray, (z - zs) * imSize, pixels, 0, imSize);
-            }
-            settingTime = System.currentTimeMillis() - settingTime;
-
-        }
-        else
+        readingPixelsTime = System.currentTimeMillis();
+        Hdf5CubeReader cubeReader = new Hdf5CubeReader( reader, level.dataSet, bytesPerPixel );
+        if ( ! cubeReader.read( stack,
+                zs / level.fz, Math.max( 1, dz / level.fz ),
+                xs / level.fx, dx / level.fx,
+                ys / level.fy, dy / level.fy ) )
         {
-            // read plane wise
-            // - sub-sampling in z possible
-            // - no java indexing issue for the asFlatArray
-            int z = zs;
-            for (int iz=1; iz<=nz; iz++, z+=dz)
-            {
-                if ( dsTypeString.equals("int8") )
-                {
-                    block = reader.int8().readMDArrayBlockWithOffset(
-                            fi.h5DataSet, new int[]{ 1, ny, nx }, new long[]{ z,
-                                    ys, xs } );
-                }
-                else if ( dsTypeString.equals("uint8") )
-                {
-                    block = reader.uint8().readMDArrayBlockWithOffset(
-                            fi.h5DataSet, new int[]{ 1, ny, nx }, new long[]{ z,
-                                    ys, xs } );
-                }
-                asFlatArray = block.getAsFlatArray();
-                imp.getStack().setPixels(asFlatArray, iz);
-            }
+            return ( null );
         }
+        readingPixelsTime = System.currentTimeMillis() - readingPixelsTime;
 
         totalTime = (System.currentTimeMillis() - totalTime);
 
         if( logger.isShowDebug() ) {
             logger.info("h5 allocationTime [ms]: " + allocationTime);
-            logger.info("h5 readingInitTime [ms]: " + readingInitTime);
             logger.info("h5 readingPixelsTime [ms]: " + readingPixelsTime);
-            logger.info("h5 settingPixelsIntoImageStackTime [ms]: " + settingTime);
             logger.info("h5 totalTime [ms]: " + totalTime);
-            logger.info("pixels read: " + asFlatArray.length);
-            logger.info("effective reading speed [MB/s]: " + (double) nz * nx * ny * fi.bytesPerPixel / (
+            logger.info("pixels read: " + (long) nz * nx * ny);
+            logger.info("effective reading speed [MB/s]: " + (double) nz * nx * ny * bytesPerPixel / (
                     (totalTime + 0.001) * 1000));
 
         }
 
-        return(imp);
+        return( new ImagePlus("cropped", stack) );
     }
 
 
@@ -419,10 +250,7 @@ class OpenerExtension extends Opener {
                                           int zs, int ze, int nz, int dz,
                                           int xs, int xe, int ys, int ye)
     {
-        long startTime;
-        long readingTime = 0;
         long totalTime = 0;
-        long threadInitTime = 0;
         //FileInfoSer fi;
         File file;
 
@@ -462,7 +290,6 @@ class OpenerExtension extends Opener {
                 {
                     // read plane wise, multi-threaded
                     //
-                    ExecutorService es = Executors.newFixedThreadPool( numThreads );
                     List<Future> futures = new ArrayList<>();
 
                     for (int iz = 0, z = zs; iz < nz; iz++, z += dz)
@@ -477,7 +304,7 @@ class OpenerExtension extends Opener {
                         // Read, decompress, rearrange, crop X, and put into stack
                         //
                         futures.add(
-                                es.submit(
+                                IOScheduler.getInstance().submit( IOScheduler.Pool.READING,
                                         new readCroppedPlaneFromTiffIntoImageStack(directory, info, stack, buffer,
                                                 z, zs, ze, dz, ys, ye, ny, xs, xe, nx, imByteWidth)
                                 )
@@ -490,7 +317,6 @@ class OpenerExtension extends Opener {
                         future.get();
                     }
                     futures = null;
-                    es.shutdown();
 
 
                 }
@@ -528,10 +354,7 @@ class OpenerExtension extends Opener {
 
         if( logger.isShowDebug() )
         {
-              int usefulBytesRead = nz*nx*ny*fi.bytesPerPixel;
-              logger.info("readingTime [ms]: " + readingTime);
-              logger.info("effective reading speed [MB/s]: " + usefulBytesRead / ((readingTime + 0.001) * 1000));
-              logger.info("threadInitTime [ms]: " + threadInitTime);
+              totalTime = System.currentTimeMillis() - totalTime;
               logger.info("totalTime [ms]: " + totalTime);
             //info("Processing [ms]: " + processTime);
         }
@@ -569,9 +392,6 @@ class OpenerExtension extends Opener {
     /** Decompresses and sorts data into an ImageStack **/
     class readCroppedPlaneFromTiffIntoImageStack implements Runnable
     {
-        private Thread t;
-        private String threadName;
-
         // todo: make the compression modes part of the fi object?
 
         // Compression modes
@@ -582,8 +402,6 @@ class OpenerExtension extends Opener {
         public static final int JPEG = 4;
         public static final int PACK_BITS = 5;
         public static final int ZIP = 6;
-        private static final int CLEAR_CODE = 256;
-        private static final int EOI_CODE = 257;
 
         /** 16-bit signed integer (-32768-32767). Imported signed images
          are converted to unsigned by adding 32768. */
@@ -592,16 +410,14 @@ class OpenerExtension extends Opener {
         /** 16-bit unsigned integer (0-65535). */
         public static final int GRAY16_UNSIGNED = 2;
 
-        // uncompress
-        // byte[][] symbolTable = new byte[4096][1];
-        byte[][] symbolTable = new byte[16384][1]; // enlarged to be compatible with larger images
+        // strips of one plane may be decompressed by several threads at once
+        private static final int MIN_STRIPS_PER_TASK = 4;
 
         // input
         ImageStack stack;
         byte[][] buffer;
         FileInfoSer[] info;
         FileInfoSer fi;
-        RandomAccessFile in;
         private String directory;
         int z, zs, ze, dz, ys, ye, ny, xs, xe, nx, imByteWidth;
 
@@ -612,7 +428,6 @@ class OpenerExtension extends Opener {
                                                int xs, int xe, int nx,
                                                int imByteWidth)
         {
-            threadName = ""+z;
             this.directory = directory;
             this.info = info;
             this.stack = stack;
@@ -628,13 +443,10 @@ class OpenerExtension extends Opener {
             this.xe = xe;
             this.nx = nx;
             this.imByteWidth = imByteWidth;
-            //info("Creating readCroppedPlaneFromTiffIntoImageStack of slice: " +  threadName );
         }
 
         public void run() {
 
-            RandomAccessFile inputStream = null;
-
             this.fi = info[z];
 
             if ( fi == null )
@@ -644,23 +456,39 @@ class OpenerExtension extends Opener {
             }
 
             File file = new File(directory + fi.directory + fi.fileName);
-            try {
-                inputStream = new RandomAccessFile(file, "r");
 
-                if (inputStream == null) {
-                    logger.error("Could not open file: " + fi.directory + fi.fileName);
-                    throw new IllegalArgumentException("could not open file");
+            if ( MappedTiffPlaneReader.canRead( fi ) )
+            {
+                // uncompressed: copy directly from the mapped file into the stack
+                try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( file.getPath() ) )
+                {
+                    MappedTiffPlaneReader.readPlane( file.getPath(), fi,
+                            stack.getPixels( ( z - zs ) / dz + 1 ), xs, nx, ys, ny );
                 }
+                catch ( Exception e )
+                {
+                    logger.warning( "Could not read " + file.getPath() + ": " + e.toString() );
+                }
+                return;
+            }
 
-                if((fi.compression!=0) && (fi.compression!=1) && (fi.compression!=2) && (fi.compression!=6)) {
+            try ( FileHandleCache.Handle< FileChannel > handle = FileHandleCache.TIFF.acquire( file.getPath() );
+                  IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireDeviceAccess( file.getPath() ) )
+            {
+                if( ! TiffDecompressor.isSupported( fi.compression ) ) {
                     logger.error("Tiff compression not implemented: fi.compression = " + fi.compression);
                     return;
                 }
 
-                //startTime = System.currentTimeMillis();
-                buffer[(z-zs)/dz] = readCroppedPlaneFromTiff(fi, inputStream, ys, ye);
-                //readingTime += (System.currentTimeMillis() - startTime);
-                inputStream.close();
+                try
+                {
+                    buffer[(z-zs)/dz] = readCroppedPlaneFromTiff(fi, handle.get(), ys, ye);
+                }
+                catch ( ClosedChannelException e )
+                {
+                    handle.invalidate();
+                    throw e;
+                }
 
             } catch (Exception e) {
                 IJ.handleException(e);
@@ -686,161 +514,41 @@ class OpenerExtension extends Opener {
                 {
                     // do nothing
                 }
-                else if (fi.compression == LZW)
+                else if ( TiffDecompressor.isCompressed( fi.compression ) )
                 {
+                    buffer[ ( z - zs ) / dz ] = decompressStrips( buffer[ ( z - zs ) / dz ], ss, se, rps );
 
-                    // init to hold all data present in the uncompressed strips
-                    byte[] unCompressedBuffer = new byte[ ( se - ss + 1 ) * rps * imByteWidth ];
-
-                    int pos = 0;
-
-                    for ( int s = ss; s <= se; s++ )
-                    {
-
-                        // TODO: multithreading here?
-
-                        int stripLength = ( int ) fi.stripLengths[ s ];
-                        byte[] strip = new byte[ stripLength ];
-
-                        // get strip from read data
-                        try
-                        {
-                            System.arraycopy( buffer[ ( z - zs ) / dz ], pos, strip, 0, stripLength );
-                        } catch ( Exception e )
-                        {
-                            logger.info( "" + e.toString() );
-                            logger.info( "------- s [#] : " + s );
-                            logger.info( "stripLength [bytes] : " + strip.length );
-                            logger.info( "pos [bytes] : " + pos );
-                            logger.info( "pos + stripLength [bytes] : " + ( pos + stripLength ) );
-                            logger.info( "z-zs : " + ( z - zs ) );
-                            logger.info( "z-zs/dz : " + ( z - zs ) / dz );
-                            logger.info( "buffer[z-zs].length : " + buffer[ z - zs ].length );
-                            logger.info( "imWidth [bytes] : " + imByteWidth );
-                            logger.info( "rows per strip [#] : " + rps );
-                            logger.info( "ny [#] : " + ny );
-                            logger.info( "(s - ss) * imByteWidth * rps [bytes] : " + ( ( s - ss ) * imByteWidth *
-                                    rps ) );
-                            logger.info( "unCompressedBuffer.length [bytes] : " + unCompressedBuffer.length );
-                        }
-
-                        //info("strip.length " + strip.length);
-                        // uncompress strip
-
-                        strip = lzwUncompress( strip, imByteWidth * rps );
-
-                        // put uncompressed strip into large array
-                        System.arraycopy( strip, 0, unCompressedBuffer, ( s - ss ) * imByteWidth * rps, imByteWidth * rps );
-
-                        pos += stripLength;
-                    }
-
-                    buffer[ ( z - zs ) / dz ] = unCompressedBuffer;
-
+                    if ( buffer[ ( z - zs ) / dz ] == null ) return;
                 }
-                else if (fi.compression == ZIP)
+                else
                 {
-
-                    // init to hold all data present in the uncompressed strips
-                    byte[] unCompressedBuffer = new byte[ ( se - ss + 1 ) * rps * imByteWidth ];
-
-                    int pos = 0;
-
-                    for ( int s = ss; s <= se; s++ )
-                    {
-
-                        // TODO: multithreading here?
-                        int compressedStripLength = ( int ) fi.stripLengths[ s ];
-                        byte[] strip = new byte[ compressedStripLength ];
-
-                        // get strip from read data
-                        try
-                        {
-                            System.arraycopy( buffer[ ( z - zs ) / dz ], pos, strip, 0, compressedStripLength );
-                        }
-                        catch ( Exception e )
-                        {
-                            logger.info( "" + e.toString() );
-                            logger.info( "------- s [#] : " + s );
-                            logger.info( "stripLength [bytes] : " + strip.length );
-                            logger.info( "pos [bytes] : " + pos );
-                            logger.info( "pos + stripLength [bytes] : " + ( pos + compressedStripLength ) );
-                            logger.info( "z-zs : " + ( z - zs ) );
-                            logger.info( "z-zs/dz : " + ( z - zs ) / dz );
-                            logger.info( "buffer[z-zs].length : " + buffer[ z - zs ].length );
-                            logger.info( "imWidth [bytes] : " + imByteWidth );
-                            logger.info( "rows per strip [#] : " + rps );
-                            logger.info( "ny [#] : " + ny );
-                            logger.info( "(s - ss) * imByteWidth * rps [bytes] : " + ( ( s - ss ) * imByteWidth *
-                                    rps ) );
-                            logger.info( "unCompressedBuffer.length [bytes] : " + unCompressedBuffer.length );
-                        }
-
-
-                        /** TIFF Adobe ZIP support contributed by Jason Newton. */
-                        ByteArrayOutputStream imageBuffer = new ByteArrayOutputStream();
-                        byte[] tmpBuffer = new byte[1024];
-
-                        Inflater decompressor = new Inflater();
-
-                        decompressor.setInput( strip );
-                        try {
-                            while(!decompressor.finished()) {
-                                int rlen = decompressor.inflate(tmpBuffer);
-                                imageBuffer.write(tmpBuffer, 0, rlen);
-                            }
-                        } catch(DataFormatException e){
-                            IJ.log(e.toString());
-                        }
-                        decompressor.end();
-
-                        strip = imageBuffer.toByteArray();
-
-                        // put uncompressed strip into large array
-                        System.arraycopy(
-                                strip,
-                                0,
-                                unCompressedBuffer,
-                                ( s - ss ) * imByteWidth * rps,
-                                imByteWidth * rps );
-
-                        pos += compressedStripLength;
-                    }
-
-                    buffer[ ( z - zs ) / dz ] = unCompressedBuffer;
-
-                } else {
-
                     logger.error("Tiff compression not implemented: fi.compression = " + fi.compression);
                     return;
-
                 }
 
                 ys = ys % rps; // we might have to skip a few rows in the beginning because the strips can hold several rows
 
             } else { // no strips
 
-                if (fi.compression == ZIP) {
+                if ( TiffDecompressor.isCompressed( fi.compression ) && buffer[(z - zs)/dz] != null ) {
 
-                    /** TIFF Adobe ZIP support contributed by Jason Newton. */
-                    ByteArrayOutputStream imageBuffer = new ByteArrayOutputStream();
-                    byte[] tmpBuffer = new byte[1024];
-                    Inflater decompressor = new Inflater();
+                    // one strip holding the whole plane
+                    byte[] compressed = buffer[(z - zs)/dz];
+                    byte[] unCompressedBuffer = new byte[ fi.height * imByteWidth ];
 
-                    decompressor.setInput(buffer[(z - zs)/dz]);
-                    try {
-                        while(!decompressor.finished()) {
-                            int rlen = decompressor.inflate(tmpBuffer);
-                            imageBuffer.write(tmpBuffer, 0, rlen);
-                        }
-                    } catch(DataFormatException e){
-                        IJ.log(e.toString());
+                    if ( ! TiffDecompressor.decompress( fi.compression, compressed, 0, compressed.length,
+                            unCompressedBuffer, 0, unCompressedBuffer.length ) )
+                    {
+                        logger.warning( "Corrupt compressed data in " + fi.directory + fi.fileName );
                     }
-                    decompressor.end();
 
-                    buffer[(z - zs)/dz] = imageBuffer.toByteArray();
+                    if ( TiffDecompressor.usesDifferencing( fi.compression ) )
+                    {
+                        TiffDecompressor.undoDifferencing( unCompressedBuffer, 0, fi.height, imByteWidth,
+                                fi.bytesPerPixel, fi.intelByteOrder );
+                    }
 
-                    //setShortPixelsCropXY((short[]) stack.getPixels((z - zs)/dz + 1), ys, ny, xs, nx, imByteWidth, buffer[(z - zs)/dz]);
+                    buffer[(z - zs)/dz] = unCompressedBuffer;
 
                 } else {
 
@@ -884,145 +592,99 @@ class OpenerExtension extends Opener {
 
         }
 
-        public byte[] lzwUncompress(byte[] input, int byteCount) {
-            long startTimeGlob = System.nanoTime();
-            long totalTimeGlob = 0;
-            long startTime0, totalTime0 = 0;
-            long startTime1, totalTime1 = 0;
-            long startTime2, totalTime2 = 0;
-            long startTime3, totalTime3 = 0;
-            long startTime4, totalTime4 = 0;
-            long startTime5, totalTime5 = 0;
-            long startTime6, totalTime6 = 0;
-            long startTime7, totalTime7 = 0;
-            long startTime8, totalTime8 = 0;
-            long startTime9, totalTime9 = 0;
-
-            //startTime1 = System.nanoTime();
-
-            if (input==null || input.length==0)
-                return input;
-
-            int bitsToRead = 9;
-            int nextSymbol = 258;
-            int code;
-            int symbolLength, symbolLengthMax=0;
-            int oldCode = -1;
-            //ByteVector out = new ByteVector(8192);
-            byte[] out = new byte[byteCount];
-            int iOut = 0, i;
-            int k=0;
-            BitBuffer bb = new BitBuffer(input);
-
-            byte[] byteBuffer1 = new byte[16];
-            byte[] byteBuffer2 = new byte[16];
-
-            // todo: can this be larger?
-            //byte[] symbol = new byte[100];
-
-            //totalTime1 = (System.nanoTime() - startTime1);
-
-            //while (out.size()<byteCount) {
-            while (iOut<byteCount) {
-
-                //startTime2 = System.nanoTime();
-
-                code = bb.getBits(bitsToRead);
-
-                //totalTime2 += (System.nanoTime() - startTime2);
-
-
-                if (code==EOI_CODE || code==-1)
-                    break;
-                if (code==CLEAR_CODE) {
-                    //startTime4 = System.nanoTime();
-                    // initialize symbol jTableSpots
-                    for (i = 0; i < 256; i++)
-                        symbolTable[i][0] = (byte)i;
-                    nextSymbol = 258;
-                    bitsToRead = 9;
-                    code = bb.getBits(bitsToRead);
-                    if (code==EOI_CODE || code==-1)
-                        break;
-                    //out.add(symbolTable[code]);
-                    System.arraycopy(symbolTable[code], 0, out, iOut, symbolTable[code].length);
-                    iOut += symbolTable[code].length;
-                    oldCode = code;
-                    //totalTime4 += (System.nanoTime() - startTime4);
+        /**
+         * Decompresses the strips ss to se, which are stored one after the other in the compressed buffer.
+         * Each strip is decompressed into its own region of the returned buffer, such that the strips of
+         * large planes can be decompressed in parallel. This is only done if only few planes are read,
+         * because otherwise the planes themselves are already read in parallel.
+         */
+        private byte[] decompressStrips( byte[] compressed, int ss, int se, int rps )
+        {
+            if ( compressed == null ) return null;
 
-                } else {
-                    if (code<nextSymbol) {
-                        //startTime6 = System.nanoTime();
-                        // code is in jTableSpots
-                        //startTime5 = System.nanoTime();
-                        //out.add(symbolTable[code]);
-                        symbolLength = symbolTable[code].length;
-                        System.arraycopy(symbolTable[code], 0, out, iOut, symbolLength);
-                        iOut += symbolLength;
-                        //totalTime5 += (System.nanoTime() - startTime5);
-                        // add string to jTableSpots
-
-                        //ByteVector symbol = new ByteVector(byteBuffer1);
-                        //symbol.add(symbolTable[oldCode]);
-                        //symbol.add(symbolTable[code][0]);
-                        int lengthOld = symbolTable[oldCode].length;
-
-                        //byte[] newSymbol = new byte[lengthOld+1];
-                        symbolTable[nextSymbol] = new byte[lengthOld+1];
-                        System.arraycopy(symbolTable[oldCode], 0, symbolTable[nextSymbol], 0, lengthOld);
-                        symbolTable[nextSymbol][lengthOld] = symbolTable[code][0];
-                        //symbolTable[nextSymbol] = newSymbol;
-
-                        oldCode = code;
-                        nextSymbol++;
-                        //totalTime6 += (System.nanoTime() - startTime6);
-
-                    } else {
-
-                        //startTime3 = System.nanoTime();
-                        // out of jTableSpots
-                        ByteVector symbol = new ByteVector(byteBuffer2);
-                        symbol.add(symbolTable[oldCode]);
-                        symbol.add(symbolTable[oldCode][0]);
-                        byte[] outString = symbol.toByteArray();
-                        //out.add(outString);
-                        System.arraycopy(outString, 0, out, iOut, outString.length);
-                        iOut += outString.length;
-                        symbolTable[nextSymbol] = outString; //**
-                        oldCode = code;
-                        nextSymbol++;
-                        //totalTime3 += (System.nanoTime() - startTime3);
+            final int numStrips = se - ss + 1;
+            final int stripByteLength = imByteWidth * rps;
+            final byte[] unCompressedBuffer = new byte[ numStrips * stripByteLength ];
 
-                    }
-                    if (nextSymbol == 511) { bitsToRead = 10; }
-                    if (nextSymbol == 1023) { bitsToRead = 11; }
-                    if (nextSymbol == 2047) { bitsToRead = 12; }
-                    if (nextSymbol == 4095) { bitsToRead = 13; }
-                    if (nextSymbol == 8191) { bitsToRead = 14; }
-                    if (nextSymbol == 16383) { logger.error("Symbol table of LZW uncompression became too large." +
-                            "\nThe next symbol would have been: " + nextSymbol +
-                            "\nPlease contact tischitischer@gmail.com"); return null; };
+            // start of each strip within the compressed buffer
+            final int[] positions = new int[ numStrips + 1 ];
+            for ( int i = 0; i < numStrips; i++ )
+            {
+                positions[ i + 1 ] = positions[ i ] + ( int ) fi.stripLengths[ ss + i ];
+            }
+
+            final int numPlanes = ( ze - zs ) / dz + 1;
+            final int numCompressionThreads = IOScheduler.getInstance().getNumThreads( IOScheduler.Pool.COMPRESSION );
+
+            int numTasks = 1;
+            if ( numPlanes < numCompressionThreads )
+            {
+                numTasks = Math.min( numStrips / MIN_STRIPS_PER_TASK, numCompressionThreads );
+            }
+
+            if ( numTasks <= 1 )
+            {
+                return decompressStrips( compressed, positions, 0, numStrips, unCompressedBuffer, stripByteLength )
+                        ? unCompressedBuffer : null;
+            }
+
+            List< Future< Boolean > > futures = new ArrayList<>();
+            for ( int task = 0; task < numTasks; task++ )
+            {
+                final int first = ( int ) ( ( long ) numStrips * task / numTasks );
+                final int last = ( int ) ( ( long ) numStrips * ( task + 1 ) / numTasks );
+                futures.add( IOScheduler.getInstance().submit( IOScheduler.Pool.COMPRESSION,
+                        () -> decompressStrips( compressed, positions, first, last, unCompressedBuffer, stripByteLength ) ) );
+            }
+
+            boolean success = true;
+            for ( Future< Boolean > future : futures )
+            {
+                try
+                {
+                    success &= future.get();
                 }
+                catch ( InterruptedException | ExecutionException e )
+                {
+                    logger.warning( "Strip decompression failed: " + e.toString() );
+                    success = false;
+                }
+            }
 
+            return success ? unCompressedBuffer : null;
+        }
+
+        /**
+         * Decompresses the strips with the indices first (inclusive) to last (exclusive), relative to ss.
+         */
+        private boolean decompressStrips( byte[] compressed, int[] positions, int first, int last,
+                                          byte[] unCompressedBuffer, int stripByteLength )
+        {
+            for ( int i = first; i < last; i++ )
+            {
+                if ( positions[ i + 1 ] > compressed.length )
+                {
+                    logger.warning( "Strip " + i + " exceeds the read data: " + positions[ i + 1 ]
+                            + " > " + compressed.length + " bytes; file: " + fi.directory + fi.fileName );
+                    return false;
+                }
+
+                if ( ! TiffDecompressor.decompress( fi.compression,
+                        compressed, positions[ i ], positions[ i + 1 ] - positions[ i ],
+                        unCompressedBuffer, i * stripByteLength, stripByteLength ) )
+                {
+                    logger.warning( "Corrupt compressed data in strip " + i + " of " + fi.directory + fi.fileName );
+                    return false;
+                }
+
+                if ( TiffDecompressor.usesDifferencing( fi.compression ) )
+                {
+                    TiffDecompressor.undoDifferencing( unCompressedBuffer, i * stripByteLength,
+                            fi.rowsPerStrip, imByteWidth, fi.bytesPerPixel, fi.intelByteOrder );
+                }
             }
 
-            totalTimeGlob = (System.nanoTime() - startTimeGlob);
-        /*
-        logger.info("total : "+totalTimeGlob/1000);
-        totalTimeGlob = 1000;
-        logger.info("fraction1 : "+(double)totalTime1/totalTimeGlob);
-        logger.info("fraction2 : "+(double)totalTime2/totalTimeGlob);
-        logger.info("fraction3 : "+(double)totalTime3/totalTimeGlob);
-        logger.info("fraction4 : "+(double)totalTime4/totalTimeGlob);
-        logger.info("fraction5 : "+(double)totalTime5/totalTimeGlob);
-        logger.info("fraction6 : "+(double)totalTime6/totalTimeGlob);
-        logger.info("fraction7 : "+(double)totalTime7/totalTimeGlob);
-        logger.info("fraction8 : "+(double)totalTime8/totalTimeGlob);
-        logger.info("fraction9 : "+(double)totalTime9/totalTimeGlob);
-        logger.info("symbolLengthMax "+symbolLengthMax);
-        */
-
-            return out;
+            return true;
         }
 
         public void setShortPixelsCropXY(short[] pixels, int ys, int ny, int xs, int nx, int imByteWidth, byte[] buffer) {
@@ -1070,15 +732,7 @@ class OpenerExtension extends Opener {
         }
 
 
-        public void start () {
-            //info("Starting " +  threadName );
-            if (t == null) {
-                t = new Thread (this, threadName);
-                t.start();
-            }
-        }
-
-        private byte[] readCroppedPlaneFromTiff(FileInfoSer fi, RandomAccessFile in, int ys, int ye)
+        private byte[] readCroppedPlaneFromTiff(FileInfoSer fi, FileChannel in, int ys, int ye)
         {
             boolean hasStrips = false;
             int readLength;
@@ -1108,7 +762,7 @@ class OpenerExtension extends Opener {
             }
             else
             {  // none or one strip
-                if(fi.compression == ZIP) {
+                if ( TiffDecompressor.isCompressed( fi.compression ) ) {
                     // read all data
                     readStart = fi.offset;
                     readLength = (int)fi.stripLengths[0];
@@ -1138,17 +792,24 @@ class OpenerExtension extends Opener {
 
             try
             {
-                if ( readStart + readLength - 1 <= in.length() )
+                if ( readStart + readLength - 1 <= in.size() )
                 {
-                    in.seek(readStart); // TODO: is this really slow??
-                    in.readFully(buffer);
+                    // positional reads, such that threads can share the channel
+                    ByteBuffer byteBuffer = ByteBuffer.wrap( buffer );
+                    while ( byteBuffer.hasRemaining() )
+                    {
+                        if ( in.read( byteBuffer, readStart + byteBuffer.position() ) < 0 )
+                        {
+                            throw new EOFException( "Unexpected end of file" );
+                        }
+                    }
                 }
                 else
                 {
                     logger.warning("The requested data exceeds the file length; no data was read.");
                     logger.warning("file type: Tiff");
                     logger.warning("hasStrips: " + hasStrips);
-                    logger.warning("file length [bytes]: " + in.length());
+                    logger.warning("file length [bytes]: " + in.size());
                     logger.warning("attempt to read until [bytes]: "+ (readStart + readLength - 1) );
                     logger.warning("ys: " + ys);
                     logger.warning("ye: " + ye);
@@ -1165,67 +826,6 @@ class OpenerExtension extends Opener {
 
         }
 
-
-
-        /** A growable array of bytes. */
-        class ByteVector {
-            private byte[] data;
-            private int size;
-
-            public ByteVector() {
-                data = new byte[10];
-                size = 0;
-            }
-
-            public ByteVector(int initialSize) {
-                data = new byte[initialSize];
-                size = 0;
-            }
-
-            public ByteVector(byte[] byteBuffer) {
-                data = byteBuffer;
-                size = 0;
-            }
-
-            public void add(byte x) {
-                if (size>=data.length) {
-                    doubleCapacity();
-                    add(x);
-                } else
-                    data[size++] = x;
-            }
-
-            public int size() {
-                return size;
-            }
-
-            public void add(byte[] array) {
-                int length = array.length;
-                while (data.length-size<length)
-                    doubleCapacity();
-                System.arraycopy(array, 0, data, size, length);
-                size += length;
-            }
-
-            void doubleCapacity() {
-                //IJ.info("double: "+data.length*2);
-                byte[] tmp = new byte[data.length*2 + 1];
-                System.arraycopy(data, 0, tmp, 0, data.length);
-                data = tmp;
-            }
-
-            public void clear() {
-                size = 0;
-            }
-
-            public byte[] toByteArray() {
-                byte[] bytes = new byte[size];
-                System.arraycopy(data, 0, bytes, 0, size);
-                return bytes;
-            }
-
-        }
-
     }
 
 
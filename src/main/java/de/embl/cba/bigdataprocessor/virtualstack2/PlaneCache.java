@@ -0,0 +1,208 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of decoded image planes, shared by all VirtualStack2 instances.
+ *
+ * The size of the cache is limited by a byte budget rather than by a number of planes,
+ * such that the memory footprint does not depend on the bit-depth and size of the images.
+ * Cached planes are copied when they are handed out, such that modifications of the
+ * returned processors (e.g. drawing into them) do not end up in the cache.
+ */
+public class PlaneCache
+{
+    public static final long DEFAULT_MAX_SIZE_MB = 256;
+
+    private static final long BYTES_PER_MB = 1024L * 1024L;
+
+    private static final PlaneCache instance = new PlaneCache();
+
+    private final LinkedHashMap< Key, ImageProcessor > planes = new LinkedHashMap<>( 256, 0.75F, true );
+
+    private long maxBytes = DEFAULT_MAX_SIZE_MB * BYTES_PER_MB;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private PlaneCache()
+    {
+    }
+
+    public static PlaneCache getInstance()
+    {
+        return instance;
+    }
+
+    /** Sets the maximal memory used by the cache; zero disables caching. */
+    public synchronized void setMaxSizeMB( long maxSizeMB )
+    {
+        maxBytes = Math.max( 0, maxSizeMB ) * BYTES_PER_MB;
+        evictUntilWithinBudget();
+    }
+
+    public synchronized long getMaxSizeMB()
+    {
+        return maxBytes / BYTES_PER_MB;
+    }
+
+    /**
+     * Returns a copy of the cached plane or null if the plane is not cached.
+     */
+    public ImageProcessor get( Key key )
+    {
+        ImageProcessor ip;
+
+        synchronized ( this )
+        {
+            ip = planes.get( key );
+            if ( ip == null )
+            {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+
+        // copy outside the lock, cached processors are never modified
+        return ip.duplicate();
+    }
+
+    /**
+     * Adds a copy of the plane to the cache, evicting the least recently used planes if needed.
+     */
+    public void put( Key key, ImageProcessor ip )
+    {
+        if ( ip == null ) return;
+
+        final long size = sizeInBytes( ip );
+
+        synchronized ( this )
+        {
+            if ( size > maxBytes || planes.containsKey( key ) ) return;
+        }
+
+        final ImageProcessor copy = ip.duplicate();
+
+        synchronized ( this )
+        {
+            if ( planes.put( key, copy ) == null )
+            {
+                bytes += size;
+            }
+            evictUntilWithinBudget();
+        }
+    }
+
+    /**
+     * Removes all planes of one file, e.g. because its content has been changed.
+     */
+    public synchronized void invalidate( String filePath )
+    {
+        Iterator< Map.Entry< Key, ImageProcessor > > iterator = planes.entrySet().iterator();
+        while ( iterator.hasNext() )
+        {
+            Map.Entry< Key, ImageProcessor > entry = iterator.next();
+            if ( entry.getKey().filePath.equals( filePath ) )
+            {
+                bytes -= sizeInBytes( entry.getValue() );
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear()
+    {
+        planes.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    public synchronized long getSizeInBytes()
+    {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "Plane cache: " + planes.size() + " planes, "
+                + ( bytes / BYTES_PER_MB ) + " of " + ( maxBytes / BYTES_PER_MB ) + " MB; "
+                + "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions;
+    }
+
+    private void evictUntilWithinBudget()
+    {
+        Iterator< ImageProcessor > iterator = planes.values().iterator();
+        while ( bytes > maxBytes && iterator.hasNext() )
+        {
+            bytes -= sizeInBytes( iterator.next() );
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private static long sizeInBytes( ImageProcessor ip )
+    {
+        return (long) ip.getWidth() * ip.getHeight() * ( ip.getBitDepth() / 8 );
+    }
+
+    /**
+     * Identifies one plane by the file it is stored in, its position in the data set
+     * and the region that is read from it, which includes cropping and chromatic shifts.
+     */
+    public static class Key
+    {
+        final String filePath;
+        final String h5DataSet;
+        private final int[] position;
+
+        public Key( String filePath, String h5DataSet, int c, int t, int z,
+                    int offsetX, int offsetY, int sizeX, int sizeY, int subSamplingX, int subSamplingY )
+        {
+            this.filePath = filePath;
+            this.h5DataSet = h5DataSet;
+            this.position = new int[]{ c, t, z, offsetX, offsetY, sizeX, sizeY, subSamplingX, subSamplingY };
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if ( this == o ) return true;
+            if ( ! ( o instanceof Key ) ) return false;
+            Key key = ( Key ) o;
+            return filePath.equals( key.filePath )
+                    && ( h5DataSet == null ? key.h5DataSet == null : h5DataSet.equals( key.h5DataSet ) )
+                    && Arrays.equals( position, key.position );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = filePath.hashCode();
+            result = 31 * result + ( h5DataSet == null ? 0 : h5DataSet.hashCode() );
+            result = 31 * result + Arrays.hashCode( position );
+            return result;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import de.embl.cba.bigdataprocessor.utils.IOScheduler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Speculatively loads the planes following the currently viewed plane into the {@link PlaneCache}.
+ *
+ * The access pattern is tracked per channel: if the user moves along z the next planes in z are loaded,
+ * if the user moves along t (e.g. during playback) the same plane of the next time points is loaded.
+ * Prefetches that do not match the current direction anymore are cancelled.
+ * The planes are read by the low priority prefetch pool of the {@link IOScheduler},
+ * such that prefetching does not compete with the reads of the viewer.
+ */
+class PlanePrefetcher
+{
+    public static final int DEFAULT_DEPTH = 4;
+
+    private final VirtualStack2 vs2;
+    private final Map< Long, PrefetchTask > pending = new ConcurrentHashMap<>(); // key: c, t, z
+    private final int[][] lastPositions; // c, (z, t, dz, dt)
+    private int depth = DEFAULT_DEPTH;
+
+    PlanePrefetcher( VirtualStack2 vs2 )
+    {
+        this.vs2 = vs2;
+        this.lastPositions = new int[ vs2.getChannels() ][];
+    }
+
+    void setDepth( int depth )
+    {
+        this.depth = depth;
+    }
+
+    /**
+     * Called whenever a plane is requested by the viewer.
+     */
+    synchronized void positionChanged( int c, int t, int z )
+    {
+        if ( depth < 1 || PlaneCache.getInstance().getMaxSizeMB() == 0 ) return;
+
+        final int[] last = lastPositions[ c ];
+        lastPositions[ c ] = new int[]{ z, t, 0, 0 };
+
+        if ( last == null ) return;
+
+        int dz = Integer.signum( z - last[ 0 ] );
+        int dt = Integer.signum( t - last[ 1 ] );
+
+        if ( dz != 0 && dt != 0 )
+        {
+            // jumped, no clear direction
+            cancelStalePrefetches( c, new ArrayList<>() );
+            return;
+        }
+
+        if ( dz == 0 && dt == 0 )
+        {
+            // same plane again, e.g. because of a display update
+            dz = last[ 2 ];
+            dt = last[ 3 ];
+        }
+
+        lastPositions[ c ][ 2 ] = dz;
+        lastPositions[ c ][ 3 ] = dt;
+
+        if ( dz == 0 && dt == 0 ) return;
+
+        final List< int[] > upcoming = new ArrayList<>();
+        for ( int i = 1; i <= depth; ++i )
+        {
+            final int zNext = z + i * dz;
+            final int tNext = t + i * dt;
+            if ( zNext < 0 || zNext >= vs2.getDepth() || tNext < 0 || tNext >= vs2.getFrames() ) break;
+            upcoming.add( new int[]{ zNext, tNext } );
+        }
+
+        cancelStalePrefetches( c, upcoming );
+
+        for ( int[] position : upcoming )
+        {
+            submit( c, position[ 1 ], position[ 0 ] );
+        }
+    }
+
+    /**
+     * Waits for a running prefetch of the given plane, such that it is not read twice.
+     * A prefetch that is still queued is taken over by the caller, which reads the plane itself,
+     * rather than waiting for it behind the other prefetches.
+     */
+    void awaitPrefetch( int c, int t, int z )
+    {
+        final PrefetchTask task = pending.get( toKey( c, t, z ) );
+
+        if ( task == null || task.isCancelled() ) return;
+
+        if ( task.claim() )
+        {
+            task.cancel( false );
+            return;
+        }
+
+        try
+        {
+            task.get();
+        }
+        catch ( InterruptedException | ExecutionException | CancellationException e )
+        {
+            // the plane will simply be read again by the caller
+        }
+    }
+
+    private void submit( int c, int t, int z )
+    {
+        final Long key = toKey( c, t, z );
+
+        if ( pending.containsKey( key ) ) return;
+
+        final PrefetchTask task = new PrefetchTask( key, () ->
+        {
+            vs2.loadPlaneIntoCache( c, t, z );
+            return null;
+        } );
+
+        pending.put( key, task );
+        IOScheduler.getInstance().submit( IOScheduler.Pool.PREFETCH, task );
+    }
+
+    private void cancelStalePrefetches( int c, List< int[] > upcoming )
+    {
+        final List< Long > wanted = new ArrayList<>();
+        for ( int[] position : upcoming )
+        {
+            wanted.add( toKey( c, position[ 1 ], position[ 0 ] ) );
+        }
+
+        final Iterator< Map.Entry< Long, PrefetchTask > > iterator = pending.entrySet().iterator();
+        while ( iterator.hasNext() )
+        {
+            final Map.Entry< Long, PrefetchTask > entry = iterator.next();
+            if ( ( entry.getKey() >>> 48 ) == c && ! wanted.contains( entry.getKey() ) )
+            {
+                // running reads are finished, such that no partial data ends up in the cache
+                entry.getValue().cancel( false );
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * A prefetch that is either run by the prefetch pool or claimed by a reader of the same plane, but not both.
+     */
+    private class PrefetchTask extends FutureTask< Void >
+    {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int CLAIMED = 2;
+
+        private final Long key;
+        private final AtomicInteger state = new AtomicInteger( QUEUED );
+
+        PrefetchTask( Long key, Callable< Void > callable )
+        {
+            super( callable );
+            this.key = key;
+        }
+
+        /**
+         * @return true if the task has not been started and will not be run anymore
+         */
+        boolean claim()
+        {
+            return state.compareAndSet( QUEUED, CLAIMED );
+        }
+
+        @Override
+        public void run()
+        {
+            if ( state.compareAndSet( QUEUED, RUNNING ) ) super.run();
+        }
+
+        @Override
+        protected void done()
+        {
+            // a newer prefetch of the same plane may have been submitted after this one was cancelled
+            pending.remove( key, this );
+        }
+    }
+
+    private static Long toKey( int c, int t, int z )
+    {
+        return ( (long) c << 48 ) | ( (long) t << 24 ) | z;
+    }
+}
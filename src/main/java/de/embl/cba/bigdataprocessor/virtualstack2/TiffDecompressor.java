@@ -0,0 +1,266 @@
+package de.embl.cba.bigdataprocessor.virtualstack2;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses LZW and ZIP (Deflate) compressed Tiff strips directly into a region of a destination array.
+ *
+ * The LZW dictionary and the Inflater are kept per thread and reused for all strips,
+ * such that decompressing a strip does not allocate any memory.
+ */
+class TiffDecompressor
+{
+    // Compression modes; as in ij.io.FileInfo
+    static final int COMPRESSION_UNKNOWN = 0;
+    static final int COMPRESSION_NONE = 1;
+    static final int LZW = 2;
+    static final int LZW_WITH_DIFFERENCING = 3;
+    static final int ZIP = 6;
+
+    /** ZIP with horizontal predictor; not distinguished by ij.io.FileInfo */
+    static final int ZIP_WITH_DIFFERENCING = 7;
+
+    private static final int CLEAR_CODE = 256;
+    private static final int EOI_CODE = 257;
+
+    // larger than the 4096 entries of the specification, to be compatible with files of some writers
+    private static final int MAX_CODE_LENGTH = 14;
+    private static final int TABLE_SIZE = 1 << MAX_CODE_LENGTH;
+
+    private static final ThreadLocal< LzwTable > lzwTables = ThreadLocal.withInitial( LzwTable::new );
+
+    private static final ThreadLocal< Inflater > inflaters = ThreadLocal.withInitial( Inflater::new );
+
+    static boolean isSupported( int compression )
+    {
+        return compression == COMPRESSION_UNKNOWN
+                || compression == COMPRESSION_NONE
+                || compression == LZW
+                || compression == LZW_WITH_DIFFERENCING
+                || compression == ZIP
+                || compression == ZIP_WITH_DIFFERENCING;
+    }
+
+    static boolean isCompressed( int compression )
+    {
+        return compression != COMPRESSION_UNKNOWN && compression != COMPRESSION_NONE;
+    }
+
+    static boolean usesDifferencing( int compression )
+    {
+        return compression == LZW_WITH_DIFFERENCING || compression == ZIP_WITH_DIFFERENCING;
+    }
+
+    /**
+     * Decompresses src[ srcOffset, srcOffset + srcLength ) into dst[ dstOffset, dstOffset + dstLength ).
+     * Destination bytes for which the compressed data is too short are left unchanged.
+     * The horizontal predictor is not undone, see {@link #undoDifferencing}.
+     *
+     * @return false if the compressed data is corrupt
+     */
+    static boolean decompress( int compression,
+                               byte[] src, int srcOffset, int srcLength,
+                               byte[] dst, int dstOffset, int dstLength )
+    {
+        if ( compression == LZW || compression == LZW_WITH_DIFFERENCING )
+        {
+            return lzwUncompress( src, srcOffset, srcLength, dst, dstOffset, dstLength );
+        }
+        else if ( compression == ZIP || compression == ZIP_WITH_DIFFERENCING )
+        {
+            return inflate( src, srcOffset, srcLength, dst, dstOffset, dstLength );
+        }
+        else
+        {
+            return false;
+        }
+    }
+
+    static boolean lzwUncompress( byte[] src, int srcOffset, int srcLength,
+                                  byte[] dst, int dstOffset, int dstLength )
+    {
+        final LzwTable table = lzwTables.get();
+        final short[] prefix = table.prefix;
+        final byte[] suffix = table.suffix;
+        final byte[] firstByte = table.firstByte;
+        final int[] length = table.length;
+
+        final int srcEnd = srcOffset + srcLength;
+        final int dstEnd = dstOffset + dstLength;
+
+        int in = srcOffset;
+        int out = dstOffset;
+
+        int bitBuffer = 0;
+        int numBits = 0;
+        int codeLength = 9;
+        int nextCode = 258;
+        int oldCode = -1;
+
+        while ( out < dstEnd )
+        {
+            while ( numBits < codeLength )
+            {
+                if ( in >= srcEnd ) return true; // no explicit end of information code
+                bitBuffer = ( bitBuffer << 8 ) | ( src[ in++ ] & 0xff );
+                numBits += 8;
+            }
+
+            numBits -= codeLength;
+            final int code = ( bitBuffer >>> numBits ) & ( ( 1 << codeLength ) - 1 );
+
+            if ( code == EOI_CODE ) break;
+
+            if ( code == CLEAR_CODE )
+            {
+                codeLength = 9;
+                nextCode = 258;
+                oldCode = -1;
+                continue;
+            }
+
+            if ( oldCode == -1 )
+            {
+                // first code after a clear code
+                if ( code > 255 ) return false;
+                dst[ out++ ] = ( byte ) code;
+                oldCode = code;
+                continue;
+            }
+
+            final byte first;
+            if ( code < nextCode )
+            {
+                first = firstByte[ code ];
+                out = writeString( table, code, dst, out, dstEnd );
+            }
+            else if ( code == nextCode )
+            {
+                // the string of the old code followed by its own first byte
+                first = firstByte[ oldCode ];
+                out = writeString( table, oldCode, dst, out, dstEnd );
+                if ( out < dstEnd ) dst[ out++ ] = first;
+            }
+            else
+            {
+                return false;
+            }
+
+            if ( nextCode < TABLE_SIZE )
+            {
+                prefix[ nextCode ] = ( short ) oldCode;
+                suffix[ nextCode ] = first;
+                firstByte[ nextCode ] = firstByte[ oldCode ];
+                length[ nextCode ] = length[ oldCode ] + 1;
+                nextCode++;
+            }
+
+            // "early change": the code length increases one code before the table is full
+            if ( nextCode + 1 >= ( 1 << codeLength ) && codeLength < MAX_CODE_LENGTH )
+            {
+                codeLength++;
+            }
+
+            oldCode = code;
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes the string of the code, starting from its last byte, and returns the new output position.
+     */
+    private static int writeString( LzwTable table, int code, byte[] dst, int out, int dstEnd )
+    {
+        final int end = out + table.length[ code ];
+
+        for ( int i = end - 1; i >= out; i-- )
+        {
+            if ( i < dstEnd ) dst[ i ] = table.suffix[ code ];
+            code = table.prefix[ code ];
+        }
+
+        return Math.min( end, dstEnd );
+    }
+
+    static boolean inflate( byte[] src, int srcOffset, int srcLength,
+                            byte[] dst, int dstOffset, int dstLength )
+    {
+        final Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput( src, srcOffset, srcLength );
+
+        int out = dstOffset;
+        final int dstEnd = dstOffset + dstLength;
+
+        try
+        {
+            while ( out < dstEnd && ! inflater.finished() )
+            {
+                final int n = inflater.inflate( dst, out, dstEnd - out );
+                if ( n == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) ) break;
+                out += n;
+            }
+        }
+        catch ( DataFormatException e )
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Undoes the horizontal predictor (Tiff tag 317, value 2) of the rows in data[ offset, offset + numRows * rowByteLength ).
+     */
+    static void undoDifferencing( byte[] data, int offset, int numRows, int rowByteLength,
+                                  int bytesPerPixel, boolean intelByteOrder )
+    {
+        numRows = Math.min( numRows, ( data.length - offset ) / rowByteLength );
+
+        for ( int row = 0; row < numRows; row++ )
+        {
+            final int start = offset + row * rowByteLength;
+            final int end = start + rowByteLength;
+
+            if ( bytesPerPixel == 1 )
+            {
+                for ( int i = start + 1; i < end; i++ )
+                {
+                    data[ i ] += data[ i - 1 ];
+                }
+            }
+            else if ( bytesPerPixel == 2 )
+            {
+                final int lo = intelByteOrder ? 0 : 1;
+                final int hi = 1 - lo;
+                int previous = ( data[ start + lo ] & 0xff ) | ( ( data[ start + hi ] & 0xff ) << 8 );
+                for ( int i = start + 2; i < end - 1; i += 2 )
+                {
+                    previous += ( data[ i + lo ] & 0xff ) | ( ( data[ i + hi ] & 0xff ) << 8 );
+                    data[ i + lo ] = ( byte ) previous;
+                    data[ i + hi ] = ( byte ) ( previous >> 8 );
+                }
+            }
+        }
+    }
+
+    private static class LzwTable
+    {
+        final short[] prefix = new short[ TABLE_SIZE ];
+        final byte[] suffix = new byte[ TABLE_SIZE ];
+        final byte[] firstByte = new byte[ TABLE_SIZE ];
+        final int[] length = new int[ TABLE_SIZE ];
+
+        LzwTable()
+        {
+            for ( int i = 0; i < 256; i++ )
+            {
+                suffix[ i ] = ( byte ) i;
+                firstByte[ i ] = ( byte ) i;
+                length[ i ] = 1;
+            }
+        }
+    }
+}
@@ -3,9 +3,9 @@ package de.embl.cba.bigdataprocessor.virtualstack2;
 import de.embl.cba.util.Region5D;
 import de.embl.cba.bigdataprocessor.log.IJLazySwingLogger;
 import de.embl.cba.bigdataprocessor.log.Logger;
+import de.embl.cba.bigdataprocessor.utils.IOScheduler;
 import de.embl.cba.bigdataprocessor.utils.Utils;
 import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
-import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -21,12 +21,13 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileLock;
 import java.util.ArrayList;
+import java.util.List;
 
 public class VirtualStack2 extends VirtualStack {
     int nSlices;
     private int nX, nY, nZ, nC, nT;
     int bitDepth = 0;
-    FileInfoSer[][][] infos;  // c, t, z
+    FileInfoStore infos;  // c, t, z
 
     public String getFileType()
     {
@@ -42,6 +43,17 @@ public class VirtualStack2 extends VirtualStack {
     String filterPattern;
     ArrayList< Point3D > chromaticShifts;
     int currentStackPosition = 0;
+    private PlanePrefetcher prefetcher;
+    private HeaderIndex headerIndex;
+
+    // sub-sampling in x and y with which the planes are read by getDisplayProcessor
+    private volatile int displaySubSampling = 1;
+    private volatile boolean isHeaderSweepStopped = false;
+    private List< Integer > displaySubSamplings;
+
+    // guard parsing and publication of infos; stack files are locked per c, t, plane files per c, t, z
+    private static final int NUM_PARSE_LOCKS = 64;
+    private final Object[] parseLocks = createParseLocks();
 
     private ArrayList < String > lockedFiles = new  ArrayList<>();
 
@@ -62,7 +74,7 @@ public class VirtualStack2 extends VirtualStack {
         this.fileType = fileType;
         this.channelFolders = channelFolders;
         this.ctzFileList = fileList;
-        this.infos = new FileInfoSer[nC][nT][nZ];
+        this.infos = new FileInfoStore(nC, nT, nZ);
         this.h5DataSet = h5DataSet;
 
         initialiseChromaticShifts( nC );
@@ -78,7 +90,7 @@ public class VirtualStack2 extends VirtualStack {
     {
         super();
 
-        this.infos = infos;
+        this.infos = new FileInfoStore( infos );
         this.directory = directory;
         nC = infos.length;
         nT = infos[0].length;
@@ -185,7 +197,12 @@ public class VirtualStack2 extends VirtualStack {
     }
 
     public FileInfoSer[][][] getFileInfosSer() {
-        return( infos );
+        return( infos.toArray() );
+    }
+
+    /** Returns the info of one plane, or null if its file has not been parsed (yet). */
+    public FileInfoSer getFileInfoSer( int c, int t, int z ) {
+        return( infos.get( c, t, z ) );
     }
 
     public String getDirectory() {
@@ -197,7 +214,7 @@ public class VirtualStack2 extends VirtualStack {
         int numberOfUnparsedFiles = 0;
         for(int c = 0; c < nC; c++ )
             for(int t = 0; t < nT; t++)
-                if (infos[c][t] == null)
+                if ( ! infos.contains( c, t, 0 ) )
                     numberOfUnparsedFiles++;
 
         return numberOfUnparsedFiles;
@@ -210,6 +227,99 @@ public class VirtualStack2 extends VirtualStack {
 
     /** Adds an image stack from file infos */
     public void setInfoFromFile( final int c, final int t, final int z, boolean throwError )
+    {
+        synchronized ( getParseLock( c, t, z ) )
+        {
+            parseInfoFromFile( c, t, z, throwError );
+        }
+    }
+
+    /**
+     * Returns the info of the plane, parsing the file header if this has not been done yet.
+     *
+     * @return null if the file does not exist (yet) or could not be parsed
+     */
+    public FileInfoSer ensureFileInfo( int c, int t, int z, boolean throwError )
+    {
+        synchronized ( getParseLock( c, t, z ) )
+        {
+            if ( ! infos.contains( c, t, z ) )
+            {
+                parseInfoFromFile( c, t, z, throwError );
+            }
+            return infos.get( c, t, z );
+        }
+    }
+
+    /**
+     * Parses the headers of all files that have not been parsed yet and stores them in the header index;
+     * used to complete the infos of lazily opened data sets in the background.
+     * Files are only parsed while the storage device is not busy with other reads, e.g. of the viewer.
+     * Stops between two files once {@link #stopHeaderSweep} has been called, e.g. because the image has been closed;
+     * the headers parsed so far are still stored.
+     */
+    public void ensureAllFileInfos( boolean throwError )
+    {
+        final boolean isPlaneFile = fileType.equals( Utils.FileType.TIFF_PLANES.toString() );
+
+        try
+        {
+            for ( int t = 0; t < nT; t++ )
+            {
+                for ( int z = 0; z < ( isPlaneFile ? nZ : 1 ); z++ )
+                {
+                    for ( int c = 0; c < nC; c++ )
+                    {
+                        if ( isHeaderSweepStopped ) return;
+                        if ( infos.contains( c, t, z ) ) continue;
+
+                        try ( IOScheduler.DeviceAccess access = IOScheduler.getInstance().acquireIdleDeviceAccess( directory ) )
+                        {
+                            ensureFileInfo( c, t, z, throwError );
+                        }
+                    }
+                }
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            saveHeaderIndex();
+        }
+    }
+
+    /**
+     * Stops {@link #ensureAllFileInfos} after the file that is currently parsed.
+     * The sweep is not interrupted, because interrupting a read closes the file channels
+     * that are shared with all other readers, see FileHandleCache.
+     */
+    public void stopHeaderSweep()
+    {
+        isHeaderSweepStopped = true;
+    }
+
+    private Object[] createParseLocks()
+    {
+        final Object[] locks = new Object[ NUM_PARSE_LOCKS ];
+        for ( int i = 0; i < locks.length; i++ )
+        {
+            locks[ i ] = new Object();
+        }
+        return locks;
+    }
+
+    private Object getParseLock( int c, int t, int z )
+    {
+        // all planes of a stack file are parsed at once and published together
+        final int zFile = fileType.equals( Utils.FileType.TIFF_PLANES.toString() ) ? z : 0;
+        final int hash = ( c * 31 + t ) * 31 + zFile;
+        return parseLocks[ Math.floorMod( hash, NUM_PARSE_LOCKS ) ];
+    }
+
+    private void parseInfoFromFile( final int c, final int t, final int z, boolean throwError )
     {
         FileInfoSer[] info = null;
         FileInfoSer[] infoCT = null;
@@ -221,6 +331,13 @@ public class VirtualStack2 extends VirtualStack {
 
         if ( f.exists() )
         {
+            // stack files contain all z-planes, thus their headers are indexed under the file of z = 0
+            final boolean isPlaneFile = fileType.equals( Utils.FileType.TIFF_PLANES.toString() );
+            final String indexPath = channelFolders[c] + "/" + ctzFileList[c][t][ isPlaneFile ? z : 0 ];
+            final File indexFile = isPlaneFile ? f : new File( directory + indexPath );
+
+            if ( setInfoFromHeaderIndex( c, t, z, isPlaneFile, indexPath, indexFile ) ) return;
+
             if ( fileType.equals(Utils.FileType.TIFF_STACKS.toString() ) )
             {
                 ftd = new FastTiffDecoder(directory + channelFolders[c], ctzFileList[c][t][0]);
@@ -255,7 +372,8 @@ public class VirtualStack2 extends VirtualStack {
                     //infoCT[z].rowsPerStrip = info[z].rowsPerStrip; // only read for first IFD!
                 }
 
-                infos[c][t] = infoCT;
+                infos.set( c, t, infoCT );
+                getHeaderIndex().put( indexPath, indexFile, infoCT );
 
             }
             else if ( fileType.equals(Utils.FileType.HDF5.toString() ) )
@@ -268,9 +386,23 @@ public class VirtualStack2 extends VirtualStack {
 
                 int bytesPerPixel = 0;
 
-                IHDF5Reader reader = HDF5Factory.openForReading(directory + channelFolders[c] + "/" + ctzFileList[c][t][0]);
-                HDF5DataSetInformation dsInfo = reader.getDataSetInformation( h5DataSet );
-                String dsTypeString = OpenerExtension.hdf5InfoToString(dsInfo);
+                String dsTypeString;
+                String path = directory + channelFolders[c] + "/" + ctzFileList[c][t][0];
+                try ( FileHandleCache.Handle< IHDF5Reader > handle = FileHandleCache.HDF5.acquire( path ) )
+                {
+                    IHDF5Reader reader = handle.get();
+                    synchronized ( reader )
+                    {
+                        HDF5DataSetInformation dsInfo = reader.getDataSetInformation( h5DataSet );
+                        dsTypeString = OpenerExtension.hdf5InfoToString( dsInfo );
+                    }
+                }
+                catch ( IOException e )
+                {
+                    logger.error( "Could not open " + path + ": " + e.toString() );
+                    return;
+                }
+
                 if ( dsTypeString.equals("int16") || dsTypeString.equals("uint16") )
                 {
                     bytesPerPixel = 2;
@@ -297,24 +429,30 @@ public class VirtualStack2 extends VirtualStack {
                     infoCT[z2].fileTypeString = fileType;
                 }
 
-                infos[c][t] = infoCT;
+                infos.set( c, t, infoCT );
+                getHeaderIndex().put( indexPath, indexFile, infoCT );
             }
             else if ( fileType.equals(Utils.FileType.TIFF_PLANES.toString() ) )
             {
                 ftd = new FastTiffDecoder(directory + channelFolders[c], ctzFileList[c][t][z]);
 
+                FileInfoSer fi;
                 try
                 {
-                    infos[c][t][z] = ftd.getTiffInfo()[0];
+                    fi = ftd.getTiffInfo()[0];
                 }
                 catch ( IOException e )
                 {
                     System.out.print( e.toString() );
+                    return;
                 }
 
-                infos[c][t][z].directory = channelFolders[c] + "/"; // relative path to main directory
-                infos[c][t][z].fileName = ctzFileList[c][t][z];
-                infos[c][t][z].fileTypeString = fileType;
+                // complete the info before publishing it, as other threads may read it right away
+                fi.directory = channelFolders[c] + "/"; // relative path to main directory
+                fi.fileName = ctzFileList[c][t][z];
+                fi.fileTypeString = fileType;
+                infos.set( c, t, z, fi );
+                getHeaderIndex().put( indexPath, indexFile, new FileInfoSer[]{ fi } );
             }
         }
         else
@@ -327,6 +465,25 @@ public class VirtualStack2 extends VirtualStack {
 
     }
 
+    private boolean setInfoFromHeaderIndex( int c, int t, int z, boolean isPlaneFile, String indexPath, File indexFile )
+    {
+        final FileInfoSer[] indexed = getHeaderIndex().get( indexPath, indexFile );
+
+        if ( indexed == null ) return false;
+
+        if ( isPlaneFile )
+        {
+            infos.set( c, t, z, indexed[0] );
+        }
+        else
+        {
+            if ( indexed.length != nZ ) return false;
+            infos.set( c, t, indexed );
+        }
+
+        return true;
+    }
+
     /** Does nothing. */
     public void addSlice(String sliceLabel, Object pixels) {
     }
@@ -408,7 +565,7 @@ public class VirtualStack2 extends VirtualStack {
                 lockedFiles.add( pathCTZ );
             }
 
-            if ( infos[ c ][ t ][ z ] == null )
+            if ( ! infos.contains( c, t, z ) )
             {
 
                 File f = new File( pathCTZ );
@@ -435,6 +592,9 @@ public class VirtualStack2 extends VirtualStack {
 
             FileLock lock = null;
 
+            // mapped or opened files can not be rewritten on Windows
+            invalidateFile( pathCTZ );
+
             while( ! allPixelsSaved  && ioErrors < MAX_ERRORS )
             {
                 // replace pixels in existing file
@@ -444,7 +604,7 @@ public class VirtualStack2 extends VirtualStack {
                     RandomAccessFile raf = new RandomAccessFile( pathCTZ, "rw") ;
 
 
-                    long offsetToImageData = infos[ c ][ t ][ z ].offset;
+                    long offsetToImageData = infos.get( c, t, z ).offset;
 
                     for ( int y = ( int ) interval.min( Y ); y <= interval.max( Y ); y++ )
                     {
@@ -486,6 +646,9 @@ public class VirtualStack2 extends VirtualStack {
             }
 
 
+            // also drops the handles, mappings and planes of reads that happened during writing
+            invalidateFile( pathCTZ );
+
             synchronized ( this )
             {
                 lockedFiles.remove( pathCTZ );
@@ -495,6 +658,18 @@ public class VirtualStack2 extends VirtualStack {
 
     }
 
+    /**
+     * Drops the cached planes, open file handles and mappings of a file,
+     * because it is about to be written or has been written.
+     */
+    public static void invalidateFile( String path )
+    {
+        FileHandleCache.TIFF.invalidate( path );
+        FileHandleCache.HDF5.invalidate( path );
+        MappedTiffPlaneReader.invalidate( path );
+        PlaneCache.getInstance().invalidate( path );
+    }
+
     private void sleep( int milliSeconds )
     {
         try { Thread.sleep( milliSeconds ); } catch ( InterruptedException e ) { e.printStackTrace(); }
@@ -520,32 +695,153 @@ public class VirtualStack2 extends VirtualStack {
         int z = ((n-c)%(nZ*nC))/nC;
         int t = (n-c-z*nC)/(nZ*nC);
 
-        ImagePlus imp;
-
         if( logger.isShowDebug() ) {
               logger.info("# virtualstack2.getProcessor");
               logger.info("requested slice [one-based]: " + (n + 1));
               logger.info("channel [one-based]: " + (c + 1));
               logger.info("z [one-based]: " + (z + 1));
               logger.info("t [one-based]: " + (t + 1));
-              logger.info("opening file: " + directory + infos[c][t][z].directory + infos[c][t][z].fileName);
+              FileInfoSer fi = ensureFileInfo( c, t, z, false );
+              if ( fi != null ) logger.info("opening file: " + directory + fi.directory + fi.fileName);
         }
 
-        if( infos[c][t][z] == null )
+        getPrefetcher().positionChanged( c, t, z );
+
+        return readPlane( c, t, z, true, 1 );
+    }
+
+    /**
+     * As {@link #getProcessor}, but for display only: while the window is zoomed out, see
+     * {@link #adaptResolutionToMagnification}, the plane is read from a lower resolution level
+     * and enlarged to the full size; the pixel values must thus not be used for analysis.
+     */
+    public ImageProcessor getDisplayProcessor( int n )
+    {
+        n -= 1;
+        int c = (n % nC);
+        int z = ((n-c)%(nZ*nC))/nC;
+        int t = (n-c-z*nC)/(nZ*nC);
+
+        return readPlane( c, t, z, true, displaySubSampling );
+    }
+
+    /** Sets how many planes ahead of the currently viewed plane are loaded in the background; zero disables it. */
+    public void setPrefetchDepth( int depth )
+    {
+        getPrefetcher().setDepth( depth );
+    }
+
+    private synchronized HeaderIndex getHeaderIndex()
+    {
+        if ( headerIndex == null )
         {
-            File f = new File(directory + channelFolders[c] + "/" + ctzFileList[c][t][z]);
-            if ( ! f.exists() )
-            {
-                ImageStack stack = ImageStack.create(nX, nY, 1, bitDepth);
-                return stack.getProcessor(1);
-            }
-            else
+            headerIndex = HeaderIndex.load( directory, fileType, h5DataSet );
+        }
+        return headerIndex;
+    }
+
+    /**
+     * Stores the parsed file headers in the cache directory of the user, such that reopening the data set does not need to parse them again.
+     */
+    public void saveHeaderIndex()
+    {
+        getHeaderIndex().save();
+    }
+
+    /**
+     * While the window of imp is zoomed out, the shown planes are read again by {@link #getDisplayProcessor},
+     * from the coarsest resolution level stored with the data that suffices for the magnification.
+     */
+    public void adaptResolutionToMagnification( ImagePlus imp )
+    {
+        // only Hdf5 files can contain resolution levels
+        if ( fileType.equals( Utils.FileType.HDF5.toString() ) )
+        {
+            new DisplayResolution( this, imp );
+        }
+    }
+
+    void setDisplaySubSampling( int subSampling )
+    {
+        displaySubSampling = subSampling;
+    }
+
+    int getDisplaySubSampling()
+    {
+        return displaySubSampling;
+    }
+
+    /**
+     * @return the largest sub-sampling of a stored resolution level at which one screen pixel
+     * still shows at least one pixel of the level
+     */
+    int getDisplaySubSampling( double magnification )
+    {
+        int subSampling = 1;
+
+        for ( int s : getDisplaySubSamplings() )
+        {
+            if ( s * magnification <= 1.0 ) subSampling = s;
+        }
+
+        return subSampling;
+    }
+
+    private synchronized List< Integer > getDisplaySubSamplings()
+    {
+        if ( displaySubSamplings != null ) return displaySubSamplings;
+
+        displaySubSamplings = new ArrayList<>();
+
+        if ( ! fileType.equals( Utils.FileType.HDF5.toString() ) ) return displaySubSamplings;
+
+        FileInfoSer fi = ensureFileInfo( 0, 0, 0, false );
+        if ( fi == null ) return displaySubSamplings;
+
+        String path = directory + fi.directory + fi.fileName;
+        try ( FileHandleCache.Handle< IHDF5Reader > handle = FileHandleCache.HDF5.acquire( path ) )
+        {
+            IHDF5Reader reader = handle.get();
+            synchronized ( reader )
             {
-                setInfoFromFile(c, t, z);
+                displaySubSamplings = Hdf5ResolutionLevels.get( reader, path, fi.h5DataSet ).getSubSamplingsXY();
             }
         }
+        catch ( Exception e )
+        {
+            logger.warning( "Could not determine the resolution levels of " + path + ": " + e.toString() );
+        }
+
+        return displaySubSamplings;
+    }
+
+    private synchronized PlanePrefetcher getPrefetcher()
+    {
+        if ( prefetcher == null )
+        {
+            prefetcher = new PlanePrefetcher( this );
+        }
+        return prefetcher;
+    }
+
+    void loadPlaneIntoCache( int c, int t, int z )
+    {
+        readPlane( c, t, z, false, 1 );
+    }
 
-        FileInfoSer fi = infos[ c ][ t ][ z ];
+    /**
+     * @param subSampling in x and y; larger than one only for display
+     */
+    private ImageProcessor readPlane( int c, int t, int z, boolean awaitPrefetch, int subSampling )
+    {
+        FileInfoSer fi = ensureFileInfo( c, t, z, false );
+
+        if ( fi == null )
+        {
+            // file does not exist (yet)
+            ImageStack stack = ImageStack.create(nX, nY, 1, bitDepth);
+            return stack.getProcessor(1);
+        }
 
         Point3D po, ps;
         po = new Point3D(0,0,z);
@@ -559,28 +855,73 @@ public class VirtualStack2 extends VirtualStack {
             ps = new Point3D( fi.width, fi.height, 1);
         }
 
-        Region5D region5D = new Region5D();
-        region5D.t = t;
-        region5D.c = c;
-        region5D.offset = po;
-        region5D.size = ps;
-        region5D.subSampling = new Point3D(1, 1, 1);
+        if ( awaitPrefetch )
+        {
+            getPrefetcher().awaitPrefetch( c, t, z );
+        }
+
+        PlaneCache.Key key = getPlaneCacheKey( c, t, z, fi, ps, subSampling );
+        ImageProcessor ip = PlaneCache.getInstance().get( key );
+
+        if ( ip == null )
+        {
+            Region5D region5D = new Region5D();
+            region5D.t = t;
+            region5D.c = c;
+            region5D.offset = po;
+            region5D.size = ps;
+            region5D.subSampling = new Point3D( subSampling, subSampling, 1 );
+
+            ImagePlus imp = getDataCube( region5D, 1, subSampling > 1 );
+
+            ip = imp.getProcessor();
+
+            PlaneCache.getInstance().put( key, ip );
+
+            if( logger.isShowDebug() ) {
+                  logger.info( PlaneCache.getInstance().toString() );
+            }
+        }
 
-        imp = getDataCube( region5D, 1 );
+        if ( subSampling > 1 )
+        {
+            // the image window needs planes of the full size
+            ip.setInterpolationMethod( ImageProcessor.NONE );
+            ip = ip.resize( (int) ps.getX(), (int) ps.getY() );
+        }
 
-        return imp.getProcessor();
+        return ip;
+    }
+
+    /**
+     * The key contains the region that is actually read from the file,
+     * such that cropped views on the same data and changed chromatic shifts are cached separately.
+     */
+    private PlaneCache.Key getPlaneCacheKey( int c, int t, int z, FileInfoSer fi, Point3D size, int subSampling )
+    {
+        Point3D offset = new Point3D( 0, 0, z );
+        if ( fi.isCropped )
+        {
+            offset = offset.add( fi.getCropOffset() );
+        }
+        offset = offset.add( chromaticShifts.get( c ) );
+
+        return new PlaneCache.Key(
+                directory + fi.directory + fi.fileName, fi.h5DataSet, c, t,
+                (int) offset.getZ(), (int) offset.getX(), (int) offset.getY(),
+                (int) size.getX(), (int) size.getY(), subSampling, subSampling );
     }
 
     public boolean isCropped() {
-        return(infos[0][0][0].isCropped);
+        return(infos.get(0,0,0).isCropped);
     }
 
     public Point3D getCropOffset() {
-        return(new Point3D( infos[0][0][0].pCropOffset[0], infos[0][0][0].pCropOffset[1], infos[0][0][0].pCropOffset[2]));
+        return(infos.get(0,0,0).getCropOffset());
     }
 
     public Point3D getCropSize() {
-        return(new Point3D( infos[0][0][0].pCropSize[0], infos[0][0][0].pCropSize[1], infos[0][0][0].pCropSize[2]));
+        return(infos.get(0,0,0).getCropSize());
     }
 
     public ImagePlus getFullFrame( int c, int t, int nThreads)
@@ -594,10 +935,12 @@ public class VirtualStack2 extends VirtualStack {
 
         po = new Point3D(0, 0, 0);
 
-        if( infos[0][0][0].isCropped )
+        FileInfoSer fi0 = infos.get(0,0,0);
+
+        if( fi0.isCropped )
         {
             // offset is added by getDataCube
-            ps = infos[0][0][0].getCropSize();
+            ps = fi0.getCropSize();
         }
         else
         {
@@ -611,20 +954,46 @@ public class VirtualStack2 extends VirtualStack {
         region5D.size = ps;
         region5D.subSampling = pSubSample;
 
-        ImagePlus imp = getDataCube( region5D, nThreads );
+        // getDataCube also sub-samples in x and y
+        return( getDataCube( region5D, nThreads ) );
 
-        if( (int)pSubSample.getX()>1 || (int)pSubSample.getY()>1)
-        {
-            return( resizeWidthAndHeight(imp,(int)pSubSample.getX(),(int)pSubSample.getY() ) );
-        }
-        else
-        {
-            return(imp);
-        }
+    }
+
+    /**
+     * The planes zStart, ..., zStart + nz - 1 of a frame, such that a frame can be processed in slabs.
+     */
+    public ImagePlus getFrameSlab( int c, int t, int zStart, int nz, int nThreads )
+    {
+        FileInfoSer fi0 = infos.get(0,0,0);
+
+        Point3D ps = fi0.isCropped ? fi0.getCropSize() : new Point3D(nX, nY, nZ);
+
+        Region5D region5D = new Region5D();
+        region5D.t = t;
+        region5D.c = c;
+        region5D.offset = new Point3D(0, 0, zStart); // the cropping offset is added by getDataCube
+        region5D.size = new Point3D(ps.getX(), ps.getY(), nz);
+        region5D.subSampling = new Point3D(1, 1, 1);
 
+        return( getDataCube( region5D, nThreads ) );
     }
 
-    public ImagePlus getDataCube( Region5D region5D, int nThreads )   {
+    /**
+     * Sub-sampling in x and y is done differently depending on the file type:
+     * Hdf5 data are decimated while reading, i.e. only every dx-th pixel is read, or a stored lower resolution
+     * level is read, whereas Tiff data are read at full resolution and then resized with bilinear interpolation.
+     * Sub-sampled Tiff data are thus smoother than sub-sampled Hdf5 data of the same image.
+     * The size of the returned stack is the same in both cases.
+     */
+    public ImagePlus getDataCube( Region5D region5D, int nThreads )
+    {
+        return getDataCube( region5D, nThreads, false );
+    }
+
+    /**
+     * @param isForDisplay whether single planes may be read from resolution levels that are down-sampled in z
+     */
+    private ImagePlus getDataCube( Region5D region5D, int nThreads, boolean isForDisplay )   {
 
         if ( logger.isShowDebug() )
         {
@@ -645,6 +1014,15 @@ public class VirtualStack2 extends VirtualStack {
 
         int dz = (int) region5D.subSampling.getZ();
 
+        // Hdf5 data are sub-sampled in x and y while reading,
+        // such that only the required pixels, or a stored lower resolution level, are read
+        int dx = 1, dy = 1;
+        if ( fileType.equals( Utils.FileType.HDF5.toString() ) )
+        {
+            dx = (int) region5D.subSampling.getX();
+            dy = (int) region5D.subSampling.getY();
+        }
+
         // compute ranges to be loaded
         int ox = (int) (region5D.offset.getX() + 0.5);
         int oy = (int) (region5D.offset.getY() + 0.5);
@@ -659,21 +1037,22 @@ public class VirtualStack2 extends VirtualStack {
         // adjust for negative offsets
         //
 
-        // set negative offsets to zero
-        int oxLoaded = ( ox < 0 ) ? 0 : ox;
-        int oyLoaded = ( oy < 0 ) ? 0 : oy;
+        // set negative offsets to zero, or in x and y to the first pixel of the sub-sampling grid within the image
+        int oxLoaded = ( ox < 0 ) ? ox + ( ( -ox + dx - 1 ) / dx ) * dx : ox;
+        int oyLoaded = ( oy < 0 ) ? oy + ( ( -oy + dy - 1 ) / dy ) * dy : oy;
         int ozLoaded = ( oz < 0 ) ? 0 : oz;
 
-        // adjust the loaded sizes accordingly
-        int sxLoaded = sx - ( oxLoaded - ox );
-        int syLoaded = sy - ( oyLoaded - oy );
+        // adjust the loaded sizes accordingly; in x and y up to the last pixel of the sub-sampling grid,
+        // but at least one pixel, also if the region is smaller than the sub-sampling
+        int sxLoaded = Math.max( 1, ( sx / dx - 1 ) * dx + 1 - ( oxLoaded - ox ) );
+        int syLoaded = Math.max( 1, ( sy / dy - 1 ) * dy + 1 - ( oyLoaded - oy ) );
         int szLoaded = sz - ( ozLoaded - oz );
 
         // adjust for too large loading ranges due to high offsets
         // - note: ox2=ox and sx2=sx if ox was positive
         int nX = fi.width;
         int nY = fi.height;
-        int nZ = infos[ region5D.c ][ region5D.t ].length;
+        int nZ = infos.getNumZ();
 
         sxLoaded = (oxLoaded + sxLoaded > nX) ? nX - oxLoaded : sxLoaded;
         syLoaded = (oyLoaded + syLoaded > nY) ? nY - oyLoaded : syLoaded;
@@ -681,16 +1060,21 @@ public class VirtualStack2 extends VirtualStack {
 
         // check memory requirements
         //
-        long numPixels = (long) sxLoaded * syLoaded * szLoaded;
+        long numPixels = (long) sxLoaded * syLoaded * szLoaded / ( dx * dy );
         int numStacks = 1;
         int bitDepth = this.getBitDepth();
 
         if( ! Utils.checkMemoryRequirements( numPixels, bitDepth, numStacks) ) return( null );
 
         ImagePlus loaded = loadDataCube( region5D.c, region5D.t,
-                oxLoaded, oyLoaded, ozLoaded, sxLoaded, syLoaded, szLoaded, dz, nThreads );
+                oxLoaded, oyLoaded, ozLoaded, sxLoaded, syLoaded, szLoaded, dx, dy, dz, nThreads, isForDisplay );
 
-        ImagePlus requested = createStackOfRequestedSize( loaded, fi, dz, ox, oy, oz, sx, sy, sz  );
+        ImagePlus requested = createStackOfRequestedSize( loaded, fi, dx, dy, dz, ox, oy, oz, sx, sy, sz  );
+
+        if ( dx > 1 || dy > 1 )
+        {
+            return requested;
+        }
 
         ImagePlus binned = createXYBinnedStack( requested, region5D );
 
@@ -713,8 +1097,12 @@ public class VirtualStack2 extends VirtualStack {
     }
 
 
-    private ImagePlus createStackOfRequestedSize( ImagePlus impLoaded, FileInfoSer fi, int dz, int oxRequested, int oyRequested, int ozRequested, int sxRequested, int syRequested, int szRequested )
+    private ImagePlus createStackOfRequestedSize( ImagePlus impLoaded, FileInfoSer fi, int dx, int dy, int dz, int oxRequested, int oyRequested, int ozRequested, int sxRequested, int syRequested, int szRequested )
     {
+        // adapt stack size in x and y for sub-sampling while reading
+        sxRequested = Math.max( 1, sxRequested / dx );
+        syRequested = Math.max( 1, syRequested / dy );
+
         if ( dz > 1 )
         {
             // adapt stack size in z for sub-sampling
@@ -740,8 +1128,8 @@ public class VirtualStack2 extends VirtualStack {
             else
             {
                 // the loaded stack is smaller than the requested ( because oob pixels where requested )
-                final int finalStackOffsetX = oxRequested < 0 ? -oxRequested : 0;
-                final int finalStackOffsetY = oyRequested < 0 ? -oyRequested : 0;
+                final int finalStackOffsetX = oxRequested < 0 ? ( -oxRequested + dx - 1 ) / dx : 0;
+                final int finalStackOffsetY = oyRequested < 0 ? ( -oyRequested + dy - 1 ) / dy : 0;
                 final int finalStackOffsetZ = ( ozRequested < 0 ? -ozRequested : 0 ) / dz;
 
                 ImageStack requestedStack = ImageStack.create(
@@ -765,7 +1153,7 @@ public class VirtualStack2 extends VirtualStack {
     }
 
 
-    private ImagePlus loadDataCube( int c, int t, int ox, int oy, int oz, int sx, int sy, int sz, int dz, int nThreads )
+    private ImagePlus loadDataCube( int c, int t, int ox, int oy, int oz, int sx, int sy, int sz, int dx, int dy, int dz, int nThreads, boolean isForDisplay )
     {
 
         if( sx == 0 || sy == 0 || sz == 0 ) return null;
@@ -773,7 +1161,7 @@ public class VirtualStack2 extends VirtualStack {
         Point3D po = new Point3D(ox, oy, oz);
         Point3D ps = new Point3D(sx, sy, sz);
 
-        ImagePlus impLoaded = new OpenerExtension().readDataCube(directory, infos[c][t], dz, po, ps, nThreads);
+        ImagePlus impLoaded = new OpenerExtension().readDataCube(directory, infos.get(c, t, oz, oz + sz - 1), dx, dy, dz, po, ps, nThreads, isForDisplay);
 
         return impLoaded;
     }
@@ -799,11 +1187,11 @@ public class VirtualStack2 extends VirtualStack {
 
         if ( (int) region5D.offset.getZ() >= 0 )
         {
-            fi = infos[ region5D.c ][ region5D.t ][ (int) region5D.offset.getZ() ];
+            fi = infos.get( region5D.c, region5D.t, (int) region5D.offset.getZ() );
         }
         else // requesting negative z can happen during object tracking
         {
-            fi = infos[ region5D.c ][ region5D.t ][ 0 ];
+            fi = infos.get( region5D.c, region5D.t, 0 );
         }
 
         return fi;
@@ -812,23 +1200,13 @@ public class VirtualStack2 extends VirtualStack {
     private void ensureExistenceOfFileInfo( Region5D region5D )
     {
         // make sure we have all the file-info data
-        if ( infos[ region5D.c ][ region5D.t ] == null )
-        {
-            // stack info not yet loaded => get it!
-            setInfoFromFile( region5D.c, region5D.t, 0 );
-        }
+        ensureFileInfo( region5D.c, region5D.t, 0, true );
 
-        // make sure we have all the file-info data
         for ( int z = (int)region5D.offset.getZ() ; z < (int)region5D.offset.getZ() + (int)region5D.size.getZ(); ++z )
         {
             if ( (z > -1) && (z < nZ ) ) // because during tracking one could ask for out-of-bounds z-planes
             {
-                if ( infos[ region5D.c ][ region5D.t ][ z ] == null)
-                {
-                    File f = new File(directory + channelFolders[region5D.c] + "/" + ctzFileList[region5D.c][region5D.t][z]);
-                    // file info not yet loaded => get it!
-                    setInfoFromFile( region5D.c, region5D.t, z );
-                }
+                ensureFileInfo( region5D.c, region5D.t, z, true );
             }
         }
     }
@@ -872,7 +1250,8 @@ public class VirtualStack2 extends VirtualStack {
         int nx = imp.getWidth(), ny = imp.getHeight();
         ImagePlus imp2 = imp.createImagePlus();
         ImageStack stack1 = imp.getStack();
-        ImageStack stack2 = new ImageStack(nx/dx, ny/dy);
+        int nx2 = Math.max(1, nx/dx), ny2 = Math.max(1, ny/dy);
+        ImageStack stack2 = new ImageStack(nx2, ny2);
         ImageProcessor ip1, ip2;
         int method = ImageProcessor.BILINEAR; // ImageProcessor.NEAREST_NEIGHBOR;
         if (nx == 1 || ny == 1)
@@ -880,7 +1259,7 @@ public class VirtualStack2 extends VirtualStack {
         for (int i = 1; i <= nSlices; i++) {
             ip1 = stack1.getProcessor(i);
             ip1.setInterpolationMethod(method);
-            ip2 = ip1.resize(nx/dx, ny/dy, false);
+            ip2 = ip1.resize(nx2, ny2, false);
             if (ip2 != null)
                 stack2.addSlice("", ip2);
         }
@@ -0,0 +1,259 @@
+package de.embl.cba.bigdataprocessor.save;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.Opener;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Round trips of the {@link TiffStackWriter}: the LZW encoder against a strict decoder,
+ * and written files against ImageJ's Tiff reader.
+ */
+public class TiffStackWriterTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Covers all code length changes (at codes 511, 1023 and 2047) and the table resets at code 4094,
+     * with random data, which adds one code per byte, and repetitive data, which adds long strings.
+     */
+    @Test
+    public void lzwRoundTripAcrossCodeLengthsAndTableResets()
+    {
+        final TiffStackWriter.LzwEncoder encoder = new TiffStackWriter.LzwEncoder();
+        final Random random = new Random( 42 );
+
+        for ( int numBytes = 0; numBytes < 9000; numBytes++ )
+        {
+            final byte[] randomBytes = new byte[ numBytes ];
+            random.nextBytes( randomBytes );
+            assertArrayEquals( "random, " + numBytes + " bytes",
+                    randomBytes, decodeLzw( encoder.encode( randomBytes, numBytes ) ) );
+
+            final byte[] repetitiveBytes = new byte[ numBytes ];
+            for ( int i = 0; i < numBytes; i++ ) repetitiveBytes[ i ] = ( byte ) random.nextInt( 3 );
+            assertArrayEquals( "repetitive, " + numBytes + " bytes",
+                    repetitiveBytes, decodeLzw( encoder.encode( repetitiveBytes, numBytes ) ) );
+        }
+    }
+
+    @Test
+    public void lzwIgnoresBytesBeyondTheGivenLength()
+    {
+        final byte[] bytes = { 1, 2, 3, 4, 5, 6 };
+        final byte[] decoded = decodeLzw( new TiffStackWriter.LzwEncoder().encode( bytes, 4 ) );
+        assertArrayEquals( new byte[]{ 1, 2, 3, 4 }, decoded );
+    }
+
+    @Test
+    public void zip8BitRoundTrip() throws Exception
+    {
+        assertRoundTrip( createImage( 8 ), TiffStackWriter.ZIP, 7 );
+    }
+
+    @Test
+    public void zip16BitRoundTrip() throws Exception
+    {
+        assertRoundTrip( createImage( 16 ), TiffStackWriter.ZIP, 7 );
+    }
+
+    @Test
+    public void zip32BitRoundTrip() throws Exception
+    {
+        assertRoundTrip( createImage( 32 ), TiffStackWriter.ZIP, 7 );
+    }
+
+    @Test
+    public void lzw16BitRoundTrip() throws Exception
+    {
+        assertRoundTrip( createImage( 16 ), TiffStackWriter.LZW, 200 );
+    }
+
+    @Test
+    public void lzw32BitRoundTrip() throws Exception
+    {
+        assertRoundTrip( createImage( 32 ), TiffStackWriter.LZW, 1 );
+    }
+
+    @Test
+    public void smallPixelSizesAreKept() throws Exception
+    {
+        final ImagePlus imp = createImage( 8 );
+        final Calibration calibration = imp.getCalibration();
+        calibration.pixelWidth = 0.00012;
+        calibration.pixelHeight = 12345.6;
+        calibration.pixelDepth = 2.5;
+        calibration.setUnit( "mm" );
+
+        final ImagePlus read = writeAndRead( imp, TiffStackWriter.ZIP, 16 );
+
+        assertEquals( 0.00012, read.getCalibration().pixelWidth, 1e-9 );
+        assertEquals( 12345.6, read.getCalibration().pixelHeight, 0.1 );
+        assertEquals( 2.5, read.getCalibration().pixelDepth, 1e-9 );
+        assertEquals( "mm", read.getCalibration().getUnit() );
+    }
+
+    private void assertRoundTrip( ImagePlus imp, String compression, int rowsPerStrip ) throws Exception
+    {
+        final ImagePlus read = writeAndRead( imp, compression, rowsPerStrip );
+
+        assertEquals( imp.getBitDepth(), read.getBitDepth() );
+        assertEquals( imp.getStackSize(), read.getStackSize() );
+
+        for ( int z = 1; z <= imp.getStackSize(); z++ )
+        {
+            final Object expected = imp.getStack().getPixels( z );
+            final Object actual = read.getStack().getPixels( z );
+
+            if ( expected instanceof byte[] ) assertArrayEquals( ( byte[] ) expected, ( byte[] ) actual );
+            else if ( expected instanceof short[] ) assertArrayEquals( ( short[] ) expected, ( short[] ) actual );
+            else assertArrayEquals( ( float[] ) expected, ( float[] ) actual, 0.0F );
+        }
+    }
+
+    private ImagePlus writeAndRead( ImagePlus imp, String compression, int rowsPerStrip ) throws Exception
+    {
+        final File file = new File( folder.getRoot(), "image-" + compression + "-" + imp.getBitDepth() + ".tif" );
+        new TiffStackWriter( file.getAbsolutePath(), compression, rowsPerStrip ).write( imp );
+
+        final ImagePlus read = new Opener().openImage( file.getAbsolutePath() );
+        assertNotNull( "ImageJ could not read " + file, read );
+        return read;
+    }
+
+    /**
+     * Gradients with noise, such that the predictor differences are small but not constant,
+     * with the extreme values of the data type.
+     */
+    private static ImagePlus createImage( int bitDepth )
+    {
+        final int width = 101;
+        final int height = 53;
+        final Random random = new Random( bitDepth );
+        final ImageStack stack = new ImageStack( width, height );
+
+        for ( int z = 0; z < 3; z++ )
+        {
+            if ( bitDepth == 8 )
+            {
+                final byte[] pixels = new byte[ width * height ];
+                for ( int i = 0; i < pixels.length; i++ ) pixels[ i ] = ( byte ) ( i % width * 2 + random.nextInt( 5 ) );
+                pixels[ 0 ] = ( byte ) 255;
+                stack.addSlice( new ByteProcessor( width, height, pixels ) );
+            }
+            else if ( bitDepth == 16 )
+            {
+                final short[] pixels = new short[ width * height ];
+                for ( int i = 0; i < pixels.length; i++ ) pixels[ i ] = ( short ) ( i % width * 600 + random.nextInt( 50 ) );
+                pixels[ 0 ] = ( short ) 65535;
+                pixels[ 1 ] = 0;
+                stack.addSlice( new ShortProcessor( width, height, pixels, null ) );
+            }
+            else
+            {
+                final float[] pixels = new float[ width * height ];
+                for ( int i = 0; i < pixels.length; i++ ) pixels[ i ] = ( float ) ( i % width - 50 + random.nextGaussian() );
+                pixels[ 0 ] = Float.MAX_VALUE;
+                pixels[ 1 ] = -Float.MIN_VALUE;
+                stack.addSlice( new FloatProcessor( width, height, pixels ) );
+            }
+        }
+
+        return new ImagePlus( "image", stack );
+    }
+
+    /**
+     * A Tiff LZW decoder that fails on codes that are not in the table,
+     * thus it detects code length changes that are off by one code.
+     */
+    private static byte[] decodeLzw( byte[] encoded )
+    {
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        if ( encoded.length == 0 ) return decoded.toByteArray();
+
+        final byte[][] table = new byte[ 4096 ][];
+        int nextCode = 258;
+        int codeLength = 9;
+        byte[] previous = null;
+
+        long bits = 0;
+        int numBits = 0;
+        int position = 0;
+
+        while ( true )
+        {
+            while ( numBits < codeLength )
+            {
+                if ( position == encoded.length ) throw new AssertionError( "Missing end of information code" );
+                bits = ( bits << 8 ) | ( encoded[ position++ ] & 0xff );
+                numBits += 8;
+            }
+            final int code = ( int ) ( ( bits >> ( numBits - codeLength ) ) & ( ( 1 << codeLength ) - 1 ) );
+            numBits -= codeLength;
+
+            if ( code == 257 ) break;
+
+            if ( code == 256 )
+            {
+                nextCode = 258;
+                codeLength = 9;
+                previous = null;
+                continue;
+            }
+
+            final byte[] string;
+            if ( code < 256 )
+            {
+                string = new byte[]{ ( byte ) code };
+            }
+            else if ( code < nextCode && table[ code ] != null )
+            {
+                string = table[ code ];
+            }
+            else if ( code == nextCode && previous != null )
+            {
+                string = append( previous, previous[ 0 ] );
+            }
+            else
+            {
+                throw new AssertionError( "Code " + code + " is not in the table, next code is " + nextCode );
+            }
+
+            decoded.write( string, 0, string.length );
+
+            if ( previous != null )
+            {
+                if ( nextCode > 4093 ) throw new AssertionError( "Table overflow without clear code" );
+                table[ nextCode++ ] = append( previous, string[ 0 ] );
+                // early change, as libtiff
+                if ( nextCode == ( 1 << codeLength ) - 1 && codeLength < 12 ) codeLength++;
+            }
+            previous = string;
+        }
+
+        return decoded.toByteArray();
+    }
+
+    private static byte[] append( byte[] string, byte b )
+    {
+        final byte[] appended = new byte[ string.length + 1 ];
+        System.arraycopy( string, 0, appended, 0, string.length );
+        appended[ string.length ] = b;
+        return appended;
+    }
+}